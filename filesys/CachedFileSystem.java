@@ -0,0 +1,694 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.filesys.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+
+/**
+ * A file system that keeps recently used blocks of another file system's
+ * files in a fixed-size buffer cache. Reads that hit the cache and writes
+ * never reach the underlying file system; dirty blocks are written back when
+ * they are evicted, when a file is closed, and when <tt>sync()</tt> is called.
+ *
+ * <p>
+ * The cache holds the number of blocks given by the <tt>nachos.conf</tt> key
+ * <tt>CachedFileSystem.numBlocks</tt>, and replaces them using the clock
+ * algorithm. The file system cached is named by
+ * <tt>CachedFileSystem.fileSystem</tt>, and defaults to the stub file system.
+ *
+ * <p>
+ * Each open file detects sequential reads: a read that starts where its
+ * previous one ended. A miss during a sequential read loads a window of
+ * blocks with a single read, and after each sequential read a kernel thread
+ * reads the next window ahead into the cache while the reader works on what
+ * it has. The window starts at <tt>CachedFileSystem.readAhead</tt> blocks and
+ * doubles with each window read ahead, up to
+ * <tt>CachedFileSystem.maxReadAhead</tt>; a read anywhere else starts again.
+ * Blocks read ahead are ordinary cache blocks, so writes through any open
+ * file are seen by later reads, and blocks never read are the first evicted.
+ */
+public class CachedFileSystem implements FileSystem {
+    /**
+     * Allocate a new buffer cache in front of the configured file system.
+     */
+    public CachedFileSystem() {
+	this(underlyingFileSystem());
+    }
+
+    /**
+     * Allocate a new buffer cache in front of the specified file system.
+     *
+     * @param	fileSystem	the file system to cache.
+     */
+    public CachedFileSystem(FileSystem fileSystem) {
+	Lib.assertTrue(fileSystem != null);
+
+	this.fileSystem = fileSystem;
+
+	int numBlocks = Config.getInteger("CachedFileSystem.numBlocks", 64);
+	Lib.assertTrue(numBlocks >= 2);
+
+	blocks = new Block[numBlocks];
+	for (int i=0; i<numBlocks; i++)
+	    blocks[i] = new Block();
+
+	readAhead = Config.getInteger("CachedFileSystem.readAhead", 4);
+	readAhead = Math.max(1, Math.min(readAhead, numBlocks/2));
+	maxReadAhead = Config.getInteger("CachedFileSystem.maxReadAhead",
+					 4*readAhead);
+	maxReadAhead = Math.max(readAhead, Math.min(maxReadAhead, numBlocks/2));
+    }
+
+    /**
+     * Print the statistics of this cache: blocks found and not found in the
+     * cache, dirty blocks written back, and blocks read ahead that were used
+     * and bytes read ahead that were evicted unused.
+     */
+    public void printStats() {
+	System.out.println("Buffer cache: hits " + numHits
+			   + ", misses " + numMisses
+			   + ", write-backs " + numWriteBacks);
+	System.out.println("Read-ahead: hits " + numReadAheadHits
+			   + ", wasted bytes " + numReadAheadWasted);
+    }
+
+    private static FileSystem underlyingFileSystem() {
+	String name = Config.getString("CachedFileSystem.fileSystem");
+	if (name != null)
+	    return (FileSystem) Lib.constructObject(name);
+
+	return Machine.stubFileSystem();
+    }
+
+    public OpenFile open(String name, boolean create) {
+	lock.acquire();
+
+	// creating a file may truncate it, so nothing cached may survive
+	FileEntry entry = files.get(name);
+	while (create && entry != null && !flush(entry))
+	    entry = files.get(name);
+
+	boolean isOpen = (entry != null && entry.references > 0);
+
+	OpenFile file = null;
+	if (!isOpen || create) {
+	    file = fileSystem.open(name, create);
+	    if (file == null) {
+		lock.release();
+		return null;
+	    }
+	}
+
+	if (entry == null) {
+	    entry = new FileEntry(name);
+	    files.put(name, entry);
+	}
+	if (create)
+	    discard(entry);
+
+	if (entry.references == 0) {
+	    entry.file = file;
+	    entry.length = file.length();
+	}
+	else if (file != null) {
+	    entry.length = entry.file.length();
+	    file.close();
+	}
+	entry.references++;
+
+	lock.release();
+
+	return new CachedOpenFile(entry);
+    }
+
+    public boolean remove(String name) {
+	lock.acquire();
+
+	// files still open keep their blocks; new opens get a new entry
+	FileEntry entry = files.remove(name);
+	if (entry != null && entry.references == 0)
+	    discard(entry);
+
+	boolean removed = fileSystem.remove(name);
+
+	lock.release();
+
+	return removed;
+    }
+
+    /**
+     * Return the cached block of a file, allocating it if it is not cached.
+     * Must be called with <tt>lock</tt> held, which is released while blocks
+     * are read or written back.
+     *
+     * @param	entry	the file.
+     * @param	number	the block number within the file.
+     * @param	load	<tt>true</tt> to read the block's contents if it is
+     *			not cached, <tt>false</tt> if the caller is about to
+     *			overwrite them.
+     * @param	window	the most blocks to read, starting with this one, if
+     *			it must be read.
+     * @return	the block.
+     */
+    private Block getBlock(FileEntry entry, int number, boolean load,
+			   int window) {
+	int count;
+	while (true) {
+	    Block block = entry.blocks.get(number);
+	    if (block != null && block.busy) {
+		blockIdle.sleep();
+		continue;
+	    }
+	    if (block != null) {
+		numHits++;
+		if (block.readAhead) {
+		    numReadAheadHits++;
+		    block.readAhead = false;
+		}
+		block.used = true;
+		return block;
+	    }
+
+	    count = 1;
+	    if (load) {
+		int fileBlocks = (entry.length + blockSize - 1) / blockSize;
+		while (count < window && number+count < fileBlocks &&
+		       !entry.blocks.containsKey(number+count))
+		    count++;
+	    }
+
+	    // if the lock was released, another thread may have loaded it
+	    if (makeRoom(count))
+		break;
+	}
+
+	numMisses++;
+
+	if (!load) {
+	    Block block = allocate(entry, number);
+	    Arrays.fill(block.data, (byte) 0);
+	    return block;
+	}
+
+	return load(entry, number, count, true);
+    }
+
+    /**
+     * Read a run of blocks of a file into the cache with a single read. Must
+     * be called with <tt>lock</tt> held, after <tt>makeRoom()</tt>; the lock
+     * is released during the read, and the blocks are busy meanwhile.
+     *
+     * @param	demanded	<tt>true</tt> if a reader is waiting for the
+     *				first block, and the rest are read ahead.
+     * @return	the first block.
+     */
+    private Block load(FileEntry entry, int number, int count,
+		       boolean demanded) {
+	// the blocks stay busy until their contents arrive
+	Block[] loading = new Block[count];
+	for (int i=0; i<count; i++) {
+	    loading[i] = allocate(entry, number+i);
+	    loading[i].busy = true;
+	}
+
+	byte[] buffer = new byte[count*blockSize];
+	OpenFile file = entry.file;
+
+	lock.release();
+	int read = file.read(number*blockSize, buffer, 0, count*blockSize);
+	lock.acquire();
+
+	read = Math.max(0, read);
+
+	for (int i=0; i<count; i++) {
+	    Block block = loading[i];
+
+	    int amount = Math.max(0, Math.min(blockSize, read - i*blockSize));
+	    System.arraycopy(buffer, i*blockSize, block.data, 0, amount);
+	    Arrays.fill(block.data, amount, blockSize, (byte) 0);
+	    block.busy = false;
+
+	    // blocks read ahead are the first to go if they are never used
+	    if (i > 0 || !demanded) {
+		block.used = false;
+		block.readAhead = true;
+	    }
+	}
+	blockIdle.wakeAll();
+
+	return loading[0];
+    }
+
+    /**
+     * Ask the read-ahead thread to read blocks of a file into the cache,
+     * starting it if this is the first request.
+     */
+    private void requestReadAhead(FileEntry entry, int number, int count) {
+	if (readAheads.size() >= maxReadAheads)
+	    return;
+
+	if (readAheadThread == null) {
+	    readAheadThread = new KThread(new Runnable() {
+		    public void run() { readAheadLoop(); }
+		});
+	    readAheadThread.setName("read-ahead").fork();
+	}
+
+	readAheads.add(new ReadAhead(entry, number, count));
+	readAheadWanted.wake();
+    }
+
+    private void readAheadLoop() {
+	lock.acquire();
+	while (true) {
+	    while (readAheads.isEmpty())
+		readAheadWanted.sleep();
+
+	    ReadAhead request = readAheads.removeFirst();
+	    readAhead(request.entry, request.number, request.count);
+	}
+    }
+
+    /**
+     * Read the blocks of a file that are not already cached, from the first
+     * one not cached up to the next one that is. Nothing is read once the
+     * file is closed. Must be called with <tt>lock</tt> held.
+     */
+    private void readAhead(FileEntry entry, int number, int count) {
+	while (entry.references > 0) {
+	    while (count > 0 && entry.blocks.containsKey(number)) {
+		number++;
+		count--;
+	    }
+
+	    int fileBlocks = (entry.length + blockSize - 1) / blockSize;
+	    int run = 0;
+	    while (run < count && number+run < fileBlocks &&
+		   !entry.blocks.containsKey(number+run))
+		run++;
+	    if (run == 0)
+		return;
+
+	    // if the lock was released, the file may have been closed
+	    if (makeRoom(run)) {
+		load(entry, number, run, false);
+		return;
+	    }
+	}
+    }
+
+    /**
+     * Make sure at least <tt>count</tt> blocks are free, evicting blocks
+     * chosen by the clock algorithm. Must be called with <tt>lock</tt> held.
+     *
+     * @param	count	the number of free blocks needed.
+     * @return	<tt>true</tt> if the blocks are free, or <tt>false</tt> if
+     *		<tt>lock</tt> was released to write back or wait for a block,
+     *		in which case the caller must look at the cache again.
+     */
+    private boolean makeRoom(int count) {
+	while (numFree() < count) {
+	    Block victim = null;
+	    for (int i=0; i<2*blocks.length && victim == null; i++) {
+		Block block = blocks[hand];
+		hand = (hand+1) % blocks.length;
+
+		if (block.entry == null || block.busy)
+		    continue;
+		if (block.used)
+		    block.used = false;
+		else
+		    victim = block;
+	    }
+
+	    if (victim == null) {
+		blockIdle.sleep();
+		return false;
+	    }
+	    if (victim.dirty) {
+		writeBack(victim);
+		return false;
+	    }
+
+	    evict(victim);
+	}
+
+	return true;
+    }
+
+    private int numFree() {
+	int free = 0;
+	for (int i=0; i<blocks.length; i++) {
+	    if (blocks[i].entry == null)
+		free++;
+	}
+	return free;
+    }
+
+    /**
+     * Assign a free block to the specified block of a file. Must be called
+     * with <tt>lock</tt> held, after <tt>makeRoom()</tt>.
+     */
+    private Block allocate(FileEntry entry, int number) {
+	Block block = null;
+	for (int i=0; block == null; i++) {
+	    Lib.assertTrue(i < blocks.length);
+	    if (blocks[i].entry == null)
+		block = blocks[i];
+	}
+
+	block.entry = entry;
+	block.number = number;
+	block.dirty = false;
+	block.used = true;
+	block.readAhead = false;
+	entry.blocks.put(number, block);
+
+	return block;
+    }
+
+    private void evict(Block block) {
+	Lib.assertTrue(!block.dirty && !block.busy);
+
+	FileEntry entry = block.entry;
+
+	if (block.readAhead)
+	    numReadAheadWasted += blockSize;
+
+	entry.blocks.remove(block.number);
+	block.entry = null;
+
+	if (entry.references == 0 && entry.blocks.isEmpty() &&
+	    files.get(entry.name) == entry)
+	    files.remove(entry.name);
+    }
+
+    /**
+     * Write a dirty block back to its file. Must be called with
+     * <tt>lock</tt> held, which is released during the write; the block is
+     * busy meanwhile.
+     */
+    private void writeBack(Block block) {
+	Lib.assertTrue(block.dirty && !block.busy);
+
+	FileEntry entry = block.entry;
+	int offset = block.number*blockSize;
+	int amount = Math.min(blockSize, entry.length - offset);
+
+	if (amount > 0) {
+	    OpenFile file = entry.file;
+	    block.busy = true;
+
+	    lock.release();
+	    file.write(offset, block.data, 0, amount);
+	    lock.acquire();
+
+	    block.busy = false;
+	    blockIdle.wakeAll();
+	}
+	numWriteBacks++;
+
+	block.dirty = false;
+    }
+
+    /**
+     * Write back every dirty block of a file, and wait for any of its blocks
+     * that are busy. Must be called with <tt>lock</tt> held, which may be
+     * released.
+     *
+     * @return	<tt>true</tt> if the file had no dirty or busy blocks, so
+     *		that <tt>lock</tt> was never released.
+     */
+    private boolean flush(FileEntry entry) {
+	boolean settled = true;
+
+	for (int i=0; i<blocks.length; i++) {
+	    Block block = blocks[i];
+	    if (block.entry != entry)
+		continue;
+
+	    if (block.busy) {
+		blockIdle.sleep();
+		settled = false;
+		i--;
+	    }
+	    else if (block.dirty) {
+		writeBack(block);
+		settled = false;
+	    }
+	}
+
+	return settled;
+    }
+
+    /**
+     * Drop every block of a file without writing it back. Must be called
+     * with <tt>lock</tt> held.
+     */
+    private void discard(FileEntry entry) {
+	for (int i=0; i<blocks.length; i++) {
+	    if (blocks[i].entry == entry) {
+		Lib.assertTrue(!blocks[i].busy);
+		if (blocks[i].readAhead)
+		    numReadAheadWasted += blockSize;
+		blocks[i].entry = null;
+		blocks[i].dirty = false;
+	    }
+	}
+	entry.blocks.clear();
+    }
+
+    /**
+     * A file with open references or cached blocks.
+     */
+    private static class FileEntry {
+	FileEntry(String name) {
+	    this.name = name;
+	}
+
+	String name;
+	/** The underlying file, while <tt>references</tt> is positive. */
+	OpenFile file = null;
+	int references = 0;
+	/** The length of the file, including any data not yet written back. */
+	int length;
+	/** The cached blocks of this file, by block number. */
+	HashMap<Integer, Block> blocks = new HashMap<Integer, Block>();
+    }
+
+    /**
+     * A buffer in the cache.
+     */
+    private static class Block {
+	/** The file this block belongs to, or <tt>null</tt> if it is free. */
+	FileEntry entry = null;
+	int number;
+	byte[] data = new byte[blockSize];
+	boolean dirty = false, used = false;
+	/** Set while the block is read or written back without the lock. */
+	boolean busy = false;
+	/** Set if the block was read ahead, until it is first used. */
+	boolean readAhead = false;
+    }
+
+    /**
+     * A run of blocks of a file for the read-ahead thread to read.
+     */
+    private static class ReadAhead {
+	ReadAhead(FileEntry entry, int number, int count) {
+	    this.entry = entry;
+	    this.number = number;
+	    this.count = count;
+	}
+
+	FileEntry entry;
+	int number, count;
+    }
+
+    /**
+     * A reference to an open file, whose reads and writes go through the
+     * cache.
+     */
+    private class CachedOpenFile extends OpenFileWithPosition {
+	CachedOpenFile(FileEntry entry) {
+	    super(CachedFileSystem.this, entry.name);
+
+	    this.entry = entry;
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    Lib.assertTrue(offset >= 0 && length >= 0 &&
+			   offset+length <= buf.length);
+
+	    lock.acquire();
+
+	    if (!open || pos < 0) {
+		lock.release();
+		return -1;
+	    }
+
+	    length = Math.max(0, Math.min(length, entry.length - pos));
+
+	    boolean sequential = (pos == nextPosition);
+	    if (!sequential) {
+		window = 0;
+		aheadEnd = 0;
+	    }
+	    else if (window == 0) {
+		window = readAhead;
+	    }
+
+	    int amount = 0;
+	    while (amount < length) {
+		int number = (pos+amount) / blockSize;
+		int blockOffset = (pos+amount) % blockSize;
+		int chunk = Math.min(length-amount, blockSize-blockOffset);
+
+		Block block = getBlock(entry, number, true,
+				       sequential ? window : 1);
+		System.arraycopy(block.data, blockOffset,
+				 buf, offset+amount, chunk);
+
+		amount += chunk;
+	    }
+
+	    nextPosition = pos+amount;
+	    if (sequential && amount > 0)
+		readAheadFrom((nextPosition + blockSize - 1) / blockSize);
+
+	    lock.release();
+
+	    return amount;
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+	    Lib.assertTrue(offset >= 0 && length >= 0 &&
+			   offset+length <= buf.length);
+
+	    lock.acquire();
+
+	    if (!open || pos < 0) {
+		lock.release();
+		return -1;
+	    }
+
+	    int amount = 0;
+	    while (amount < length) {
+		int number = (pos+amount) / blockSize;
+		int blockOffset = (pos+amount) % blockSize;
+		int chunk = Math.min(length-amount, blockSize-blockOffset);
+
+		// a block that is overwritten entirely need not be read
+		boolean load = chunk < blockSize &&
+		    number*blockSize < entry.length;
+
+		Block block = getBlock(entry, number, load, 1);
+		System.arraycopy(buf, offset+amount,
+				 block.data, blockOffset, chunk);
+		block.dirty = true;
+
+		amount += chunk;
+		entry.length = Math.max(entry.length, pos+amount);
+	    }
+
+	    lock.release();
+
+	    return amount;
+	}
+
+	/**
+	 * Keep the next window of the file read ahead of a sequential reader,
+	 * asking for another only once the reader is within half a window of
+	 * the end of the last. Must be called with <tt>lock</tt> held.
+	 *
+	 * @param	next	the block after the last one read.
+	 */
+	private void readAheadFrom(int next) {
+	    if (aheadEnd - next > window/2)
+		return;
+
+	    int number = Math.max(next, aheadEnd);
+	    requestReadAhead(entry, number, window);
+	    aheadEnd = number + window;
+	    window = Math.min(maxReadAhead, 2*window);
+	}
+
+	public int length() {
+	    return entry.length;
+	}
+
+	public boolean sync() {
+	    lock.acquire();
+
+	    if (!open) {
+		lock.release();
+		return false;
+	    }
+
+	    // the file system below may buffer what was written back, too
+	    flush(entry);
+	    boolean synced = entry.file.sync();
+
+	    lock.release();
+
+	    return synced;
+	}
+
+	public void close() {
+	    lock.acquire();
+
+	    if (open) {
+		open = false;
+
+		flush(entry);
+		if (--entry.references == 0) {
+		    entry.file.close();
+		    entry.file = null;
+
+		    if (entry.blocks.isEmpty() && files.get(entry.name) == entry)
+			files.remove(entry.name);
+		}
+	    }
+
+	    lock.release();
+	}
+
+	private FileEntry entry;
+	private boolean open = true;
+	/** The position a read must start at to continue sequentially. */
+	private int nextPosition = 0;
+	/** The number of blocks to read ahead next, or 0 if not sequential. */
+	private int window = 0;
+	/** The block after the last one asked to be read ahead. */
+	private int aheadEnd = 0;
+    }
+
+    private FileSystem fileSystem;
+    private Block[] blocks;
+    /** The next block the clock algorithm considers. */
+    private int hand = 0;
+    /** The first and largest number of blocks to read ahead at once. */
+    private int readAhead, maxReadAhead;
+    /** The runs of blocks waiting for the read-ahead thread. */
+    private LinkedList<ReadAhead> readAheads = new LinkedList<ReadAhead>();
+    private KThread readAheadThread = null;
+
+    /** Statistics, updated with <tt>lock</tt> held. */
+    private int numHits = 0, numMisses = 0, numWriteBacks = 0;
+    private int numReadAheadHits = 0, numReadAheadWasted = 0;
+    /** Files with open references or cached blocks, by name. */
+    private HashMap<String, FileEntry> files = new HashMap<String, FileEntry>();
+    private Lock lock = new Lock();
+    /** Signalled when a busy block is no longer busy. */
+    private Condition blockIdle = new Condition(lock);
+    /** Signalled when a run of blocks is to be read ahead. */
+    private Condition readAheadWanted = new Condition(lock);
+
+    private static final int blockSize = 1024;
+    /** The most runs of blocks that may wait to be read ahead. */
+    private static final int maxReadAheads = 16;
+}
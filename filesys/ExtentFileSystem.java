@@ -0,0 +1,794 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.filesys.*;
+
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.StringTokenizer;
+
+/**
+ * A file system stored on the simulated disk, <tt>Machine.disk()</tt>. Files
+ * are made of extents of consecutive sectors, described by inodes, and named
+ * by a single root directory.
+ *
+ * <p>
+ * The disk is laid out as a superblock in sector 0, then the free-space
+ * bitmap, then the inode table, one inode per sector, then the sectors that
+ * hold file contents. Inode 0 is the root directory, a file of fixed-size
+ * entries each holding an inode number and a name. The bitmap, every inode
+ * and the directory are cached in memory when the disk is mounted; changes to
+ * them are written through to the disk as they are made. File contents are
+ * not cached, and each transfer reads or writes the disk directly, one
+ * request per run of consecutive sectors.
+ *
+ * <p>
+ * The disk is mounted on first use, from a kernel thread. A disk without a
+ * valid superblock, or any disk if the <tt>nachos.conf</tt> key
+ * <tt>ExtentFileSystem.format</tt> is true, is formatted first. The files
+ * in the comma-separated list <tt>ExtentFileSystem.copyIn</tt> are then
+ * copied from the stub file system if the disk does not have them yet, so
+ * that, for example, the shell can be loaded from the disk. The number of
+ * inodes is given by <tt>ExtentFileSystem.numInodes</tt>.
+ */
+public class ExtentFileSystem implements FileSystem {
+    /**
+     * Allocate a new file system on the machine's disk.
+     */
+    public ExtentFileSystem() {
+	Lib.assertTrue(Machine.disk() != null,
+		       "ExtentFileSystem requires Machine.disk");
+
+	disk = new SynchDisk(Machine.disk());
+	sectorSize = disk.getSectorSize();
+	numSectors = disk.getNumSectors();
+	Lib.assertTrue(sectorSize >= minSectorSize &&
+		       sectorSize % entryLength == 0);
+
+	numInodes = Config.getInteger("ExtentFileSystem.numInodes", 64);
+	Lib.assertTrue(numInodes >= 2);
+
+	freeMap = new FreeMap(numSectors, 1, sectorSize);
+	inodeTable = 1 + FreeMap.getNumMapSectors(numSectors, sectorSize);
+	dataStart = inodeTable + numInodes;
+	Lib.assertTrue(dataStart < numSectors, "disk too small for file system");
+
+	inodes = new Inode[numInodes];
+	for (int i=0; i<numInodes; i++)
+	    inodes[i] = new Inode(i, inodeTable+i, sectorSize);
+	root = inodes[0];
+
+	allocationHint = dataStart;
+    }
+
+    public OpenFile open(String name, boolean create) {
+	lock.acquire();
+	mount();
+
+	Inode inode = null;
+	Entry entry = directory.get(name);
+	if (entry != null) {
+	    inode = inodes[entry.inode];
+	    if (create)
+		truncate(inode);
+	}
+	else if (create) {
+	    inode = createFile(name);
+	}
+
+	if (inode != null)
+	    inode.openCount++;
+
+	lock.release();
+
+	if (inode == null)
+	    return null;
+
+	return new ExtentOpenFile(name, inode);
+    }
+
+    public boolean remove(String name) {
+	lock.acquire();
+	mount();
+
+	Entry entry = directory.remove(name);
+	if (entry == null) {
+	    lock.release();
+	    return false;
+	}
+
+	writeEntry(entry.slot, 0, "");
+	usedSlots.clear(entry.slot);
+
+	// an open file keeps its contents until it is closed
+	Inode inode = inodes[entry.inode];
+	if (inode.openCount > 0)
+	    inode.removed = true;
+	else
+	    release(inode);
+
+	lock.release();
+
+	return true;
+    }
+
+    /**
+     * Test this file system. A file is written and read back, then grown
+     * after a second file has taken the sectors following it, so that it
+     * needs a second extent. Two threads then write either half of one of its
+     * sectors at once, and neither may undo the other's writes. A file
+     * removed while open must still read back until it is closed, and then
+     * give back its sectors. Last, the metadata
+     * cached in memory is read again from the disk, and the files must read
+     * back unchanged. The files are removed afterwards.
+     */
+    public void selfTest() {
+	lock.acquire();
+	mount();
+	int free = freeMap.getNumFree(), freeInodes = 0;
+	for (int i=1; i<numInodes; i++) {
+	    if (inodes[i].type == Inode.typeFree)
+		freeInodes++;
+	}
+	lock.release();
+
+	int small = sectorSize + sectorSize/2, large = 4*minReserve*sectorSize;
+	if (free < 4*large/sectorSize || freeInodes < 3)
+	    return;
+
+	// write a file and read it back
+	OpenFile first = open("extenttest0", true);
+	Lib.assertTrue(first != null, "ExtentFileSystem test: open failed");
+	byte[] data = pattern(large, 0), check = new byte[large];
+	Lib.assertTrue(first.write(0, data, 0, small) == small);
+	Lib.assertTrue(first.length() == small);
+	Lib.assertTrue(first.read(0, check, 0, large) == small);
+	for (int i=0; i<small; i++)
+	    Lib.assertTrue(check[i] == data[i],
+			   "ExtentFileSystem test: wrong contents");
+
+	// a second file takes the sectors after the first, which must then
+	// grow into another extent
+	OpenFile second = open("extenttest1", true);
+	Lib.assertTrue(second != null, "ExtentFileSystem test: open failed");
+	byte[] secondData = pattern(small, 1);
+	Lib.assertTrue(second.write(0, secondData, 0, small) == small);
+	Lib.assertTrue(first.write(small, data, small, large-small)
+		       == large-small);
+	Lib.assertTrue(inodes[directory.get("extenttest0").inode].numExtents > 1,
+		       "ExtentFileSystem test: file did not take a new extent");
+	Lib.assertTrue(first.read(0, check, 0, large) == large &&
+		       Arrays.equals(check, data),
+		       "ExtentFileSystem test: wrong contents across extents");
+
+	// concurrent writes to either half of a sector must both survive
+	final OpenFile shared = first;
+	final int half = sectorSize/2, rounds = 4;
+	KThread[] writers = new KThread[2];
+	for (int i=0; i<2; i++) {
+	    final int start = i*half;
+	    writers[i] = new KThread(new Runnable() {
+		    public void run() {
+			for (int round=1; round<=rounds; round++) {
+			    byte[] part = new byte[half];
+			    Arrays.fill(part, (byte) (start + round));
+			    shared.write(start, part, 0, half);
+			}
+		    }
+		});
+	    writers[i].setName("extent writer " + i).fork();
+	}
+	writers[0].join();
+	writers[1].join();
+	Lib.assertTrue(first.read(0, check, 0, sectorSize) == sectorSize);
+	for (int i=0; i<sectorSize; i++)
+	    Lib.assertTrue(check[i] == (byte) ((i < half ? 0 : half) + rounds),
+			   "ExtentFileSystem test: concurrent write lost");
+	Lib.assertTrue(first.write(0, data, 0, sectorSize) == sectorSize);
+
+	first.close();
+	second.close();
+
+	// a removed file stays readable until it is closed
+	OpenFile removed = open("extenttest2", true);
+	Lib.assertTrue(removed != null, "ExtentFileSystem test: open failed");
+	Lib.assertTrue(removed.write(0, data, 0, large) == large);
+	Inode inode = inodes[directory.get("extenttest2").inode];
+	Lib.assertTrue(remove("extenttest2"));
+	Lib.assertTrue(open("extenttest2", false) == null,
+		       "ExtentFileSystem test: removed file still named");
+	Lib.assertTrue(removed.read(0, check, 0, large) == large &&
+		       Arrays.equals(check, data),
+		       "ExtentFileSystem test: removed file lost its contents");
+
+	lock.acquire();
+	int held = freeMap.getNumFree() + inode.getNumSectors();
+	lock.release();
+	removed.close();
+	lock.acquire();
+	Lib.assertTrue(inode.type == Inode.typeFree &&
+		       freeMap.getNumFree() == held,
+		       "ExtentFileSystem test: removed file kept its sectors");
+
+	// read everything back from the disk, as a new mount would
+	directory.clear();
+	usedSlots.clear();
+	load();
+	loadDirectory();
+	lock.release();
+
+	Lib.assertTrue(!directory.containsKey("extenttest2"));
+	first = open("extenttest0", false);
+	second = open("extenttest1", false);
+	Lib.assertTrue(first != null && second != null,
+		       "ExtentFileSystem test: files lost on remount");
+	Lib.assertTrue(first.length() == large && second.length() == small);
+	Lib.assertTrue(first.read(0, check, 0, large) == large &&
+		       Arrays.equals(check, data),
+		       "ExtentFileSystem test: wrong contents after remount");
+	byte[] secondCheck = new byte[small];
+	Lib.assertTrue(second.read(0, secondCheck, 0, small) == small &&
+		       Arrays.equals(secondCheck, secondData),
+		       "ExtentFileSystem test: wrong contents after remount");
+	first.close();
+	second.close();
+
+	remove("extenttest0");
+	remove("extenttest1");
+    }
+
+    private static byte[] pattern(int length, int seed) {
+	byte[] data = new byte[length];
+	for (int i=0; i<length; i++)
+	    data[i] = (byte) (i*7 + seed);
+	return data;
+    }
+
+    /**
+     * Read the file system's metadata from the disk, formatting it if
+     * necessary, unless this was already done. Must be called with
+     * <tt>lock</tt> held.
+     */
+    private void mount() {
+	if (mounted)
+	    return;
+	mounted = true;
+
+	byte[] data = new byte[sectorSize];
+	disk.read(0, 1, data, 0);
+
+	boolean valid = Lib.bytesToInt(data, 0) == magic &&
+	    Lib.bytesToInt(data, 4) == numSectors &&
+	    Lib.bytesToInt(data, 8) == numInodes;
+
+	if (!valid || Config.getBoolean("ExtentFileSystem.format", false))
+	    format();
+	else
+	    load();
+
+	loadDirectory();
+	copyIn();
+    }
+
+    /**
+     * Read the free-space bitmap and the inode table from the disk.
+     */
+    private void load() {
+	freeMap.load(disk);
+
+	// the whole inode table is read with a single request
+	byte[] table = new byte[numInodes*sectorSize];
+	disk.read(inodeTable, numInodes, table, 0);
+	for (int i=0; i<numInodes; i++)
+	    inodes[i].decode(table, i*sectorSize);
+    }
+
+    /**
+     * Write an empty file system to the disk.
+     */
+    private void format() {
+	byte[] data = new byte[numInodes*sectorSize];
+
+	disk.write(inodeTable, numInodes, data, 0);
+	for (int i=0; i<numInodes; i++)
+	    inodes[i].decode(data, i*sectorSize);
+
+	freeMap.clear();
+	freeMap.mark(0, dataStart);
+	freeMap.flush(disk);
+
+	root.type = Inode.typeDirectory;
+	root.store(disk);
+
+	data = new byte[sectorSize];
+	Lib.bytesFromInt(data, 0, magic);
+	Lib.bytesFromInt(data, 4, numSectors);
+	Lib.bytesFromInt(data, 8, numInodes);
+	disk.write(0, 1, data, 0);
+    }
+
+    private void loadDirectory() {
+	byte[] data = new byte[root.length];
+	readData(root, 0, data, 0, data.length);
+
+	for (int slot=0; slot<data.length/entryLength; slot++) {
+	    int inode = Lib.bytesToInt(data, slot*entryLength);
+	    if (inode == 0)
+		continue;
+
+	    String name = Lib.bytesToString(data, slot*entryLength + 4,
+					    maxNameLength);
+	    directory.put(name, new Entry(inode, slot));
+	    usedSlots.set(slot);
+	}
+    }
+
+    private void copyIn() {
+	String names = Config.getString("ExtentFileSystem.copyIn");
+	if (names == null || Machine.stubFileSystem() == null)
+	    return;
+
+	byte[] buf = new byte[copyBufferSize];
+
+	StringTokenizer tokens = new StringTokenizer(names, " \t,");
+	while (tokens.hasMoreTokens()) {
+	    String name = tokens.nextToken();
+	    if (directory.containsKey(name))
+		continue;
+
+	    OpenFile source = Machine.stubFileSystem().open(name, false);
+	    if (source == null)
+		continue;
+
+	    Inode inode = createFile(name);
+	    if (inode != null) {
+		int pos = 0, read;
+		while ((read = source.read(pos, buf, 0, buf.length)) > 0) {
+		    if (writeData(inode, pos, buf, 0, read) < read)
+			break;
+		    pos += read;
+		}
+		trim(inode);
+	    }
+
+	    source.close();
+	}
+    }
+
+    /**
+     * Allocate an inode for a new, empty file and enter it in the directory.
+     * Must be called with <tt>lock</tt> held.
+     *
+     * @return	the new file's inode, or <tt>null</tt> if the name is not
+     *		valid or the file system is full.
+     */
+    private Inode createFile(String name) {
+	int nameLength = name.getBytes().length;
+	if (nameLength == 0 || nameLength > maxNameLength)
+	    return null;
+
+	Inode inode = null;
+	for (int i=1; i<numInodes; i++) {
+	    if (inodes[i].type == Inode.typeFree) {
+		inode = inodes[i];
+		break;
+	    }
+	}
+	if (inode == null)
+	    return null;
+
+	int slot = usedSlots.nextClearBit(0);
+	if (!writeEntry(slot, inode.number, name))
+	    return null;
+
+	inode.type = Inode.typeFile;
+	inode.length = 0;
+	inode.numExtents = 0;
+	inode.removed = false;
+	inode.store(disk);
+
+	directory.put(name, new Entry(inode.number, slot));
+	usedSlots.set(slot);
+
+	return inode;
+    }
+
+    /**
+     * Write a directory entry. Must be called with <tt>lock</tt> held.
+     *
+     * @return	<tt>true</tt> if the entry was written.
+     */
+    private boolean writeEntry(int slot, int inode, String name) {
+	byte[] data = new byte[entryLength];
+	Lib.bytesFromInt(data, 0, inode);
+	byte[] nameBytes = name.getBytes();
+	System.arraycopy(nameBytes, 0, data, 4, nameBytes.length);
+
+	return writeData(root, slot*entryLength, data, 0, entryLength)
+	    == entryLength;
+    }
+
+    /**
+     * Free every sector of a file and set its length to 0. Must be called
+     * with <tt>lock</tt> held.
+     */
+    private void truncate(Inode inode) {
+	inode.length = 0;
+	trim(inode);
+    }
+
+    /**
+     * Free the sectors allocated to a file past its end, and write its inode
+     * back, once no transfer is using them. Must be called with <tt>lock</tt>
+     * held.
+     */
+    private void trim(Inode inode) {
+	// the sectors must not be freed, and reallocated, under a transfer
+	while (inode.transfers > 0)
+	    transfersDone.sleep();
+
+	int keep = (inode.length + sectorSize - 1) / sectorSize;
+
+	int total = 0, numExtents = 0;
+	for (int i=0; i<inode.numExtents; i++) {
+	    int first = inode.extents[2*i];
+	    int count = inode.extents[2*i+1];
+	    int kept = Math.max(0, Math.min(count, keep-total));
+
+	    if (kept < count) {
+		freeMap.free(first+kept, count-kept);
+
+		// let the next new file start where this one now ends
+		if (allocationHint == first+count)
+		    allocationHint = first+kept;
+	    }
+	    if (kept > 0) {
+		inode.extents[2*i+1] = kept;
+		numExtents = i+1;
+	    }
+	    total += kept;
+	}
+	inode.numExtents = numExtents;
+
+	inode.store(disk);
+	freeMap.flush(disk);
+    }
+
+    /**
+     * Free a file's sectors and inode. Must be called with <tt>lock</tt>
+     * held.
+     */
+    private void release(Inode inode) {
+	inode.type = Inode.typeFree;
+	inode.removed = false;
+	truncate(inode);
+    }
+
+    /**
+     * Allocate sectors to a file until it can hold the specified number of
+     * bytes, or the disk or the file's inode is full. Must be called with
+     * <tt>lock</tt> held.
+     *
+     * <p>
+     * A growing file is given more sectors than it needs, as many again as it
+     * has, between <tt>minReserve</tt> and <tt>maxReserve</tt>, so that files
+     * written at the same time take turns in large runs rather than
+     * alternating sector by sector. What a file does not use is freed when
+     * it is closed.
+     *
+     * @return	the number of bytes the file's sectors can hold.
+     */
+    private int grow(Inode inode, int size) {
+	int needed = (size + sectorSize - 1)/sectorSize - inode.getNumSectors();
+	if (needed <= 0)
+	    return inode.getNumSectors()*sectorSize;
+
+	int reserve = Math.max(minReserve,
+			       Math.min(maxReserve, inode.getNumSectors()));
+
+	int[] run = new int[1];
+	while (needed > 0) {
+	    int end = inode.getEnd();
+	    int wanted = Math.max(needed, reserve);
+
+	    // grow the last extent in place if the sectors after it are free
+	    int count = (end == -1) ? 0 : freeMap.freeRun(end, wanted);
+	    if (count > 0) {
+		freeMap.mark(end, count);
+		inode.append(end, count);
+	    }
+	    else {
+		if (inode.numExtents == Inode.getMaxExtents(sectorSize))
+		    break;
+
+		int hint = (end == -1) ? allocationHint : end;
+		int first = freeMap.allocate(hint, wanted, run);
+		if (first == -1)
+		    break;
+
+		count = run[0];
+		inode.append(first, count);
+	    }
+
+	    needed -= count;
+	    allocationHint = inode.getEnd();
+	}
+
+	inode.store(disk);
+	freeMap.flush(disk);
+
+	return inode.getNumSectors()*sectorSize;
+    }
+
+    /**
+     * Read part of a file.
+     *
+     * @return	the number of bytes read.
+     */
+    private int readData(Inode inode, int pos, byte[] buf, int offset,
+			 int length) {
+	boolean held = lock.isHeldByCurrentThread();
+
+	if (!held) {
+	    lock.acquire();
+	    inode.transfers++;
+	}
+	length = Math.max(0, Math.min(length, inode.length - pos));
+	if (!held)
+	    lock.release();
+
+	int amount = transfer(inode, pos, buf, offset, length, false);
+
+	if (!held) {
+	    lock.acquire();
+	    unpin(inode);
+	    lock.release();
+	}
+
+	return amount;
+    }
+
+    /**
+     * Write part of a file, allocating sectors for it as needed.
+     *
+     * @return	the number of bytes written, which is less than requested only
+     *		if the file could not grow.
+     */
+    private int writeData(Inode inode, int pos, byte[] buf, int offset,
+			  int length) {
+	boolean held = lock.isHeldByCurrentThread();
+
+	if (!held) {
+	    lock.acquire();
+	    inode.transfers++;
+	}
+
+	// a write past the end of the file fills the gap with zeroes, and
+	// writes nothing if the disk fills first
+	if (pos > inode.length) {
+	    int gap = pos - inode.length;
+	    if (writeData(inode, inode.length, new byte[gap], 0, gap) < gap) {
+		if (!held) {
+		    unpin(inode);
+		    lock.release();
+		}
+		return 0;
+	    }
+	}
+
+	int capacity = grow(inode, pos+length);
+	length = Math.max(0, Math.min(length, capacity - pos));
+	int oldLength = inode.length;
+
+	if (!held)
+	    lock.release();
+
+	int amount = transfer(inode, pos, buf, offset, length, true, oldLength);
+
+	if (!held)
+	    lock.acquire();
+	if (pos+amount > inode.length) {
+	    inode.length = pos+amount;
+	    inode.store(disk);
+	}
+	if (!held) {
+	    unpin(inode);
+	    lock.release();
+	}
+
+	return amount;
+    }
+
+    /**
+     * End a transfer that ran without the lock, letting the file's sectors be
+     * freed once no other is in progress. Must be called with <tt>lock</tt>
+     * held.
+     */
+    private void unpin(Inode inode) {
+	if (--inode.transfers == 0)
+	    transfersDone.wakeAll();
+    }
+
+    private int transfer(Inode inode, int pos, byte[] buf, int offset,
+			 int length, boolean write) {
+	return transfer(inode, pos, buf, offset, length, write, inode.length);
+    }
+
+    /**
+     * Transfer part of a file between the disk and a buffer, with one disk
+     * request for each run of consecutive sectors. Partial sectors at either
+     * end of a write are read first, unless they lie past the old end of the
+     * file. The lock is held only while looking up where each run is; unless
+     * the caller holds it throughout, the inode's <tt>transfers</tt> count
+     * keeps the sectors from being freed meanwhile, and a write waits until
+     * no other is writing any sector of its run, so that a partial sector
+     * read before being rewritten cannot undo a concurrent write to it.
+     */
+    private int transfer(Inode inode, int pos, byte[] buf, int offset,
+			 int length, boolean write, int oldLength) {
+	boolean held = lock.isHeldByCurrentThread();
+	int[] run = new int[1];
+
+	int amount = 0;
+	while (amount < length) {
+	    int fileSector = (pos+amount) / sectorSize;
+	    int sectorOffset = (pos+amount) % sectorSize;
+
+	    if (!held)
+		lock.acquire();
+	    int sector = inode.map(fileSector, run);
+	    int chunk = 0, count = 0;
+	    if (sector != -1) {
+		chunk = Math.min(length-amount, run[0]*sectorSize - sectorOffset);
+		count = (sectorOffset + chunk + sectorSize - 1) / sectorSize;
+
+		if (write && !held) {
+		    while (!writing.get(sector, sector+count).isEmpty())
+			writeDone.sleep();
+		    writing.set(sector, sector+count);
+		}
+	    }
+	    if (!held)
+		lock.release();
+
+	    if (sector == -1)
+		break;
+
+	    if (sectorOffset == 0 && chunk == count*sectorSize) {
+		if (write)
+		    disk.write(sector, count, buf, offset+amount);
+		else
+		    disk.read(sector, count, buf, offset+amount);
+	    }
+	    else if (!write) {
+		byte[] data = new byte[count*sectorSize];
+		disk.read(sector, count, data, 0);
+		System.arraycopy(data, sectorOffset, buf, offset+amount, chunk);
+	    }
+	    else {
+		byte[] data = new byte[count*sectorSize];
+		int lastSector = fileSector + count - 1;
+
+		if (fileSector*sectorSize < oldLength &&
+		    (sectorOffset != 0 || chunk < sectorSize))
+		    disk.read(sector, 1, data, 0);
+		if (count > 1 && (sectorOffset + chunk) % sectorSize != 0 &&
+		    lastSector*sectorSize < oldLength)
+		    disk.read(sector+count-1, 1, data, (count-1)*sectorSize);
+
+		System.arraycopy(buf, offset+amount, data, sectorOffset, chunk);
+		disk.write(sector, count, data, 0);
+	    }
+
+	    if (write && !held) {
+		lock.acquire();
+		writing.clear(sector, sector+count);
+		writeDone.wakeAll();
+		lock.release();
+	    }
+
+	    amount += chunk;
+	}
+
+	return amount;
+    }
+
+    /**
+     * A name in the root directory.
+     */
+    private static class Entry {
+	Entry(int inode, int slot) {
+	    this.inode = inode;
+	    this.slot = slot;
+	}
+
+	int inode;
+	/** The index of this entry in the directory file. */
+	int slot;
+    }
+
+    /**
+     * An open file in this file system.
+     */
+    private class ExtentOpenFile extends OpenFileWithPosition {
+	ExtentOpenFile(String name, Inode inode) {
+	    super(ExtentFileSystem.this, name);
+
+	    this.inode = inode;
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    if (!open || pos < 0)
+		return -1;
+
+	    return readData(inode, pos, buf, offset, length);
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+	    if (!open || pos < 0)
+		return -1;
+
+	    return writeData(inode, pos, buf, offset, length);
+	}
+
+	public int length() {
+	    return inode.length;
+	}
+
+	public void close() {
+	    if (!open)
+		return;
+	    open = false;
+
+	    lock.acquire();
+	    if (--inode.openCount == 0) {
+		if (inode.removed)
+		    release(inode);
+		else
+		    trim(inode);
+	    }
+	    lock.release();
+	}
+
+	private Inode inode;
+	private boolean open = true;
+    }
+
+    private SynchDisk disk;
+    private int sectorSize, numSectors, numInodes;
+    /** The first sector of the inode table. */
+    private int inodeTable;
+    /** The first sector available for file contents. */
+    private int dataStart;
+
+    private FreeMap freeMap;
+    private Inode[] inodes;
+    private Inode root;
+    /** Where to look for sectors for a file that has none yet. */
+    private int allocationHint;
+
+    /** The root directory's entries, by name. */
+    private HashMap<String, Entry> directory = new HashMap<String, Entry>();
+    /** The directory slots in use. */
+    private BitSet usedSlots = new BitSet();
+
+    private boolean mounted = false;
+    /** Guards all metadata, both in memory and on disk. */
+    private Lock lock = new Lock();
+    /** Signalled when the last transfer of a file's contents finishes. */
+    private Condition transfersDone = new Condition(lock);
+    /** The sectors being written by transfers that do not hold the lock. */
+    private BitSet writing = new BitSet();
+    /** Signalled when a transfer finishes writing a run of sectors. */
+    private Condition writeDone = new Condition(lock);
+
+    private static final int magic = 0x4E414348;
+    private static final int entryLength = 32;
+    private static final int maxNameLength = entryLength - 4;
+    private static final int minSectorSize = 64;
+    private static final int copyBufferSize = 4096;
+    /** The fewest and most extra sectors given to a growing file. */
+    private static final int minReserve = 8, maxReserve = 256;
+}
@@ -0,0 +1,219 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.filesys.*;
+
+import java.util.BitSet;
+
+/**
+ * The free-space bitmap of an <tt>ExtentFileSystem</tt>, one bit per sector,
+ * stored in a run of sectors of the disk. The whole bitmap is kept in memory;
+ * the sectors that change are written back by <tt>flush()</tt>.
+ *
+ * <p>
+ * Allocation favors locality: a new run is taken from the first free space
+ * at or after a hint, normally the end of the file being extended, so that
+ * a file's sectors and files created together stay close on the disk.
+ */
+public class FreeMap {
+    /**
+     * Allocate a new bitmap with every sector free.
+     *
+     * @param	numSectors	the number of sectors on the disk.
+     * @param	firstSector	the first disk sector the bitmap is stored in.
+     * @param	sectorSize	the number of bytes in a sector.
+     */
+    public FreeMap(int numSectors, int firstSector, int sectorSize) {
+	this.numSectors = numSectors;
+	this.firstSector = firstSector;
+	this.sectorSize = sectorSize;
+
+	dirty = new boolean[getNumMapSectors(numSectors, sectorSize)];
+    }
+
+    /**
+     * Return the number of sectors needed to store the bitmap of a disk.
+     *
+     * @param	numSectors	the number of sectors on the disk.
+     * @param	sectorSize	the number of bytes in a sector.
+     * @return	the number of sectors the bitmap occupies.
+     */
+    public static int getNumMapSectors(int numSectors, int sectorSize) {
+	int bitsPerSector = sectorSize*8;
+	return (numSectors + bitsPerSector - 1) / bitsPerSector;
+    }
+
+    /**
+     * Read the bitmap from the disk.
+     *
+     * @param	disk	the disk.
+     */
+    public void load(SynchDisk disk) {
+	byte[] data = new byte[dirty.length*sectorSize];
+	disk.read(firstSector, dirty.length, data, 0);
+
+	used.clear();
+	for (int i=0; i<numSectors; i++) {
+	    if ((data[i/8] & (1 << (i%8))) != 0)
+		used.set(i);
+	}
+	for (int i=0; i<dirty.length; i++)
+	    dirty[i] = false;
+    }
+
+    /**
+     * Write the sectors of the bitmap that changed since it was last loaded
+     * or flushed back to the disk.
+     *
+     * @param	disk	the disk.
+     */
+    public void flush(SynchDisk disk) {
+	byte[] data = new byte[sectorSize];
+
+	for (int s=0; s<dirty.length; s++) {
+	    if (!dirty[s])
+		continue;
+
+	    for (int i=0; i<sectorSize; i++) {
+		int bits = 0;
+		for (int b=0; b<8; b++) {
+		    if (used.get((s*sectorSize + i)*8 + b))
+			bits |= 1 << b;
+		}
+		data[i] = (byte) bits;
+	    }
+
+	    disk.write(firstSector+s, 1, data, 0);
+	    dirty[s] = false;
+	}
+    }
+
+    /**
+     * Mark every sector free, and the whole bitmap as needing to be written.
+     */
+    public void clear() {
+	used.clear();
+	for (int i=0; i<dirty.length; i++)
+	    dirty[i] = true;
+    }
+
+    /**
+     * Mark a run of sectors in use.
+     *
+     * @param	sector	the first sector.
+     * @param	count	the number of sectors.
+     */
+    public void mark(int sector, int count) {
+	Lib.assertTrue(used.nextSetBit(sector) == -1 ||
+		       used.nextSetBit(sector) >= sector+count);
+
+	used.set(sector, sector+count);
+	touch(sector, count);
+    }
+
+    /**
+     * Mark a run of sectors free.
+     *
+     * @param	sector	the first sector.
+     * @param	count	the number of sectors.
+     */
+    public void free(int sector, int count) {
+	Lib.assertTrue(used.nextClearBit(sector) >= sector+count);
+
+	used.clear(sector, sector+count);
+	touch(sector, count);
+    }
+
+    /**
+     * Return the number of free sectors immediately following a sector.
+     *
+     * @param	sector	the sector to start at.
+     * @param	max	the largest number worth returning.
+     * @return	the length of the free run starting at <i>sector</i>, or
+     *		<i>max</i> if it is longer.
+     */
+    public int freeRun(int sector, int max) {
+	if (sector >= numSectors || used.get(sector))
+	    return 0;
+
+	int end = used.nextSetBit(sector);
+	if (end == -1 || end > numSectors)
+	    end = numSectors;
+
+	return Math.min(max, end-sector);
+    }
+
+    /**
+     * Find and mark in use a run of free sectors, as close as possible after
+     * a hint. The first run of <i>count</i> sectors at or after the hint is
+     * taken, searching round to the start of the disk; if there is none, the
+     * longest shorter run is taken.
+     *
+     * @param	hint	the sector to start looking at.
+     * @param	count	the number of sectors wanted.
+     * @param	run	an array whose first element receives the number of
+     *			sectors actually allocated.
+     * @return	the first sector of the run, or -1 if the disk is full.
+     */
+    public int allocate(int hint, int count, int[] run) {
+	Lib.assertTrue(count > 0);
+
+	if (hint < 0 || hint >= numSectors)
+	    hint = 0;
+
+	int best = -1, bestLength = 0;
+
+	search:
+	for (int pass=0; pass<2; pass++) {
+	    int sector = (pass == 0) ? hint : 0;
+	    int limit = (pass == 0) ? numSectors : hint;
+
+	    while (sector < limit) {
+		sector = used.nextClearBit(sector);
+		if (sector >= limit)
+		    break;
+
+		int length = freeRun(sector, count);
+		if (length == count) {
+		    best = sector;
+		    bestLength = length;
+		    break search;
+		}
+		if (length > bestLength) {
+		    best = sector;
+		    bestLength = length;
+		}
+		sector += length;
+	    }
+	}
+
+	if (best == -1)
+	    return -1;
+
+	mark(best, bestLength);
+	run[0] = bestLength;
+	return best;
+    }
+
+    /**
+     * Return the number of free sectors.
+     *
+     * @return	the number of free sectors.
+     */
+    public int getNumFree() {
+	return numSectors - used.cardinality();
+    }
+
+    private void touch(int sector, int count) {
+	int bitsPerSector = sectorSize*8;
+	for (int s=sector/bitsPerSector; s<=(sector+count-1)/bitsPerSector; s++)
+	    dirty[s] = true;
+    }
+
+    private int numSectors, firstSector, sectorSize;
+    /** The sectors in use. */
+    private BitSet used = new BitSet();
+    /** The sectors of the bitmap that must be written back. */
+    private boolean[] dirty;
+}
@@ -0,0 +1,183 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.filesys.*;
+
+/**
+ * The header of a file in an <tt>ExtentFileSystem</tt>, stored in a sector of
+ * its own. An inode records the type and length of its file, and the extents
+ * holding its contents: runs of consecutive sectors, in file order. A file
+ * written sequentially on a disk with free space after it needs only one
+ * extent, however long it grows.
+ *
+ * <p>
+ * On disk, an inode is its type, its length, and its number of extents, then
+ * the first sector and length of each extent, all as 32-bit integers.
+ */
+public class Inode {
+    /**
+     * Allocate a new, free inode.
+     *
+     * @param	number		the inode number.
+     * @param	sector		the disk sector the inode is stored in.
+     * @param	sectorSize	the number of bytes in a sector.
+     */
+    public Inode(int number, int sector, int sectorSize) {
+	this.number = number;
+	this.sector = sector;
+	this.sectorSize = sectorSize;
+
+	extents = new int[2*getMaxExtents(sectorSize)];
+    }
+
+    /**
+     * Return the number of extents an inode can hold.
+     *
+     * @param	sectorSize	the number of bytes in a sector.
+     * @return	the maximum number of extents in a file.
+     */
+    public static int getMaxExtents(int sectorSize) {
+	return (sectorSize - headerLength) / 8;
+    }
+
+    /**
+     * Set this inode from its on-disk form.
+     *
+     * @param	data	the buffer holding the inode.
+     * @param	offset	the offset of the inode in the buffer.
+     */
+    public void decode(byte[] data, int offset) {
+	type = Lib.bytesToInt(data, offset);
+	length = Lib.bytesToInt(data, offset+4);
+	numExtents = Lib.bytesToInt(data, offset+8);
+	Lib.assertTrue(numExtents >= 0 && 2*numExtents <= extents.length);
+
+	for (int i=0; i<2*numExtents; i++)
+	    extents[i] = Lib.bytesToInt(data, offset + headerLength + i*4);
+    }
+
+    /**
+     * Write this inode back to its sector.
+     *
+     * @param	disk	the disk.
+     */
+    public void store(SynchDisk disk) {
+	byte[] data = new byte[sectorSize];
+
+	Lib.bytesFromInt(data, 0, type);
+	Lib.bytesFromInt(data, 4, length);
+	Lib.bytesFromInt(data, 8, numExtents);
+	for (int i=0; i<2*numExtents; i++)
+	    Lib.bytesFromInt(data, headerLength + i*4, extents[i]);
+
+	disk.write(sector, 1, data, 0);
+    }
+
+    /**
+     * Return the number of sectors allocated to this file.
+     *
+     * @return	the total length of this file's extents.
+     */
+    public int getNumSectors() {
+	int total = 0;
+	for (int i=0; i<numExtents; i++)
+	    total += extents[2*i+1];
+	return total;
+    }
+
+    /**
+     * Return the disk sector holding a sector of this file, and how many of
+     * the sectors after it follow it on the disk.
+     *
+     * @param	fileSector	the sector number within the file.
+     * @param	run		an array whose first element receives the number
+     *				of consecutive disk sectors, starting with the
+     *				one returned, that hold consecutive sectors of
+     *				the file.
+     * @return	the disk sector, or -1 if the file sector is not allocated.
+     */
+    public int map(int fileSector, int[] run) {
+	for (int i=0; i<numExtents; i++) {
+	    int count = extents[2*i+1];
+	    if (fileSector < count) {
+		run[0] = count - fileSector;
+		return extents[2*i] + fileSector;
+	    }
+	    fileSector -= count;
+	}
+
+	return -1;
+    }
+
+    /**
+     * Return the disk sector just past the end of this file's last extent,
+     * where the file could grow without a new extent.
+     *
+     * @return	the end of the last extent, or -1 if the file has none.
+     */
+    public int getEnd() {
+	if (numExtents == 0)
+	    return -1;
+
+	return extents[2*(numExtents-1)] + extents[2*(numExtents-1)+1];
+    }
+
+    /**
+     * Add sectors to the end of this file. Sectors that follow the last
+     * extent on the disk lengthen it rather than starting a new one.
+     *
+     * @param	first	the first disk sector to add.
+     * @param	count	the number of sectors.
+     * @return	<tt>false</tt> if a new extent was needed and this inode has
+     *		no room for it.
+     */
+    public boolean append(int first, int count) {
+	if (numExtents > 0 && first == getEnd()) {
+	    extents[2*(numExtents-1)+1] += count;
+	    return true;
+	}
+
+	if (2*numExtents == extents.length)
+	    return false;
+
+	extents[2*numExtents] = first;
+	extents[2*numExtents+1] = count;
+	numExtents++;
+	return true;
+    }
+
+    /** The type of a free inode. */
+    public static final int typeFree = 0;
+    /** The type of a regular file. */
+    public static final int typeFile = 1;
+    /** The type of a directory. */
+    public static final int typeDirectory = 2;
+
+    /** This inode's number, its index in the inode table. */
+    public int number;
+    /** The sector this inode is stored in. */
+    public int sector;
+    /** The type of the file. */
+    public int type = typeFree;
+    /** The length of the file, in bytes. */
+    public int length = 0;
+    /** The number of extents in use. */
+    public int numExtents = 0;
+    /** The first sector and number of sectors of each extent. */
+    public int[] extents;
+
+    /** The number of open files referring to this inode. */
+    public int openCount = 0;
+    /** Whether this file was removed while open, and must be freed on close. */
+    public boolean removed = false;
+    /**
+     * The number of transfers of the file's contents in progress, which must
+     * finish before any of its sectors are freed.
+     */
+    public int transfers = 0;
+
+    private int sectorSize;
+
+    private static final int headerLength = 12;
+}
@@ -0,0 +1,1170 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.filesys.*;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.BitSet;
+import java.util.StringTokenizer;
+
+/**
+ * A log-structured file system stored on the simulated disk,
+ * <tt>Machine.disk()</tt>. Every block written, whether file data or an
+ * inode, is appended to a log, which is buffered in memory a segment at a
+ * time and written to the disk with one request per segment. Small files
+ * written one after another therefore cost one sequential transfer per
+ * segment, instead of a seek per file.
+ *
+ * <p>
+ * The disk is divided into blocks of <tt>LogFileSystem.blockSize</tt> bytes.
+ * It starts with two checkpoint regions, written alternately, each holding
+ * the inode map: the address of the latest copy of every inode. The rest of
+ * the disk is segments of <tt>LogFileSystem.segmentSize</tt> blocks. The
+ * first block of a segment is its summary, which records the inode and file
+ * block of every block after it, and a sequence number that orders the
+ * segments' writes.
+ *
+ * <p>
+ * A checkpoint is written whenever the cleaner runs, by <tt>sync()</tt>, and
+ * by a background kernel thread that wakes every
+ * <tt>LogFileSystem.cleanerInterval</tt> ticks. When the disk is mounted, the
+ * inode map is read from the newer checkpoint, then rolled forward through
+ * the inodes logged in segments written after it. Changed inodes are logged,
+ * and the segment buffer flushed, whenever a file is closed or removed, so a
+ * file survives a halt once it is closed.
+ *
+ * <p>
+ * The same thread cleans segments whenever fewer than
+ * <tt>LogFileSystem.cleanThreshold</tt> are clean, choosing the segments with
+ * the best ratio of space freed to cost, weighted by their age. Writers also
+ * clean, in the foreground, whenever they start a segment while fewer than
+ * that are clean. A segment is never cleaned if writing back its live blocks,
+ * and the inodes that refer to them, would take a whole segment. A writer
+ * that would take one of the last two clean segments for file data cleans
+ * first, and finds the log full only if no segment is worth cleaning; those
+ * two are kept for inodes and the directory, except the very last, which
+ * only the cleaner may take. A segment whose blocks are all dead is reused
+ * only after a checkpoint that no longer refers to it.
+ *
+ * <p>
+ * Names are kept in a single root directory, inode 0, of fixed-size entries
+ * each holding an inode number and a name. The directory is cached in
+ * memory, as is every inode. Files in the comma-separated list
+ * <tt>LogFileSystem.copyIn</tt> are copied from the stub file system when the
+ * disk is mounted, if the disk does not have them yet.
+ */
+public class LogFileSystem implements FileSystem {
+    /**
+     * Allocate a new log-structured file system on the machine's disk.
+     */
+    public LogFileSystem() {
+	Lib.assertTrue(Machine.disk() != null,
+		       "LogFileSystem requires Machine.disk");
+
+	disk = new SynchDisk(Machine.disk());
+
+	blockSize = Config.getInteger("LogFileSystem.blockSize", 1024);
+	Lib.assertTrue(blockSize >= minBlockSize &&
+		       blockSize % disk.getSectorSize() == 0);
+	sectorsPerBlock = blockSize / disk.getSectorSize();
+	int numBlocks = disk.getNumSectors() / sectorsPerBlock;
+
+	numInodes = Config.getInteger("LogFileSystem.numInodes", 64);
+	segmentBlocks = Config.getInteger("LogFileSystem.segmentSize", 16);
+	dataBlocks = segmentBlocks-1;
+	Lib.assertTrue(numInodes >= 2 && segmentBlocks >= 2 &&
+		       summaryHeader + 8*dataBlocks <= blockSize);
+
+	checkpointBlocks =
+	    (checkpointHeader + 4*numInodes + blockSize-1) / blockSize;
+	firstSegment = 2*checkpointBlocks;
+	numSegments = (numBlocks - firstSegment) / segmentBlocks;
+	Lib.assertTrue(numSegments > reserveSegments+2,
+		       "disk too small for file system");
+
+	maxFileBlocks = (blockSize - inodeHeader) / 4;
+
+	imap = new int[numInodes];
+	inodes = new LogInode[numInodes];
+	live = new int[numSegments];
+	age = new int[numSegments];
+	clean = new boolean[numSegments];
+	segment = new byte[segmentBlocks*blockSize];
+
+	cleanThreshold =
+	    Config.getInteger("LogFileSystem.cleanThreshold",
+			      Math.max(reserveSegments+2, numSegments/4));
+	cleanerInterval =
+	    Config.getInteger("LogFileSystem.cleanerInterval", 100000);
+    }
+
+    public OpenFile open(String name, boolean create) {
+	lock.acquire();
+	mount();
+
+	LogInode inode = null;
+	Entry entry = directory.get(name);
+	if (entry != null) {
+	    inode = inodes[entry.inode];
+	    if (create)
+		truncate(inode);
+	}
+	else if (create) {
+	    inode = createFile(name);
+	}
+
+	if (inode != null)
+	    inode.openCount++;
+
+	lock.release();
+
+	if (inode == null)
+	    return null;
+
+	return new LogOpenFile(name, inode);
+    }
+
+    public boolean remove(String name) {
+	lock.acquire();
+	mount();
+
+	Entry entry = directory.remove(name);
+	if (entry == null) {
+	    lock.release();
+	    return false;
+	}
+
+	if (!writeEntry(entry.slot, 0, "")) {
+	    directory.put(name, entry);
+	    lock.release();
+	    return false;
+	}
+	usedSlots.clear(entry.slot);
+
+	// an open file keeps its contents until it is closed
+	LogInode inode = inodes[entry.inode];
+	if (inode.openCount > 0)
+	    inode.removed = true;
+	else
+	    release(inode);
+
+	logInodes();
+	lock.release();
+
+	return true;
+    }
+
+    /**
+     * Test that the log does not fill up while it still has room. Small files
+     * are written until, with what the disk already holds, two thirds of the
+     * blocks outside the reserved segments are live. A third of them at a
+     * time are then rewritten, several times over, so that the cleaner must
+     * move the others to make room. Every write must complete, and every
+     * file must read back as last written. The files are removed afterwards.
+     */
+    public void selfTest() {
+	lock.acquire();
+	mount();
+	int inUse = 0;
+	for (int s=0; s<numSegments; s++)
+	    inUse += live[s];
+	lock.release();
+
+	// each file takes three data blocks, the last partly, and an inode
+	int fileLength = 3*blockSize - blockSize/4;
+	int target = (numSegments-reserveSegments)*dataBlocks * 2/3;
+	int numFiles = Math.min(numInodes/2, (target-inUse) / 4);
+	if (numFiles <= 0)
+	    return;
+
+	byte[] data = new byte[fileLength], check = new byte[fileLength];
+	byte[] version = new byte[numFiles];
+	for (int round=0; round<10; round++) {
+	    for (int i=0; i<numFiles; i++) {
+		if (round > 0 && i%3 != round%3)
+		    continue;
+
+		OpenFile file = open("logtest" + i, true);
+		Lib.assertTrue(file != null, "LogFileSystem test: open failed");
+
+		version[i] = (byte) (round*numFiles + i);
+		Arrays.fill(data, version[i]);
+		Lib.assertTrue(file.write(data, 0, fileLength) == fileLength,
+			       "LogFileSystem test: log full at " +
+			       (inUse + 4*numFiles) + " of " +
+			       numSegments*dataBlocks + " blocks");
+		file.close();
+	    }
+	}
+
+	for (int i=0; i<numFiles; i++) {
+	    OpenFile file = open("logtest" + i, false);
+	    Lib.assertTrue(file.read(check, 0, fileLength) == fileLength);
+	    file.close();
+
+	    Arrays.fill(data, version[i]);
+	    Lib.assertTrue(Arrays.equals(data, check),
+			   "LogFileSystem test: wrong contents");
+	    remove("logtest" + i);
+	}
+
+	overwriteTest();
+    }
+
+    /**
+     * Test that files can be overwritten for as long as the cleaner can free
+     * space. Files are written until over three fifths of the blocks of the
+     * disk are live, then each is overwritten in turn, several times, so
+     * that writers must clean before the reserved segments would be needed.
+     * Every write must complete, and every file must read back as last
+     * written. The files are removed afterwards.
+     */
+    private void overwriteTest() {
+	lock.acquire();
+	int inUse = 0;
+	for (int s=0; s<numSegments; s++)
+	    inUse += live[s];
+	lock.release();
+
+	// each file takes four data blocks and an inode
+	int fileLength = 4*blockSize;
+	int numFiles = Math.min(numInodes/2,
+				(numSegments*dataBlocks*3/5 - inUse) / 5 + 1);
+	if (numFiles <= 0)
+	    return;
+
+	byte[] data = new byte[fileLength], check = new byte[fileLength];
+	for (int round=0; round<5; round++) {
+	    for (int i=0; i<numFiles; i++) {
+		OpenFile file = open("logtest" + i, true);
+		Lib.assertTrue(file != null, "LogFileSystem test: open failed");
+
+		Arrays.fill(data, (byte) (round*numFiles + i));
+		Lib.assertTrue(file.write(data, 0, fileLength) == fileLength,
+			       "LogFileSystem test: log full overwriting " +
+			       (inUse + 5*numFiles) + " of " +
+			       numSegments*dataBlocks + " blocks");
+		file.close();
+	    }
+	}
+
+	for (int i=0; i<numFiles; i++) {
+	    OpenFile file = open("logtest" + i, false);
+	    Lib.assertTrue(file.read(check, 0, fileLength) == fileLength);
+	    file.close();
+
+	    Arrays.fill(data, (byte) (4*numFiles + i));
+	    Lib.assertTrue(Arrays.equals(data, check),
+			   "LogFileSystem test: wrong contents after overwrite");
+	    remove("logtest" + i);
+	}
+    }
+
+    /**
+     * Read the file system's state from the disk, formatting it if
+     * necessary, and start the cleaner, unless this was already done. Must be
+     * called with <tt>lock</tt> held.
+     */
+    private void mount() {
+	if (mounted)
+	    return;
+	mounted = true;
+
+	int checkpoint = readCheckpoint();
+	if (checkpoint == -1 ||
+	    Config.getBoolean("LogFileSystem.format", false)) {
+	    format();
+	}
+	else {
+	    rollForward(checkpoint);
+	    loadInodes();
+
+	    for (int s=0; s<numSegments; s++)
+		clean[s] = (live[s] == 0);
+	    startSegment(findCleanSegment());
+
+	    checkpoint();
+	}
+
+	loadDirectory();
+	copyIn();
+
+	KThread cleaner = new KThread(new Runnable() {
+		public void run() { cleanerLoop(); }
+	    });
+	cleaner.setName("log cleaner").fork();
+    }
+
+    /**
+     * Write an empty file system to the disk.
+     */
+    private void format() {
+	Arrays.fill(imap, 0);
+	Arrays.fill(inodes, null);
+	Arrays.fill(live, 0);
+	Arrays.fill(age, 0);
+	Arrays.fill(clean, true);
+	sequence = 0;
+
+	inodes[0] = new LogInode(0, maxFileBlocks);
+	inodes[0].type = typeDirectory;
+	inodes[0].dirty = true;
+
+	startSegment(0);
+	checkpoint();
+    }
+
+    /**
+     * Read the newer valid checkpoint region into the inode map.
+     *
+     * @return	the checkpoint's sequence number, or -1 if neither region is
+     *		valid.
+     */
+    private int readCheckpoint() {
+	byte[] data = new byte[2*checkpointBlocks*blockSize];
+	readBlocks(0, 2*checkpointBlocks, data, 0);
+
+	int best = -1, bestSequence = -1;
+	for (int i=0; i<2; i++) {
+	    int offset = i*checkpointBlocks*blockSize;
+	    if (Lib.bytesToInt(data, offset) != checkpointMagic ||
+		Lib.bytesToInt(data, offset+8) != numInodes ||
+		Lib.bytesToInt(data, offset+12) != numSegments)
+		continue;
+
+	    int s = Lib.bytesToInt(data, offset+4);
+	    if (s > bestSequence) {
+		best = i;
+		bestSequence = s;
+	    }
+	}
+	if (best == -1)
+	    return -1;
+
+	int offset = best*checkpointBlocks*blockSize + checkpointHeader;
+	for (int i=0; i<numInodes; i++)
+	    imap[i] = Lib.bytesToInt(data, offset + 4*i);
+
+	checkpoints = best+1;
+	sequence = bestSequence;
+	return bestSequence;
+    }
+
+    /**
+     * Bring the inode map up to date with the inodes written to segments
+     * after the checkpoint, in the order they were written.
+     */
+    private void rollForward(int checkpoint) {
+	byte[] summary = new byte[blockSize];
+	int[] sequences = new int[numSegments];
+
+	for (int s=0; s<numSegments; s++) {
+	    readBlocks(segmentAddress(s), 1, summary, 0);
+	    if (Lib.bytesToInt(summary, 0) == summaryMagic)
+		sequences[s] = Lib.bytesToInt(summary, 4);
+	    age[s] = sequences[s];
+	    sequence = Math.max(sequence, sequences[s]);
+	}
+
+	int last = checkpoint;
+	while (true) {
+	    // the next segment written after the last one replayed
+	    int next = -1;
+	    for (int s=0; s<numSegments; s++) {
+		if (sequences[s] > last &&
+		    (next == -1 || sequences[s] < sequences[next]))
+		    next = s;
+	    }
+	    if (next == -1)
+		break;
+	    last = sequences[next];
+
+	    readBlocks(segmentAddress(next), 1, summary, 0);
+	    int count = Lib.bytesToInt(summary, 8);
+	    for (int i=0; i<count; i++) {
+		int inode = Lib.bytesToInt(summary, summaryHeader + 8*i);
+		int fileBlock = Lib.bytesToInt(summary, summaryHeader + 8*i+4);
+		if (fileBlock == -1)
+		    imap[inode] = segmentAddress(next) + 1 + i;
+	    }
+	}
+    }
+
+    /**
+     * Read every inode in the inode map, and count the live blocks in each
+     * segment.
+     */
+    private void loadInodes() {
+	byte[] data = new byte[blockSize];
+	Arrays.fill(live, 0);
+
+	for (int i=0; i<numInodes; i++) {
+	    inodes[i] = null;
+	    if (imap[i] == 0)
+		continue;
+
+	    readBlocks(imap[i], 1, data, 0);
+	    LogInode inode = new LogInode(i, maxFileBlocks);
+	    inode.decode(data);
+
+	    // an inode freed since the checkpoint was logged as free
+	    if (inode.type == typeFree) {
+		imap[i] = 0;
+		continue;
+	    }
+
+	    inodes[i] = inode;
+	    live[segmentOf(imap[i])]++;
+	    for (int b=0; b<maxFileBlocks; b++) {
+		if (inode.blocks[b] != 0)
+		    live[segmentOf(inode.blocks[b])]++;
+	    }
+	}
+    }
+
+    private void loadDirectory() {
+	LogInode root = inodes[0];
+	byte[] data = new byte[root.length];
+	readData(root, 0, data, 0, data.length);
+
+	directory.clear();
+	usedSlots.clear();
+	for (int slot=0; slot<data.length/entryLength; slot++) {
+	    int inode = Lib.bytesToInt(data, slot*entryLength);
+	    if (inode == 0)
+		continue;
+
+	    String name = Lib.bytesToString(data, slot*entryLength + 4,
+					    maxNameLength);
+	    directory.put(name, new Entry(inode, slot));
+	    usedSlots.set(slot);
+	}
+    }
+
+    private void copyIn() {
+	String names = Config.getString("LogFileSystem.copyIn");
+	if (names == null || Machine.stubFileSystem() == null)
+	    return;
+
+	byte[] buf = new byte[blockSize];
+
+	StringTokenizer tokens = new StringTokenizer(names, " \t,");
+	while (tokens.hasMoreTokens()) {
+	    String name = tokens.nextToken();
+	    if (directory.containsKey(name))
+		continue;
+
+	    OpenFile source = Machine.stubFileSystem().open(name, false);
+	    if (source == null)
+		continue;
+
+	    LogInode inode = createFile(name);
+	    if (inode != null) {
+		int pos = 0, read;
+		while ((read = source.read(pos, buf, 0, buf.length)) > 0) {
+		    if (writeData(inode, pos, buf, 0, read) < read)
+			break;
+		    pos += read;
+		}
+	    }
+
+	    source.close();
+	}
+
+	checkpoint();
+    }
+
+    /**
+     * Allocate an inode for a new, empty file and enter it in the directory.
+     * Must be called with <tt>lock</tt> held.
+     *
+     * @return	the new file's inode, or <tt>null</tt> if the name is not
+     *		valid or there is no free inode.
+     */
+    private LogInode createFile(String name) {
+	int nameLength = name.getBytes().length;
+	if (nameLength == 0 || nameLength > maxNameLength)
+	    return null;
+
+	int number = -1;
+	for (int i=1; i<numInodes; i++) {
+	    if (inodes[i] == null) {
+		number = i;
+		break;
+	    }
+	}
+	if (number == -1)
+	    return null;
+
+	LogInode inode = new LogInode(number, maxFileBlocks);
+	inode.type = typeFile;
+	inode.dirty = true;
+	inodes[number] = inode;
+
+	int slot = usedSlots.nextClearBit(0);
+	if (!writeEntry(slot, number, name)) {
+	    inodes[number] = null;
+	    return null;
+	}
+
+	directory.put(name, new Entry(number, slot));
+	usedSlots.set(slot);
+
+	return inode;
+    }
+
+    /**
+     * Write a directory entry. Must be called with <tt>lock</tt> held.
+     *
+     * @return	<tt>true</tt> if the entry was written.
+     */
+    private boolean writeEntry(int slot, int inode, String name) {
+	byte[] data = new byte[entryLength];
+	Lib.bytesFromInt(data, 0, inode);
+	byte[] nameBytes = name.getBytes();
+	System.arraycopy(nameBytes, 0, data, 4, nameBytes.length);
+
+	return writeData(inodes[0], slot*entryLength, data, 0, entryLength)
+	    == entryLength;
+    }
+
+    /**
+     * Free every block of a file and set its length to 0.
+     */
+    private void truncate(LogInode inode) {
+	for (int b=0; b<maxFileBlocks; b++) {
+	    kill(inode.blocks[b]);
+	    inode.blocks[b] = 0;
+	}
+
+	inode.length = 0;
+	inode.dirty = true;
+    }
+
+    /**
+     * Free a file's blocks and inode. A free inode is logged in its place,
+     * so that rolling forward does not bring the file back.
+     */
+    private void release(LogInode inode) {
+	truncate(inode);
+
+	kill(imap[inode.number]);
+	imap[inode.number] = 0;
+	inodes[inode.number] = null;
+
+	byte[] data = new byte[blockSize];
+	int address = appendBlock(data, 0, inode.number, -1);
+	kill(address);
+    }
+
+    /**
+     * Read part of a file. Blocks laid out one after another in the log are
+     * read with a single request. Must be called with <tt>lock</tt> held.
+     */
+    private int readData(LogInode inode, int pos, byte[] buf, int offset,
+			 int length) {
+	length = Math.max(0, Math.min(length, inode.length - pos));
+	int lastBlock = (pos+length-1) / blockSize;
+
+	int amount = 0;
+	while (amount < length) {
+	    int fileBlock = (pos+amount) / blockSize;
+	    int blockOffset = (pos+amount) % blockSize;
+	    int address = inode.blocks[fileBlock];
+
+	    int run = 1;
+	    if (address != 0 && segmentOf(address) != current) {
+		while (fileBlock+run <= lastBlock &&
+		       inode.blocks[fileBlock+run] == address+run &&
+		       segmentOf(address+run) != current)
+		    run++;
+	    }
+
+	    byte[] data = new byte[run*blockSize];
+	    if (run > 1)
+		readBlocks(address, run, data, 0);
+	    else
+		readBlock(address, data);
+
+	    int chunk = Math.min(length-amount, run*blockSize - blockOffset);
+	    System.arraycopy(data, blockOffset, buf, offset+amount, chunk);
+	    amount += chunk;
+	}
+
+	return amount;
+    }
+
+    /**
+     * Write part of a file, appending a new copy of each block it touches to
+     * the log. Must be called with <tt>lock</tt> held.
+     *
+     * @return	the number of bytes written, which is less than requested only
+     *		if the file reached its maximum length or the log is full.
+     */
+    private int writeData(LogInode inode, int pos, byte[] buf, int offset,
+			  int length) {
+	byte[] data = new byte[blockSize];
+
+	int amount = 0;
+	while (amount < length) {
+	    int fileBlock = (pos+amount) / blockSize;
+	    int blockOffset = (pos+amount) % blockSize;
+	    if (fileBlock >= maxFileBlocks)
+		break;
+
+	    int chunk = Math.min(length-amount, blockSize-blockOffset);
+	    if (chunk < blockSize)
+		readBlock(inode.blocks[fileBlock], data);
+	    System.arraycopy(buf, offset+amount, data, blockOffset, chunk);
+
+	    int address = appendBlock(data, 0, inode.number, fileBlock);
+	    if (address == 0)
+		break;
+
+	    // cleaning may have moved the old block while appending
+	    kill(inode.blocks[fileBlock]);
+	    inode.blocks[fileBlock] = address;
+	    inode.dirty = true;
+
+	    amount += chunk;
+	    inode.length = Math.max(inode.length, pos+amount);
+	}
+
+	return amount;
+    }
+
+    /**
+     * Append a block to the log, moving to a new segment if the current one
+     * is full. File data, even when the cleaner moves it, may not take the
+     * last <tt>reserveSegments</tt> clean segments, which are kept for inodes
+     * and directories, so that a full log can still record files being
+     * removed and write checkpoints.
+     *
+     * @param	data		the buffer holding the block.
+     * @param	offset		the offset of the block in the buffer.
+     * @param	inode		the inode the block belongs to.
+     * @param	fileBlock	the block's number within its file, or -1 if it
+     *				is the inode itself.
+     * @return	the block's address, or 0 if the log is full.
+     */
+    private int appendBlock(byte[] data, int offset, int inode,
+			    int fileBlock) {
+	boolean reserved = (fileBlock == -1 || inode == 0);
+	while (used == dataBlocks) {
+	    if (!nextSegment(reserved))
+		return 0;
+	}
+
+	int index = 1 + used;
+	System.arraycopy(data, offset, segment, index*blockSize, blockSize);
+	Lib.bytesFromInt(segment, summaryHeader + 8*used, inode);
+	Lib.bytesFromInt(segment, summaryHeader + 8*used + 4, fileBlock);
+
+	used++;
+	live[current]++;
+	changed = true;
+
+	return segmentAddress(current) + index;
+    }
+
+    /**
+     * Write the current segment, which is full, and start another. Then
+     * cleans, if fewer than <tt>cleanThreshold</tt> segments are clean, while
+     * the new segment can still take the live blocks the cleaner moves.
+     *
+     * <p>
+     * File data may not start one of the last <tt>reserveSegments</tt> clean
+     * segments; before giving up, the log is cleaned, and the cleaner may
+     * start any clean segment to move live blocks into. Inodes and the
+     * directory may start any but the last clean segment, which is left for
+     * the cleaner, since without it nothing could ever be cleaned again.
+     *
+     * @param	reserved	whether the reserved segments may be started.
+     * @return	<tt>false</tt> if there is no clean segment to start.
+     */
+    private boolean nextSegment(boolean reserved) {
+	flushSegment();
+
+	if (!reserved && !cleaning &&
+	    countCleanSegments() <= reserveSegments) {
+	    // segments whose blocks all died since the last checkpoint are
+	    // clean once another is written
+	    checkpoint();
+
+	    if (countCleanSegments() <= reserveSegments)
+		clean(reserveSegments+1);
+
+	    // cleaning may leave room in the segment it moved blocks into
+	    if (used < dataBlocks)
+		return true;
+	}
+
+	int minClean = cleaning ? 0 : (reserved ? 1 : reserveSegments);
+	int next = findCleanSegment();
+	if (next == -1 || countCleanSegments() <= minClean)
+	    return false;
+
+	startSegment(next);
+
+	// the new segment has room for what cleaning moves
+	if (!cleaning && countCleanSegments() < cleanThreshold)
+	    clean(cleanThreshold);
+
+	return true;
+    }
+
+    private void startSegment(int s) {
+	current = s;
+	clean[s] = false;
+	used = 0;
+	flushed = 0;
+    }
+
+    /**
+     * Write the blocks appended to the current segment since it was last
+     * flushed, then its summary.
+     */
+    private void flushSegment() {
+	if (used == flushed)
+	    return;
+
+	sequence++;
+	age[current] = sequence;
+
+	Lib.bytesFromInt(segment, 0, summaryMagic);
+	Lib.bytesFromInt(segment, 4, sequence);
+	Lib.bytesFromInt(segment, 8, used);
+
+	int base = segmentAddress(current);
+	if (flushed == 0) {
+	    writeBlocks(base, 1+used, segment, 0);
+	}
+	else {
+	    writeBlocks(base+1+flushed, used-flushed,
+			segment, (1+flushed)*blockSize);
+	    writeBlocks(base, 1, segment, 0);
+	}
+
+	flushed = used;
+    }
+
+    /**
+     * Append every changed inode to the log, and flush it.
+     */
+    private void logInodes() {
+	byte[] data = new byte[blockSize];
+	for (int i=0; i<numInodes; i++) {
+	    LogInode inode = inodes[i];
+	    if (inode == null || !inode.dirty)
+		continue;
+
+	    inode.encode(data);
+	    int address = appendBlock(data, 0, i, -1);
+	    if (address == 0)
+		break;
+
+	    kill(imap[i]);
+	    imap[i] = address;
+	    inode.dirty = false;
+	}
+
+	flushSegment();
+    }
+
+    /**
+     * Log every changed inode, then write the inode map to the older
+     * checkpoint region. Segments left with no live blocks become clean.
+     */
+    private void checkpoint() {
+	logInodes();
+
+	byte[] data = new byte[checkpointBlocks*blockSize];
+	sequence++;
+	Lib.bytesFromInt(data, 0, checkpointMagic);
+	Lib.bytesFromInt(data, 4, sequence);
+	Lib.bytesFromInt(data, 8, numInodes);
+	Lib.bytesFromInt(data, 12, numSegments);
+	for (int i=0; i<numInodes; i++)
+	    Lib.bytesFromInt(data, checkpointHeader + 4*i, imap[i]);
+
+	writeBlocks((checkpoints%2)*checkpointBlocks, checkpointBlocks,
+		    data, 0);
+	checkpoints++;
+
+	for (int s=0; s<numSegments; s++) {
+	    if (s != current && live[s] == 0)
+		clean[s] = true;
+	}
+	changed = false;
+    }
+
+    /**
+     * Clean segments until the specified number are clean, or no segment is
+     * worth cleaning. Each segment cleaned is followed by a checkpoint, after
+     * which it can be reused. Cleaning a segment may not add a clean segment
+     * at once, if its live blocks start another, but it still makes progress
+     * as long as it leaves more room in the log.
+     */
+    private void clean(int target) {
+	cleaning = true;
+
+	while (countCleanSegments() < target) {
+	    int victim = chooseVictim();
+	    if (victim == -1)
+		break;
+
+	    int before = countFreeBlocks();
+	    cleanSegment(victim);
+	    checkpoint();
+
+	    if (countFreeBlocks() <= before)
+		break;
+	}
+
+	cleaning = false;
+    }
+
+    /**
+     * Choose the segment to clean by cost-benefit: the free space gained,
+     * times the age of the data, over the cost of reading the segment and
+     * writing its live blocks back. Writing them back includes logging again
+     * every inode that refers to them, so a segment whose live blocks and
+     * inodes would fill a whole segment is never chosen.
+     *
+     * @return	the segment to clean, or -1 if none would free any space.
+     */
+    private int chooseVictim() {
+	// the blocks each segment's cleaning appends: its live data blocks,
+	// and the inodes referring to it, unless they are logged anyway
+	int[] cost = Arrays.copyOf(live, numSegments);
+	int[] seen = new int[numSegments];
+	Arrays.fill(seen, -1);
+	for (int i=0; i<numInodes; i++) {
+	    LogInode inode = inodes[i];
+	    if (inode == null)
+		continue;
+
+	    if (imap[i] != 0)
+		cost[segmentOf(imap[i])]--;
+	    if (inode.dirty)
+		continue;
+
+	    for (int b=-1; b<maxFileBlocks; b++) {
+		int address = (b == -1) ? imap[i] : inode.blocks[b];
+		if (address != 0 && seen[segmentOf(address)] != i) {
+		    seen[segmentOf(address)] = i;
+		    cost[segmentOf(address)]++;
+		}
+	    }
+	}
+
+	int victim = -1;
+	double best = -1;
+
+	for (int s=0; s<numSegments; s++) {
+	    if (clean[s] || s == current || cost[s] >= dataBlocks)
+		continue;
+
+	    double utilization = (double) cost[s] / dataBlocks;
+	    double benefit = (1-utilization) * (sequence - age[s] + 1)
+		/ (1+utilization);
+	    if (benefit > best) {
+		victim = s;
+		best = benefit;
+	    }
+	}
+
+	return victim;
+    }
+
+    /**
+     * Append the live blocks of a segment to the log. Its live inodes are
+     * only marked changed, since the checkpoint that follows writes them.
+     */
+    private void cleanSegment(int s) {
+	if (live[s] == 0)
+	    return;
+
+	byte[] data = new byte[segmentBlocks*blockSize];
+	int base = segmentAddress(s);
+	readBlocks(base, segmentBlocks, data, 0);
+
+	if (Lib.bytesToInt(data, 0) != summaryMagic)
+	    return;
+
+	int count = Lib.bytesToInt(data, 8);
+	for (int i=0; i<count; i++) {
+	    int number = Lib.bytesToInt(data, summaryHeader + 8*i);
+	    int fileBlock = Lib.bytesToInt(data, summaryHeader + 8*i+4);
+	    int address = base+1+i;
+
+	    LogInode inode = inodes[number];
+	    if (inode == null)
+		continue;
+
+	    if (fileBlock == -1) {
+		if (imap[number] == address)
+		    inode.dirty = true;
+	    }
+	    else if (inode.blocks[fileBlock] == address) {
+		int moved = appendBlock(data, (1+i)*blockSize, number,
+					fileBlock);
+		if (moved == 0)
+		    return;
+
+		kill(address);
+		inode.blocks[fileBlock] = moved;
+		inode.dirty = true;
+	    }
+	}
+    }
+
+    private void cleanerLoop() {
+	while (true) {
+	    ThreadedKernel.alarm.waitUntil(cleanerInterval);
+
+	    lock.acquire();
+	    if (countCleanSegments() < cleanThreshold)
+		clean(cleanThreshold);
+	    if (changed || used > flushed)
+		checkpoint();
+	    lock.release();
+	}
+    }
+
+    /**
+     * Return the number of blocks that can be appended to the log without
+     * cleaning: the rest of the current segment, and every clean segment.
+     */
+    private int countFreeBlocks() {
+	return (dataBlocks - used) + countCleanSegments()*dataBlocks;
+    }
+
+    private int countCleanSegments() {
+	int count = 0;
+	for (int s=0; s<numSegments; s++) {
+	    if (clean[s])
+		count++;
+	}
+	return count;
+    }
+
+    /**
+     * Return the first clean segment after the current one, so that the log
+     * moves across the disk in one direction.
+     */
+    private int findCleanSegment() {
+	for (int i=1; i<=numSegments; i++) {
+	    int s = (current+i) % numSegments;
+	    if (clean[s])
+		return s;
+	}
+	return -1;
+    }
+
+    /**
+     * Note that a block is no longer part of any file.
+     */
+    private void kill(int address) {
+	if (address != 0)
+	    live[segmentOf(address)]--;
+    }
+
+    private int segmentAddress(int s) {
+	return firstSegment + s*segmentBlocks;
+    }
+
+    private int segmentOf(int address) {
+	return (address - firstSegment) / segmentBlocks;
+    }
+
+    /**
+     * Read a block, from the segment buffer if it has not reached the disk.
+     * Address 0 reads as zeroes.
+     */
+    private void readBlock(int address, byte[] data) {
+	if (address == 0)
+	    Arrays.fill(data, 0, blockSize, (byte) 0);
+	else if (segmentOf(address) == current)
+	    System.arraycopy(segment, (address-segmentAddress(current))*blockSize,
+			     data, 0, blockSize);
+	else
+	    readBlocks(address, 1, data, 0);
+    }
+
+    private void readBlocks(int address, int count, byte[] data, int offset) {
+	disk.read(address*sectorsPerBlock, count*sectorsPerBlock, data, offset);
+    }
+
+    private void writeBlocks(int address, int count, byte[] data, int offset) {
+	disk.write(address*sectorsPerBlock, count*sectorsPerBlock, data,
+		   offset);
+    }
+
+    /**
+     * A name in the root directory.
+     */
+    private static class Entry {
+	Entry(int inode, int slot) {
+	    this.inode = inode;
+	    this.slot = slot;
+	}
+
+	int inode;
+	/** The index of this entry in the directory file. */
+	int slot;
+    }
+
+    /**
+     * An inode: the type and length of a file, and the address of each of
+     * its blocks, 0 for a block never written. On disk, an inode fills a
+     * block.
+     */
+    private static class LogInode {
+	LogInode(int number, int maxBlocks) {
+	    this.number = number;
+	    blocks = new int[maxBlocks];
+	}
+
+	void decode(byte[] data) {
+	    type = Lib.bytesToInt(data, 0);
+	    length = Lib.bytesToInt(data, 4);
+	    for (int i=0; i<blocks.length; i++)
+		blocks[i] = Lib.bytesToInt(data, inodeHeader + 4*i);
+	}
+
+	void encode(byte[] data) {
+	    Lib.bytesFromInt(data, 0, type);
+	    Lib.bytesFromInt(data, 4, length);
+	    for (int i=0; i<blocks.length; i++)
+		Lib.bytesFromInt(data, inodeHeader + 4*i, blocks[i]);
+	}
+
+	int number;
+	int type = typeFree;
+	int length = 0;
+	int[] blocks;
+	/** Whether this inode changed since it was last logged. */
+	boolean dirty = false;
+	int openCount = 0;
+	boolean removed = false;
+    }
+
+    /**
+     * An open file in this file system.
+     */
+    private class LogOpenFile extends OpenFileWithPosition {
+	LogOpenFile(String name, LogInode inode) {
+	    super(LogFileSystem.this, name);
+
+	    this.inode = inode;
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    if (!open || pos < 0)
+		return -1;
+
+	    lock.acquire();
+	    int amount = readData(inode, pos, buf, offset, length);
+	    lock.release();
+
+	    return amount;
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+	    if (!open || pos < 0)
+		return -1;
+
+	    lock.acquire();
+	    int amount = writeData(inode, pos, buf, offset, length);
+	    lock.release();
+
+	    return amount;
+	}
+
+	public int length() {
+	    return inode.length;
+	}
+
+	public boolean sync() {
+	    if (!open)
+		return false;
+
+	    lock.acquire();
+	    checkpoint();
+	    lock.release();
+
+	    return true;
+	}
+
+	public void close() {
+	    if (!open)
+		return;
+	    open = false;
+
+	    lock.acquire();
+	    if (--inode.openCount == 0 && inode.removed)
+		release(inode);
+	    logInodes();
+	    lock.release();
+	}
+
+	private LogInode inode;
+	private boolean open = true;
+    }
+
+    private SynchDisk disk;
+    private int blockSize, sectorsPerBlock;
+    private int numInodes, numSegments, segmentBlocks, dataBlocks;
+    private int checkpointBlocks, firstSegment, maxFileBlocks;
+
+    /** The address of the latest copy of each inode, 0 if it is free. */
+    private int[] imap;
+    /** Every inode in use. */
+    private LogInode[] inodes;
+    /** The number of live blocks in each segment. */
+    private int[] live;
+    /** The sequence number of each segment's last write. */
+    private int[] age;
+    /** Which segments can be reused. */
+    private boolean[] clean;
+
+    /** The segment being filled, and its contents so far. */
+    private int current;
+    private byte[] segment;
+    /** The number of blocks appended to, and written from, the segment. */
+    private int used, flushed;
+
+    /** The last sequence number given to a segment write or checkpoint. */
+    private int sequence = 0;
+    /** The number of checkpoints written, choosing the region for the next. */
+    private int checkpoints = 0;
+    /** Whether anything was appended since the last checkpoint. */
+    private boolean changed = false;
+    private boolean cleaning = false;
+    private int cleanThreshold, cleanerInterval;
+
+    /** The root directory's entries, by name. */
+    private HashMap<String, Entry> directory = new HashMap<String, Entry>();
+    /** The directory slots in use. */
+    private BitSet usedSlots = new BitSet();
+
+    private boolean mounted = false;
+    /** Guards the whole file system. */
+    private Lock lock = new Lock();
+
+    private static final int typeFree = 0, typeFile = 1, typeDirectory = 2;
+
+    private static final int checkpointMagic = 0x4C465343;
+    private static final int summaryMagic = 0x4C465353;
+    private static final int checkpointHeader = 16;
+    private static final int summaryHeader = 12;
+    private static final int inodeHeader = 8;
+    private static final int entryLength = 32;
+    private static final int maxNameLength = entryLength - 4;
+    private static final int minBlockSize = 128;
+    /** Segments kept clean for inodes and the directory. */
+    private static final int reserveSegments = 2;
+}
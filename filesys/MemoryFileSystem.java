@@ -0,0 +1,300 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.filesys.*;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.StringTokenizer;
+
+/**
+ * A file system whose files are kept in memory, for scratch files and test
+ * fixtures that need not outlive Nachos. Names are found with one hash table
+ * lookup, and files are stored in chunks allocated as they are written, so
+ * they grow without copying. Nothing is read from or written to a disk; a
+ * read or write takes only the time of a kernel critical section.
+ *
+ * <p>
+ * If the <tt>nachos.conf</tt> key <tt>MemoryFileSystem.prefix</tt> is set,
+ * only names starting with it are kept in memory, and every other name is
+ * passed to the file system named by <tt>MemoryFileSystem.fileSystem</tt>,
+ * by default the stub file system. Otherwise every file is in memory, and
+ * the files in the comma-separated list <tt>MemoryFileSystem.copyIn</tt>
+ * are copied from the stub file system the first time a file is opened or
+ * removed, so that programs can be run from memory.
+ *
+ * <p>
+ * A removed file's contents stay in memory until every open file referring to
+ * it is closed.
+ */
+public class MemoryFileSystem implements FileSystem {
+    /**
+     * Allocate a new memory file system.
+     */
+    public MemoryFileSystem() {
+	prefix = Config.getString("MemoryFileSystem.prefix");
+	if (prefix != null)
+	    fileSystem = underlyingFileSystem();
+
+	chunkSize = Config.getInteger("MemoryFileSystem.chunkSize",
+				      Processor.pageSize);
+	Lib.assertTrue(chunkSize > 0);
+    }
+
+    private static FileSystem underlyingFileSystem() {
+	String name = Config.getString("MemoryFileSystem.fileSystem");
+	if (name != null)
+	    return (FileSystem) Lib.constructObject(name);
+
+	return Machine.stubFileSystem();
+    }
+
+    public OpenFile open(String name, boolean create) {
+	if (!inMemory(name))
+	    return fileSystem.open(name, create);
+
+	copyIn();
+
+	MemoryFile file = files.get(name);
+	if (file == null) {
+	    if (!create || name.length() == 0)
+		return null;
+
+	    file = new MemoryFile();
+	    files.put(name, file);
+	}
+	else if (create) {
+	    file.truncate();
+	}
+
+	return new MemoryOpenFile(name, file);
+    }
+
+    public boolean remove(String name) {
+	if (!inMemory(name))
+	    return fileSystem.remove(name);
+
+	copyIn();
+
+	return files.remove(name) != null;
+    }
+
+    /**
+     * Test this file system. A file is written past its first chunk, leaving
+     * a gap, and must read back with the gap as zeroes. Creating it again
+     * must empty it, and a file removed while open must still read back
+     * through the open file. The file is removed afterwards.
+     */
+    public void selfTest() {
+	String name = (prefix == null ? "" : prefix) + "memtest";
+	int length = 3*chunkSize;
+	byte[] data = new byte[length], check = new byte[length];
+	for (int i=0; i<length; i++)
+	    data[i] = (byte) (i*7 + 1);
+
+	OpenFile file = open(name, true);
+	Lib.assertTrue(file != null, "MemoryFileSystem test: open failed");
+	Lib.assertTrue(file.write(0, data, 0, chunkSize/2) == chunkSize/2);
+	Lib.assertTrue(file.write(2*chunkSize, data, 2*chunkSize, chunkSize)
+		       == chunkSize);
+	Lib.assertTrue(file.length() == length);
+	Lib.assertTrue(file.read(0, check, 0, length) == length);
+	for (int i=0; i<length; i++) {
+	    byte expected = (i < chunkSize/2 || i >= 2*chunkSize) ? data[i] : 0;
+	    Lib.assertTrue(check[i] == expected,
+			   "MemoryFileSystem test: wrong contents");
+	}
+	file.close();
+
+	file = open(name, true);
+	Lib.assertTrue(file.length() == 0,
+		       "MemoryFileSystem test: file not truncated");
+	Lib.assertTrue(file.write(0, data, 0, length) == length);
+
+	Lib.assertTrue(remove(name));
+	Lib.assertTrue(open(name, false) == null,
+		       "MemoryFileSystem test: removed file still named");
+	Lib.assertTrue(file.read(0, check, 0, length) == length &&
+		       Arrays.equals(check, data),
+		       "MemoryFileSystem test: removed file lost its contents");
+	file.close();
+    }
+
+    /**
+     * Return whether the named file is kept in memory, rather than on the
+     * underlying file system.
+     */
+    private boolean inMemory(String name) {
+	return prefix == null || name.startsWith(prefix);
+    }
+
+    /**
+     * Copy the files named by <tt>MemoryFileSystem.copyIn</tt> from the stub
+     * file system, unless this was already done.
+     */
+    private void copyIn() {
+	if (copied)
+	    return;
+
+	// reading the stub file system blocks, so other threads may get here
+	copyLock.acquire();
+	if (!copied) {
+	    String names = Config.getString("MemoryFileSystem.copyIn");
+	    if (prefix == null && names != null &&
+		Machine.stubFileSystem() != null)
+		copyIn(names);
+
+	    copied = true;
+	}
+	copyLock.release();
+    }
+
+    private void copyIn(String names) {
+	byte[] buf = new byte[chunkSize];
+
+	StringTokenizer tokens = new StringTokenizer(names, " \t,");
+	while (tokens.hasMoreTokens()) {
+	    String name = tokens.nextToken();
+	    if (files.containsKey(name))
+		continue;
+
+	    OpenFile source = Machine.stubFileSystem().open(name, false);
+	    if (source == null)
+		continue;
+
+	    MemoryFile file = new MemoryFile();
+	    int pos = 0, read;
+	    while ((read = source.read(pos, buf, 0, buf.length)) > 0) {
+		file.write(pos, buf, 0, read);
+		pos += read;
+	    }
+	    source.close();
+
+	    files.put(name, file);
+	}
+    }
+
+    /**
+     * The contents of a file, in chunks of <tt>chunkSize</tt> bytes. A chunk
+     * is allocated the first time it is written; one never written reads as
+     * zeroes.
+     */
+    private class MemoryFile {
+	int read(int pos, byte[] buf, int offset, int length) {
+	    length = Math.max(0, Math.min(length, this.length - pos));
+
+	    int amount = 0;
+	    while (amount < length) {
+		int index = (pos+amount) / chunkSize;
+		int chunkOffset = (pos+amount) % chunkSize;
+		int count = Math.min(length-amount, chunkSize-chunkOffset);
+
+		byte[] chunk = chunks.get(index);
+		if (chunk != null) {
+		    System.arraycopy(chunk, chunkOffset,
+				     buf, offset+amount, count);
+		}
+		else {
+		    for (int i=0; i<count; i++)
+			buf[offset+amount+i] = 0;
+		}
+
+		amount += count;
+	    }
+
+	    return amount;
+	}
+
+	void write(int pos, byte[] buf, int offset, int length) {
+	    int amount = 0;
+	    while (amount < length) {
+		int index = (pos+amount) / chunkSize;
+		int chunkOffset = (pos+amount) % chunkSize;
+		int count = Math.min(length-amount, chunkSize-chunkOffset);
+
+		while (chunks.size() <= index)
+		    chunks.add(null);
+		if (chunks.get(index) == null)
+		    chunks.set(index, new byte[chunkSize]);
+
+		System.arraycopy(buf, offset+amount,
+				 chunks.get(index), chunkOffset, count);
+		amount += count;
+	    }
+
+	    this.length = Math.max(this.length, pos+length);
+	}
+
+	void truncate() {
+	    chunks.clear();
+	    length = 0;
+	}
+
+	ArrayList<byte[]> chunks = new ArrayList<byte[]>();
+	int length = 0;
+    }
+
+    /**
+     * An open file in this file system.
+     */
+    private class MemoryOpenFile extends OpenFileWithPosition {
+	MemoryOpenFile(String name, MemoryFile file) {
+	    super(MemoryFileSystem.this, name);
+
+	    this.file = file;
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+	    Lib.assertTrue(offset >= 0 && length >= 0 &&
+			   offset+length <= buf.length);
+
+	    if (!open || pos < 0)
+		return -1;
+
+	    boolean intStatus = Machine.interrupt().disable();
+	    int amount = file.read(pos, buf, offset, length);
+	    Machine.interrupt().restore(intStatus);
+
+	    return amount;
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+	    Lib.assertTrue(offset >= 0 && length >= 0 &&
+			   offset+length <= buf.length);
+
+	    if (!open || pos < 0)
+		return -1;
+
+	    boolean intStatus = Machine.interrupt().disable();
+	    file.write(pos, buf, offset, length);
+	    Machine.interrupt().restore(intStatus);
+
+	    return length;
+	}
+
+	public int length() {
+	    return file.length;
+	}
+
+	public void close() {
+	    open = false;
+	}
+
+	private MemoryFile file;
+	private boolean open = true;
+    }
+
+    /** The files kept in memory, by name. */
+    private HashMap<String, MemoryFile> files =
+	new HashMap<String, MemoryFile>();
+    /** The names kept in memory start with this, or it is <tt>null</tt>. */
+    private String prefix;
+    /** The file system holding the other names, if <tt>prefix</tt> is set. */
+    private FileSystem fileSystem = null;
+    private int chunkSize;
+
+    private boolean copied = false;
+    private Lock copyLock = new Lock();
+}
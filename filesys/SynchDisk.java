@@ -0,0 +1,76 @@
+package nachos.filesys;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.filesys.*;
+
+/**
+ * A disk whose reads and writes return only once they complete. Each request
+ * puts the calling thread to sleep until the disk's completion interrupt, so
+ * requests from different threads are outstanding at the same time and the
+ * disk's scheduler decides the order they are served in.
+ */
+public class SynchDisk {
+    /**
+     * Allocate a new synchronized disk.
+     *
+     * @param	disk	the disk.
+     */
+    public SynchDisk(Disk disk) {
+	this.disk = disk;
+    }
+
+    /**
+     * Return the number of sectors on the disk.
+     *
+     * @return	the number of sectors.
+     */
+    public int getNumSectors() {
+	return disk.getNumSectors();
+    }
+
+    /**
+     * Return the number of bytes in a sector.
+     *
+     * @return	the sector size.
+     */
+    public int getSectorSize() {
+	return disk.getSectorSize();
+    }
+
+    /**
+     * Read a run of sectors.
+     *
+     * @param	sector		the first sector to read.
+     * @param	numSectors	the number of sectors to read.
+     * @param	data		the buffer to read into.
+     * @param	offset		the offset in the buffer to read into.
+     */
+    public void read(int sector, int numSectors, byte[] data, int offset) {
+	Semaphore done = new Semaphore(0);
+	disk.readRequest(sector, numSectors, data, offset, waker(done));
+	done.P();
+    }
+
+    /**
+     * Write a run of sectors.
+     *
+     * @param	sector		the first sector to write.
+     * @param	numSectors	the number of sectors to write.
+     * @param	data		the data to write.
+     * @param	offset		the offset in the buffer of the data.
+     */
+    public void write(int sector, int numSectors, byte[] data, int offset) {
+	Semaphore done = new Semaphore(0);
+	disk.writeRequest(sector, numSectors, data, offset, waker(done));
+	done.P();
+    }
+
+    private static Runnable waker(final Semaphore done) {
+	return new Runnable() {
+		public void run() { done.V(); }
+	    };
+    }
+
+    private Disk disk;
+}
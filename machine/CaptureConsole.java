@@ -0,0 +1,267 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.BufferedOutputStream;
+import java.io.OutputStream;
+import java.io.IOException;
+
+/**
+ * A console for batch runs that does no terminal I/O. Its input is a byte
+ * array given to <tt>setInput()</tt>, or the contents of the host file named
+ * by the <tt>nachos.conf</tt> key <tt>Console.inputFile</tt>. Its output is
+ * kept in memory, where <tt>getOutput()</tt> returns it, and is also written
+ * to the host file named by <tt>Console.outputFile</tt>, if one is set. Only
+ * the last <tt>Console.outputBufferSize</tt> bytes of output are kept in
+ * memory.
+ *
+ * <p>
+ * Every byte is received, and every byte or buffer sent, one tick after the
+ * last, the shortest delay the interrupt controller allows. Input bytes are
+ * passed on unchanged.
+ */
+public class CaptureConsole implements SerialConsole {
+    /**
+     * Allocate a new capture console.
+     *
+     * @param	privilege      	encapsulates privileged access to the Nachos
+     *				machine.
+     */
+    public CaptureConsole(Privilege privilege) {
+	System.out.print(" console(capture)");
+
+	this.privilege = privilege;
+
+	output = new byte[Config.getInteger("Console.outputBufferSize", 65536)];
+	Lib.assertTrue(output.length > 0);
+
+	receiveInterrupt = new Runnable() {
+		public void run() { receiveInterrupt(); }
+	    };
+
+	sendInterrupt = new Runnable() {
+		public void run() { sendInterrupt(); }
+	    };
+
+	final String inputFile = Config.getString("Console.inputFile");
+	final String outputFile = Config.getString("Console.outputFile");
+	if (inputFile == null && outputFile == null)
+	    return;
+
+	if (inputFile != null)
+	    input = null;
+
+	// only privileged code may open host files
+	privilege.doPrivileged(new Runnable() {
+		public void run() { openFiles(inputFile, outputFile); }
+	    });
+
+	if (inputFile != null)
+	    Lib.assertTrue(input != null, "cannot read " + inputFile);
+	if (outputFile != null)
+	    Lib.assertTrue(sink != null, "cannot write " + outputFile);
+
+	if (sink != null) {
+	    privilege.addExitNotificationHandler(new Runnable() {
+		    public void run() { flushSink(); }
+		});
+	}
+
+	if (input != null && input.length > 0)
+	    scheduleReceiveInterrupt();
+    }
+
+    private void openFiles(String inputFile, String outputFile) {
+	try {
+	    if (inputFile != null) {
+		File file = new File(inputFile);
+		byte[] data = new byte[(int) file.length()];
+
+		FileInputStream in = new FileInputStream(file);
+		int pos = 0, read;
+		while (pos < data.length &&
+		       (read = in.read(data, pos, data.length-pos)) > 0)
+		    pos += read;
+		in.close();
+
+		if (pos == data.length)
+		    input = data;
+	    }
+
+	    if (outputFile != null)
+		sink = new BufferedOutputStream(new FileOutputStream(outputFile));
+	}
+	catch (IOException e) {
+	}
+    }
+
+    public final void setInterruptHandlers(Runnable receiveInterruptHandler,
+					   Runnable sendInterruptHandler) {
+	this.receiveInterruptHandler = receiveInterruptHandler;
+	this.sendInterruptHandler = sendInterruptHandler;
+    }
+
+    /**
+     * Replace the input that has not yet been received. Must be called with
+     * interrupts disabled, or before Nachos threads start.
+     *
+     * @param	data	the bytes to receive.
+     */
+    public void setInput(byte[] data) {
+	boolean idle = (incomingKey == -1 && inputPos == input.length);
+
+	input = data.clone();
+	inputPos = 0;
+
+	if (idle && input.length > 0)
+	    scheduleReceiveInterrupt();
+    }
+
+    /**
+     * Return the output kept in memory, oldest byte first.
+     *
+     * @return	the last bytes sent, up to <tt>Console.outputBufferSize</tt>
+     *		of them.
+     */
+    public byte[] getOutput() {
+	int count = (int) Math.min(outputTotal, output.length);
+	int start = (int) ((outputTotal - count) % output.length);
+
+	byte[] data = new byte[count];
+	for (int i=0; i<count; i++)
+	    data[i] = output[(start+i) % output.length];
+
+	return data;
+    }
+
+    /**
+     * Return the output kept in memory as a string.
+     *
+     * @return	the last characters sent.
+     */
+    public String getOutputString() {
+	return new String(getOutput());
+    }
+
+    /**
+     * Return the number of bytes sent since the output was last cleared,
+     * including those no longer kept in memory.
+     *
+     * @return	the number of bytes sent.
+     */
+    public long getOutputLength() {
+	return outputTotal;
+    }
+
+    /**
+     * Discard the output kept in memory.
+     */
+    public void clearOutput() {
+	outputTotal = 0;
+    }
+
+    private void scheduleReceiveInterrupt() {
+	privilege.interrupt.schedule(1, "console read", receiveInterrupt);
+    }
+
+    private void receiveInterrupt() {
+	Lib.assertTrue(incomingKey == -1);
+
+	if (inputPos == input.length)
+	    return;
+
+	incomingKey = input[inputPos++] & 0xFF;
+
+	privilege.stats.numConsoleReads++;
+
+	if (receiveInterruptHandler != null)
+	    receiveInterruptHandler.run();
+    }
+
+    public final int readByte() {
+	int key = incomingKey;
+
+	if (incomingKey != -1) {
+	    incomingKey = -1;
+	    if (inputPos < input.length)
+		scheduleReceiveInterrupt();
+	}
+
+	return key;
+    }
+
+    private void out(byte[] buf, int offset, int length) {
+	for (int i=0; i<length; i++)
+	    output[(int) ((outputTotal+i) % output.length)] = buf[offset+i];
+	outputTotal += length;
+
+	if (sink != null) {
+	    try {
+		sink.write(buf, offset, length);
+	    }
+	    catch (IOException e) {
+		sink = null;
+	    }
+	}
+
+	privilege.stats.numConsoleWrites += length;
+    }
+
+    private void flushSink() {
+	try {
+	    sink.close();
+	}
+	catch (IOException e) {
+	}
+    }
+
+    private void sendInterrupt() {
+	Lib.assertTrue(outgoing != null);
+
+	byte[] buf = outgoing;
+	outgoing = null;
+	out(buf, 0, buf.length);
+
+	if (sendInterruptHandler != null)
+	    sendInterruptHandler.run();
+    }
+
+    public final void writeByte(int value) {
+	writeBytes(new byte[] { (byte) value }, 0, 1);
+    }
+
+    public final void writeBytes(byte[] buf, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length > 0 && offset+length <= buf.length);
+	Lib.assertTrue(outgoing == null);
+
+	privilege.interrupt.schedule(1, "console write", sendInterrupt);
+
+	outgoing = new byte[length];
+	System.arraycopy(buf, offset, outgoing, 0, length);
+    }
+
+    private Privilege privilege = null;
+
+    private Runnable receiveInterrupt;
+    private Runnable sendInterrupt;
+
+    private Runnable receiveInterruptHandler = null;
+    private Runnable sendInterruptHandler = null;
+
+    /** The input, and the position of the next byte to receive. */
+    private byte[] input = new byte[0];
+    private int inputPos = 0;
+    private int incomingKey = -1;
+
+    /** The bytes being sent, or <tt>null</tt> if none are. */
+    private byte[] outgoing = null;
+    /** The last bytes sent, in a ring. */
+    private byte[] output;
+    private long outputTotal = 0;
+    private OutputStream sink = null;
+}
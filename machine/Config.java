@@ -102,9 +102,12 @@ public final class Config {
      *
      * @param	key	the key to look up.
      * @return	the value of the specified key, or <tt>null</tt> if it is not
-     *		present.
+     *		present or no configuration file has been loaded.
      */
     public static String getString(String key) {
+	if (config == null)
+	    return null;
+
 	return (String) config.get(key);
     }
 
@@ -0,0 +1,166 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+
+/**
+ * A simulated disk: an array of fixed-size sectors that can be read and
+ * written a run at a time. The contents persist in a host file, named by the
+ * <tt>nachos.conf</tt> key <tt>Disk.file</tt>, in the test directory.
+ *
+ * <p>
+ * Requests are asynchronous. Any number may be outstanding; the disk serves
+ * them one at a time, in the order its <tt>DiskModel</tt> chooses, and calls
+ * each request's handler as an interrupt handler when it completes. A read's
+ * buffer is filled, and a write's data is stored, when the request completes.
+ * The data to write is copied when the request is made, so the caller may
+ * reuse its buffer at once.
+ */
+public final class Disk {
+    /**
+     * Allocate a new disk.
+     *
+     * @param	privilege      	encapsulates privileged access to the Nachos
+     *				machine.
+     * @param	directory	the directory to keep the disk's contents in.
+     */
+    public Disk(Privilege privilege, File directory) {
+	System.out.print(" disk");
+
+	this.privilege = privilege;
+
+	model = new DiskModel(privilege);
+	sectorSize = model.getSectorSize();
+	numSectors = model.getNumSectors();
+
+	final File f = new File(directory, Config.getString("Disk.file", "DISK"));
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    try {
+			file = new RandomAccessFile(f, "rw");
+			file.setLength((long) numSectors*sectorSize);
+		    }
+		    catch (IOException e) {
+			file = null;
+		    }
+		}
+	    });
+
+	Lib.assertTrue(file != null, "could not open disk file " + f);
+	channel = file.getChannel();
+    }
+
+    /**
+     * Return the number of sectors on this disk.
+     *
+     * @return	the number of sectors.
+     */
+    public int getNumSectors() {
+	return numSectors;
+    }
+
+    /**
+     * Return the number of bytes in a sector.
+     *
+     * @return	the sector size.
+     */
+    public int getSectorSize() {
+	return sectorSize;
+    }
+
+    /**
+     * Request that a run of sectors be read.
+     *
+     * @param	sector		the first sector to read.
+     * @param	numSectors	the number of sectors to read.
+     * @param	data		the buffer to read into.
+     * @param	offset		the offset in the buffer of the first sector's
+     *				first byte.
+     * @param	handler		the callback to call when the sectors have been
+     *				read.
+     */
+    public void readRequest(final int sector, final int numSectors,
+			    final byte[] data, final int offset,
+			    final Runnable handler) {
+	checkRequest(sector, numSectors, data, offset);
+
+	model.request(sector, numSectors, false, new Runnable() {
+		public void run() {
+		    transfer(sector, data, offset, numSectors*sectorSize,
+			     false);
+		    handler.run();
+		}
+	    });
+    }
+
+    /**
+     * Request that a run of sectors be written.
+     *
+     * @param	sector		the first sector to write.
+     * @param	numSectors	the number of sectors to write.
+     * @param	data		the data to write.
+     * @param	offset		the offset in the buffer of the first sector's
+     *				first byte.
+     * @param	handler		the callback to call when the sectors have been
+     *				written.
+     */
+    public void writeRequest(final int sector, final int numSectors,
+			     byte[] data, int offset, final Runnable handler) {
+	checkRequest(sector, numSectors, data, offset);
+
+	final byte[] copy =
+	    Arrays.copyOfRange(data, offset, offset + numSectors*sectorSize);
+
+	model.request(sector, numSectors, true, new Runnable() {
+		public void run() {
+		    transfer(sector, copy, 0, copy.length, true);
+		    handler.run();
+		}
+	    });
+    }
+
+    private void checkRequest(int sector, int numSectors, byte[] data,
+			      int offset) {
+	Lib.assertTrue(sector >= 0 && numSectors > 0 &&
+		       sector+numSectors <= this.numSectors);
+	Lib.assertTrue(offset >= 0 &&
+		       offset + numSectors*sectorSize <= data.length);
+    }
+
+    private void transfer(int sector, byte[] data, int offset, int length,
+			  boolean write) {
+	ByteBuffer buffer = ByteBuffer.wrap(data, offset, length);
+	long position = (long) sector*sectorSize;
+
+	try {
+	    while (buffer.hasRemaining()) {
+		long pos = position + buffer.position()-offset;
+		if (write)
+		    channel.write(buffer, pos);
+		else if (channel.read(buffer, pos) <= 0)
+		    break;
+	    }
+	}
+	catch (IOException e) {
+	    Lib.assertNotReached("disk I/O failed: " + e);
+	}
+
+	// sectors never written read as zeroes
+	if (!write)
+	    Arrays.fill(data, buffer.position(), offset+length, (byte) 0);
+    }
+
+    private Privilege privilege;
+    private DiskModel model;
+    private RandomAccessFile file = null;
+    private FileChannel channel;
+    private int sectorSize, numSectors;
+}
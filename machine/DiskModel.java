@@ -0,0 +1,226 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+import nachos.threads.*;
+
+/**
+ * The timing of a simulated disk. The disk is a number of tracks, each made of
+ * a number of sectors; a request for a run of sectors takes as long as the
+ * head needs to seek to the first sector's track, for the sector to rotate
+ * under it, and for the whole run to pass under it. Sequential requests
+ * therefore cost little more than their transfer time, and scattered ones cost
+ * a seek and half a rotation on average.
+ *
+ * <p>
+ * The disk serves one request at a time. Requests that arrive while it is
+ * busy wait, and a <tt>DiskScheduler</tt> chooses which to serve next. The
+ * model keeps no data; a device uses it to decide when each of its transfers
+ * completes.
+ *
+ * <p>
+ * The geometry is given by the <tt>nachos.conf</tt> keys
+ * <tt>Disk.numTracks</tt>, <tt>Disk.sectorsPerTrack</tt> and
+ * <tt>Disk.sectorSize</tt>. A seek between different tracks takes
+ * <tt>Stats.SeekTime/2</tt>, plus <tt>Stats.SeekTime</tt> for a full stroke
+ * in proportion to the distance, and a full rotation takes
+ * <tt>Stats.RotationTime</tt>.
+ */
+public final class DiskModel {
+    /**
+     * Allocate a new disk model, idle with its head over the first track.
+     *
+     * @param	privilege      	encapsulates privileged access to the Nachos
+     *				machine.
+     */
+    public DiskModel(Privilege privilege) {
+	this.privilege = privilege;
+
+	numTracks = Config.getInteger("Disk.numTracks", 32);
+	sectorsPerTrack = Config.getInteger("Disk.sectorsPerTrack", 32);
+	sectorSize = Config.getInteger("Disk.sectorSize", 128);
+	Lib.assertTrue(numTracks > 0 && sectorsPerTrack > 0 && sectorSize > 0);
+
+	scheduler = DiskScheduler.forName(Config.getString("Disk.scheduler",
+							   "FCFS"));
+    }
+
+    /**
+     * Return the number of sectors on the disk.
+     *
+     * @return	the number of sectors.
+     */
+    public int getNumSectors() {
+	return numTracks*sectorsPerTrack;
+    }
+
+    /**
+     * Return the number of bytes in a sector.
+     *
+     * @return	the sector size.
+     */
+    public int getSectorSize() {
+	return sectorSize;
+    }
+
+    /**
+     * Request a transfer, and call a handler when it completes. The handler
+     * is called as an interrupt handler, with interrupts disabled.
+     *
+     * @param	sector		the first sector to transfer. Sector numbers
+     *				past the end of the disk wrap around to its
+     *				start.
+     * @param	numSectors	the number of sectors to transfer.
+     * @param	write		<tt>true</tt> for a write, <tt>false</tt> for a
+     *				read.
+     * @param	handler		the completion handler.
+     */
+    public void request(int sector, int numSectors, boolean write,
+			Runnable handler) {
+	Lib.assertTrue(numSectors >= 0 && handler != null);
+
+	Request request =
+	    new Request(Math.floorMod(sector, getNumSectors()), numSectors,
+			write, handler, privilege.stats.totalTicks);
+
+	boolean intStatus = Machine.interrupt().disable();
+
+	scheduler.add(request);
+	if (current == null)
+	    startNext();
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * Transfer a run of sectors, returning only once the transfer completes.
+     * The current thread sleeps while the request waits and is served.
+     *
+     * @param	sector		the first sector to transfer.
+     * @param	numSectors	the number of sectors to transfer.
+     * @param	write		<tt>true</tt> for a write, <tt>false</tt> for a
+     *				read.
+     */
+    public void access(int sector, int numSectors, boolean write) {
+	final Semaphore done = new Semaphore(0);
+
+	request(sector, numSectors, write, new Runnable() {
+		public void run() { done.V(); }
+	    });
+
+	done.P();
+    }
+
+    /**
+     * Start serving the request the scheduler chooses. Must be called with
+     * interrupts disabled.
+     */
+    private void startNext() {
+	current = scheduler.next(track);
+	if (current == null)
+	    return;
+
+	long now = privilege.stats.totalTicks;
+
+	// move the head, then wait for the first sector to come under it
+	long time = seekTime(current.track);
+	int position = current.sector % sectorsPerTrack;
+	long angle = (now + time) % Stats.RotationTime;
+	long start = (long) position*Stats.RotationTime / sectorsPerTrack;
+	time += Math.floorMod(start - angle, (long) Stats.RotationTime);
+
+	time += (long) current.numSectors*Stats.RotationTime / sectorsPerTrack;
+
+	int last = current.sector + Math.max(0, current.numSectors-1);
+	track = (last / sectorsPerTrack) % numTracks;
+
+	privilege.interrupt.schedule(Math.max(1, time), "disk",
+				     new Runnable() {
+		public void run() { requestDone(); }
+	    });
+    }
+
+    private long seekTime(int target) {
+	int distance = Math.abs(target - track);
+	if (distance == 0)
+	    return 0;
+
+	return Stats.SeekTime/2 + (long) Stats.SeekTime*distance / numTracks;
+    }
+
+    private void requestDone() {
+	Request request = current;
+
+	long latency = privilege.stats.totalTicks - request.arrival;
+	privilege.stats.numDiskRequests++;
+	privilege.stats.totalDiskLatency += latency;
+	privilege.stats.maxDiskLatency =
+	    Math.max(privilege.stats.maxDiskLatency, latency);
+	if (request.write)
+	    privilege.stats.numDiskWrites += request.numSectors;
+	else
+	    privilege.stats.numDiskReads += request.numSectors;
+
+	startNext();
+
+	request.handler.run();
+    }
+
+    /**
+     * A transfer waiting for, or being served by, the disk.
+     */
+    public class Request {
+	private Request(int sector, int numSectors, boolean write,
+			Runnable handler, long arrival) {
+	    this.sector = sector;
+	    this.numSectors = numSectors;
+	    this.write = write;
+	    this.handler = handler;
+	    this.arrival = arrival;
+
+	    track = sector / sectorsPerTrack;
+	}
+
+	/**
+	 * Return the track holding the first sector of this request.
+	 *
+	 * @return	the track number.
+	 */
+	public int getTrack() {
+	    return track;
+	}
+
+	/**
+	 * Return the first sector of this request.
+	 *
+	 * @return	the sector number.
+	 */
+	public int getSector() {
+	    return sector;
+	}
+
+	/**
+	 * Return the time this request arrived at the disk.
+	 *
+	 * @return	the arrival time, in ticks.
+	 */
+	public long getArrival() {
+	    return arrival;
+	}
+
+	private int sector, numSectors, track;
+	private boolean write;
+	private Runnable handler;
+	private long arrival;
+    }
+
+    private Privilege privilege;
+    private DiskScheduler scheduler;
+    /** The request being served, or <tt>null</tt> if the disk is idle. */
+    private Request current = null;
+    /** The track the head is over. */
+    private int track = 0;
+
+    private int numTracks, sectorsPerTrack, sectorSize;
+}
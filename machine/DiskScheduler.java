@@ -0,0 +1,163 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.util.LinkedList;
+
+/**
+ * A policy that decides the order in which a <tt>DiskModel</tt> serves the
+ * requests waiting for it. The disk calls <tt>add()</tt> as requests arrive,
+ * and <tt>next()</tt> each time it becomes idle.
+ *
+ * <p>
+ * The policies provided are named by the <tt>nachos.conf</tt> key
+ * <tt>Disk.scheduler</tt>: <tt>FCFS</tt>, <tt>SSTF</tt>, <tt>SCAN</tt> or
+ * <tt>C-LOOK</tt>. The key may also name a subclass of this class.
+ */
+public abstract class DiskScheduler {
+    /**
+     * Allocate a new disk scheduler.
+     */
+    public DiskScheduler() {
+    }
+
+    /**
+     * Return a new instance of the policy with the specified name.
+     *
+     * @param	name	the name of a policy, or of a subclass of this class.
+     * @return	a new scheduler.
+     */
+    public static DiskScheduler forName(String name) {
+	if (name.equalsIgnoreCase("FCFS"))
+	    return new FCFS();
+	if (name.equalsIgnoreCase("SSTF"))
+	    return new SSTF();
+	if (name.equalsIgnoreCase("SCAN"))
+	    return new SCAN();
+	if (name.equalsIgnoreCase("C-LOOK") || name.equalsIgnoreCase("CLOOK"))
+	    return new CLOOK();
+
+	return (DiskScheduler) Lib.constructObject(name);
+    }
+
+    /**
+     * Add a request to those waiting to be served.
+     *
+     * @param	request	the request.
+     */
+    public void add(DiskModel.Request request) {
+	waiting.add(request);
+    }
+
+    /**
+     * Test whether any request is waiting to be served.
+     *
+     * @return	<tt>true</tt> if no request is waiting.
+     */
+    public boolean isEmpty() {
+	return waiting.isEmpty();
+    }
+
+    /**
+     * Remove and return the request to serve next.
+     *
+     * @param	track	the track the disk head is over.
+     * @return	the next request, or <tt>null</tt> if none is waiting.
+     */
+    public abstract DiskModel.Request next(int track);
+
+    /**
+     * Remove and return the waiting request closest to the specified track
+     * among those between two tracks, ties going to the one that arrived
+     * first.
+     *
+     * @param	track	the track to measure from.
+     * @param	low	the lowest track to consider.
+     * @param	high	the highest track to consider.
+     * @return	the request, or <tt>null</tt> if none is in range.
+     */
+    protected DiskModel.Request closest(int track, int low, int high) {
+	DiskModel.Request best = null;
+	for (DiskModel.Request request : waiting) {
+	    int t = request.getTrack();
+	    if (t < low || t > high)
+		continue;
+	    if (best == null ||
+		Math.abs(t-track) < Math.abs(best.getTrack()-track))
+		best = request;
+	}
+
+	if (best != null)
+	    waiting.remove(best);
+	return best;
+    }
+
+    /** The requests waiting to be served, in the order they arrived. */
+    protected LinkedList<DiskModel.Request> waiting =
+	new LinkedList<DiskModel.Request>();
+
+    /**
+     * Serve requests in the order they arrive.
+     */
+    public static class FCFS extends DiskScheduler {
+	public DiskModel.Request next(int track) {
+	    return waiting.poll();
+	}
+    }
+
+    /**
+     * Serve the request with the shortest seek from the current track.
+     */
+    public static class SSTF extends DiskScheduler {
+	public DiskModel.Request next(int track) {
+	    return closest(track, Integer.MIN_VALUE, Integer.MAX_VALUE);
+	}
+    }
+
+    /**
+     * Sweep the head back and forth, serving the requests in the direction
+     * it is moving and reversing when none remain ahead of it. This is the
+     * LOOK form of the elevator algorithm: the head does not travel on to the
+     * last track before reversing.
+     */
+    public static class SCAN extends DiskScheduler {
+	public DiskModel.Request next(int track) {
+	    if (waiting.isEmpty())
+		return null;
+
+	    DiskModel.Request request = ahead(track);
+	    if (request == null) {
+		up = !up;
+		request = ahead(track);
+	    }
+	    return request;
+	}
+
+	private DiskModel.Request ahead(int track) {
+	    if (up)
+		return closest(track, track, Integer.MAX_VALUE);
+	    else
+		return closest(track, Integer.MIN_VALUE, track);
+	}
+
+	private boolean up = true;
+    }
+
+    /**
+     * Sweep the head in one direction only, serving the requests at or beyond
+     * it in increasing track order, then returning to the lowest track
+     * requested and starting over.
+     */
+    public static class CLOOK extends DiskScheduler {
+	public DiskModel.Request next(int track) {
+	    if (waiting.isEmpty())
+		return null;
+
+	    DiskModel.Request request =
+		closest(track, track, Integer.MAX_VALUE);
+	    if (request == null)
+		request = closest(0, 0, Integer.MAX_VALUE);
+	    return request;
+	}
+    }
+}
@@ -4,6 +4,7 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.util.ArrayList;
 import java.util.TreeSet;
 import java.util.Iterator;
 import java.util.SortedSet;
@@ -133,6 +134,35 @@ public final class Interrupt {
 	pending.add(toOccur);
     }
 
+    private void post(String type, Runnable handler) {
+	synchronized (posted) {
+	    posted.add(new PostedInterrupt(type, handler));
+	    anyPosted = true;
+	}
+    }
+
+    /**
+     * Move the interrupts raised by other Java threads since the last tick to
+     * the pending set, to occur now.
+     */
+    private void schedulePosted() {
+	synchronized (posted) {
+	    long time = privilege.stats.totalTicks;
+
+	    for (PostedInterrupt next : posted) {
+		Lib.debug(dbgInt,
+			  "Posting the " + next.type +
+			  " interrupt handler at time = " + time);
+
+		pending.add(new PendingInterrupt(time, next.type,
+						 next.handler));
+	    }
+
+	    posted.clear();
+	    anyPosted = false;
+	}
+    }
+
     private void tick(boolean inKernelMode) {
 	Stats stats = privilege.stats;
 
@@ -149,6 +179,8 @@ public final class Interrupt {
 	    System.out.println("== Tick " + stats.totalTicks + " ==");
 
 	enabled = false;
+	if (anyPosted)
+	    schedulePosted();
 	checkIfDue();
 	enabled = true;
     }
@@ -232,12 +264,26 @@ public final class Interrupt {
 	private long id;
     }
     
+    private class PostedInterrupt {
+	PostedInterrupt(String type, Runnable handler) {
+	    this.type = type;
+	    this.handler = handler;
+	}
+
+	String type;
+	Runnable handler;
+    }
+    
     private long numPendingInterruptsCreated = 0;
 
     private Privilege privilege;
 
     private boolean enabled;
     private TreeSet<PendingInterrupt> pending;
+    /** Interrupts raised by other Java threads, not yet pending. */
+    private ArrayList<PostedInterrupt> posted =
+	new ArrayList<PostedInterrupt>();
+    private volatile boolean anyPosted = false;
 
     private static final char dbgInt = 'i';
 
@@ -246,6 +292,10 @@ public final class Interrupt {
 	    Interrupt.this.schedule(when, type, handler);
 	}
 
+	public void post(String type, Runnable handler) {
+	    Interrupt.this.post(type, handler);
+	}
+
 	public void tick(boolean inKernelMode) {
 	    Interrupt.this.tick(inKernelMode);
 	}
@@ -0,0 +1,217 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import nachos.security.*;
+
+import java.util.ArrayDeque;
+
+/**
+ * A network of several links inside this Nachos machine, so that a protocol
+ * can be run between many simulated nodes, each with its own link and post
+ * office, in one JVM. Packets are handed from link to link as objects,
+ * without host sockets, threads or copying. Because every link is driven by
+ * the simulated interrupt controller, a run is deterministic for a given
+ * random seed.
+ *
+ * <p>
+ * <tt>nachos.conf</tt> specifies the number of links,
+ * <tt>LoopbackNetwork.numLinks</tt>; the reliability,
+ * <tt>NetworkLink.reliability</tt>, as for a real link; the number of ticks a
+ * packet takes to arrive after it is sent, <tt>LoopbackNetwork.delay</tt>;
+ * and the bandwidth, as the number of ticks sending each byte adds to the
+ * <tt>Stats.NetworkTime</tt> ticks sending a packet takes,
+ * <tt>LoopbackNetwork.ticksPerByte</tt>. At most
+ * <tt>LoopbackNetwork.queueLength</tt> packets wait at a link to be
+ * received; more are dropped. As on a real link, up to
+ * <tt>NetworkLink.transmitRingSize</tt> packets may be queued to be sent.
+ */
+public class LoopbackNetwork {
+    /**
+     * Allocate a new loopback network and its links.
+     *
+     * @param	privilege      	encapsulates privileged access to the Nachos
+     * 				machine.
+     */
+    public LoopbackNetwork(Privilege privilege) {
+	this.privilege = privilege;
+
+	reliability = Config.getDouble("NetworkLink.reliability");
+	Lib.assertTrue(reliability > 0 && reliability <= 1.0);
+
+	int numLinks = Config.getInteger("LoopbackNetwork.numLinks", 2);
+	Lib.assertTrue(numLinks > 0 && numLinks <= Packet.linkAddressLimit);
+
+	delay = Config.getInteger("LoopbackNetwork.delay", 0);
+	ticksPerByte = Config.getInteger("LoopbackNetwork.ticksPerByte", 0);
+	queueLength = Config.getInteger("LoopbackNetwork.queueLength", 16);
+	transmitRingSize = Config.getInteger("NetworkLink.transmitRingSize", 8);
+	Lib.assertTrue(delay >= 0 && ticksPerByte >= 0 && queueLength > 0 &&
+		       transmitRingSize > 0);
+
+	System.out.print(" network(loopback, " + numLinks + ")");
+
+	links = new Link[numLinks];
+	for (int i=0; i<numLinks; i++)
+	    links[i] = new Link(i);
+    }
+
+    /**
+     * Return the number of links on this network.
+     *
+     * @return	the number of links.
+     */
+    public int getNumLinks() {
+	return links.length;
+    }
+
+    /**
+     * Return the link with the specified address.
+     *
+     * @param	linkAddress	the address of the link.
+     * @return	the link.
+     */
+    public NetworkLink getLink(int linkAddress) {
+	Lib.assertTrue(linkAddress >= 0 && linkAddress < links.length);
+
+	return links[linkAddress];
+    }
+
+    private class Link extends NetworkLink {
+	Link(int linkAddress) {
+	    this.linkAddress = linkAddress;
+
+	    receiveInterrupt = new Runnable() {
+		    public void run() { receiveInterrupt(); }
+		};
+
+	    sendInterrupt = new Runnable() {
+		    public void run() { sendInterrupt(); }
+		};
+	}
+
+	public int getLinkAddress() {
+	    return linkAddress;
+	}
+
+	public void setInterruptHandlers(Runnable receiveInterruptHandler,
+					 Runnable sendInterruptHandler) {
+	    this.receiveInterruptHandler = receiveInterruptHandler;
+	    this.sendInterruptHandler = sendInterruptHandler;
+	}
+
+	/**
+	 * Queue a packet that has arrived at this link.
+	 */
+	private void arrive(Packet p) {
+	    if (incoming.size() == queueLength)
+		return;
+
+	    incoming.add(p);
+
+	    if (incoming.size() == 1 && incomingPacket == null)
+		scheduleReceiveInterrupt();
+	}
+
+	private void scheduleReceiveInterrupt() {
+	    privilege.interrupt.schedule(1, "network recv", receiveInterrupt);
+	}
+
+	private void receiveInterrupt() {
+	    Lib.assertTrue(incomingPacket == null);
+
+	    while (incomingPacket == null && !incoming.isEmpty()) {
+		Packet p = incoming.poll();
+
+		if (Machine.autoGrader().canReceivePacket(privilege)) {
+		    incomingPacket = p;
+		    privilege.stats.numPacketsReceived++;
+		}
+	    }
+
+	    if (incomingPacket != null && receiveInterruptHandler != null)
+		receiveInterruptHandler.run();
+	}
+
+	public Packet receive() {
+	    Packet p = incomingPacket;
+
+	    if (incomingPacket != null) {
+		incomingPacket = null;
+		if (!incoming.isEmpty())
+		    scheduleReceiveInterrupt();
+	    }
+
+	    return p;
+	}
+
+	private void scheduleSendInterrupt() {
+	    long time = Stats.NetworkTime +
+		(long) ticksPerByte * outgoing.peek().packetBytes.length;
+	    privilege.interrupt.schedule(time, "network send", sendInterrupt);
+	}
+
+	private void sendInterrupt() {
+	    Lib.assertTrue(!outgoing.isEmpty());
+
+	    boolean wasFull = (outgoing.size() == transmitRingSize);
+	    final Packet p = outgoing.poll();
+
+	    // randomly drop packets, according to the reliability
+	    if (Machine.autoGrader().canSendPacket(privilege) &&
+		Lib.random() <= reliability &&
+		p.dstLink < links.length) {
+		privilege.stats.numPacketsSent++;
+
+		final Link destination = links[p.dstLink];
+		if (delay == 0) {
+		    destination.arrive(p);
+		}
+		else {
+		    privilege.interrupt.schedule(delay, "network arrival",
+						 new Runnable() {
+			    public void run() { destination.arrive(p); }
+			});
+		}
+	    }
+
+	    if (!outgoing.isEmpty())
+		scheduleSendInterrupt();
+
+	    if ((wasFull || outgoing.isEmpty()) &&
+		sendInterruptHandler != null)
+		sendInterruptHandler.run();
+	}
+
+	public boolean send(Packet pkt) {
+	    if (outgoing.size() == transmitRingSize)
+		return false;
+
+	    outgoing.add(pkt);
+	    if (outgoing.size() == 1)
+		scheduleSendInterrupt();
+
+	    return true;
+	}
+
+	private int linkAddress;
+
+	private Runnable receiveInterrupt;
+	private Runnable sendInterrupt;
+
+	private Runnable receiveInterruptHandler = null;
+	private Runnable sendInterruptHandler = null;
+
+	/** Packets that have arrived but not yet been received. */
+	private ArrayDeque<Packet> incoming = new ArrayDeque<Packet>();
+	private Packet incomingPacket = null;
+	/** Packets queued to be sent, the first being sent now. */
+	private ArrayDeque<Packet> outgoing = new ArrayDeque<Packet>();
+    }
+
+    private Privilege privilege;
+    private Link[] links;
+
+    private double reliability;
+    private int delay, ticksPerByte, queueLength, transmitRingSize;
+}
@@ -179,14 +179,28 @@ public final class Machine {
 	    processor = new Processor(privilege, numPhysPages);
 	}				      
 
-	if (Config.getBoolean("Machine.console"))
-	    console = new StandardConsole(privilege);
+	if (Config.getBoolean("Machine.console")) {
+	    if (Config.getBoolean("Console.capture", false))
+		console = new CaptureConsole(privilege);
+	    else
+		console = new StandardConsole(privilege);
+	}
 
 	if (Config.getBoolean("Machine.stubFileSystem"))
 	    stubFileSystem = new StubFileSystem(privilege, testDirectory);
 
-	if (Config.getBoolean("Machine.networkLink"))
-	    networkLink = new NetworkLink(privilege);
+	if (Config.getBoolean("Machine.disk"))
+	    disk = new Disk(privilege, testDirectory);
+
+	if (Config.getBoolean("Machine.networkLink")) {
+	    if (Config.getBoolean("NetworkLink.loopback", false)) {
+		loopbackNetwork = new LoopbackNetwork(privilege);
+		networkLink = loopbackNetwork.getLink(0);
+	    }
+	    else {
+		networkLink = new NetworkLink(privilege);
+	    }
+	}
     }
 
     private static void checkUserClasses() {
@@ -336,6 +350,13 @@ public final class Machine {
      * @return	the stub file system, or <tt>null</tt> if it is not present.
      */
     public static FileSystem stubFileSystem() { return stubFileSystem; }
+
+    /**
+     * Return the disk.
+     *
+     * @return	the disk, or <tt>null</tt> if it is not present.
+     */
+    public static Disk disk() { return disk; }
     
     /**
      * Return the network link.
@@ -343,6 +364,14 @@ public final class Machine {
      * @return	the network link,  or <tt>null</tt> if it is not present.
      */
     public static NetworkLink networkLink() { return networkLink; }
+
+    /**
+     * Return the loopback network. If it is present, the network link is its
+     * link 0, and its other links may be used to simulate other nodes.
+     *
+     * @return	the loopback network, or <tt>null</tt> if it is not present.
+     */
+    public static LoopbackNetwork loopbackNetwork() { return loopbackNetwork; }
     
     /**
      * Return the autograder.
@@ -357,7 +386,9 @@ public final class Machine {
     private static Processor processor = null;
     private static SerialConsole console = null;
     private static FileSystem stubFileSystem = null;
+    private static Disk disk = null;
     private static NetworkLink networkLink = null;
+    private static LoopbackNetwork loopbackNetwork = null;
     private static AutoGrader autoGrader = null;
 
     private static String autoGraderClassName = "nachos.ag.AutoGrader";
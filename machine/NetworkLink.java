@@ -5,11 +5,14 @@ package nachos.machine;
 import nachos.security.*;
 
 import java.io.IOException;
-import java.net.DatagramSocket;
-import java.net.DatagramPacket;
 import java.net.InetAddress;
+import java.net.InetSocketAddress;
 import java.net.UnknownHostException;
-import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayDeque;
 
 /**
  * A full-duplex network link. Provides ordered, unreliable delivery of
@@ -57,6 +60,19 @@ import java.net.SocketException;
  * for a network layer in Nachos. This should simplify your design for the
  * session/transport layer, since you can assume packets never arrive out of
  * order.
+ *
+ * <p>
+ * Packets are exchanged as UDP datagrams on a non-blocking channel. A host
+ * thread waits for them and copies each into a ring of
+ * <tt>NetworkLink.receiveRingSize</tt> preallocated buffers; a receive
+ * interrupt is raised when a packet arrives, and one tick after each packet
+ * is received while the ring holds more.
+ *
+ * <p>
+ * Up to <tt>NetworkLink.transmitRingSize</tt> packets may be queued to be
+ * sent. They are sent one after another, each taking
+ * <tt>Stats.NetworkTime</tt> ticks, without waiting for the kernel between
+ * them.
  */
 public class NetworkLink {
     /**
@@ -87,23 +103,47 @@ public class NetworkLink {
 	reliability = Config.getDouble("NetworkLink.reliability");
 	Lib.assertTrue(reliability > 0 && reliability <= 1.0);
 
-	socket = null;
+	transmitRingSize = Config.getInteger("NetworkLink.transmitRingSize", 8);
+	Lib.assertTrue(transmitRingSize > 0);
+
+	ring = new ByteBuffer[Config.getInteger("NetworkLink.receiveRingSize",
+						16)];
+	Lib.assertTrue(ring.length > 0);
+	for (int i=0; i<ring.length; i++)
+	    ring[i] = ByteBuffer.allocateDirect(Packet.maxPacketLength);
+
+	channel = null;
 
 	for (linkAddress=0;linkAddress<Packet.linkAddressLimit;linkAddress++) {
 	    try {
-		socket = new DatagramSocket(portBase + linkAddress, localHost);
+		channel = DatagramChannel.open();
+		channel.bind(new InetSocketAddress(localHost,
+						   portBase + linkAddress));
 		break;
 	    }
-	    catch (SocketException e) {
+	    catch (IOException e) {
+		close(channel);
+		channel = null;
 	    }
 	}
 
-	if (socket == null) {
+	if (channel == null) {
 	    System.out.println("");
 	    System.out.println("Unable to acquire a link address!");
 	    Lib.assertNotReached();
 	}
 
+	try {
+	    channel.configureBlocking(false);
+	    selector = Selector.open();
+	    channel.register(selector, SelectionKey.OP_READ);
+	}
+	catch (IOException e) {
+	    System.out.println("");
+	    System.out.println("Unable to listen on the link!");
+	    Lib.assertNotReached();
+	}
+
 	System.out.print("(" + linkAddress + ")");
 
 	receiveInterrupt = new Runnable() {
@@ -113,16 +153,32 @@ public class NetworkLink {
 	sendInterrupt = new Runnable() {
 		public void run() { sendInterrupt(); }
 	    };		
-	
-	scheduleReceiveInterrupt();
 
 	Thread receiveThread = new Thread(new Runnable() {
 		public void run() { receiveLoop(); }
-	    });
+	    }, "network receive");
 
+	receiveThread.setDaemon(true);
 	receiveThread.start();
     }
 
+    /**
+     * Allocate a network link that does not use a host socket, for a
+     * subclass that moves packets some other way. The subclass must override
+     * every public method.
+     */
+    protected NetworkLink() {
+    }
+
+    private static void close(DatagramChannel channel) {
+	try {
+	    if (channel != null)
+		channel.close();
+	}
+	catch (IOException e) {
+	}
+    }
+
     /**
      * Returns the address of this network link.
      *
@@ -140,9 +196,10 @@ public class NetworkLink {
      * and can be read using <tt>receive()</tt>.
      *
      * <p>
-     * The send interrupt handler is called every time a packet sent with
-     * <tt>send()</tt> is finished being sent. This means that another
-     * packet can be sent.
+     * The send interrupt handler is called when a packet has been sent and
+     * either every queued packet has now been sent, or the transmit ring was
+     * full and so another packet can now be queued. It is not called after
+     * every packet.
      *
      * @param	receiveInterruptHandler	the callback to call when a packet
      *					arrives.
@@ -155,36 +212,42 @@ public class NetworkLink {
 	this.sendInterruptHandler = sendInterruptHandler;
     }
 
-    private void scheduleReceiveInterrupt() {
-	privilege.interrupt.schedule(Stats.NetworkTime, "network recv",
-				     receiveInterrupt);
-    }
-
-    private synchronized void receiveInterrupt() {
+    private void receiveInterrupt() {
 	Lib.assertTrue(incomingPacket == null);
 
-	if (incomingBytes != null) {
+	while (incomingPacket == null) {
+	    ByteBuffer slot;
+	    synchronized (this) {
+		if (ringCount == 0) {
+		    receiveIdle = true;
+		    return;
+		}
+		slot = ring[ringStart];
+	    }
+
+	    // the receive thread does not touch a full slot
+	    byte[] packetBytes = new byte[slot.remaining()];
+	    slot.get(packetBytes);
+
+	    synchronized (this) {
+		ringStart = (ringStart+1) % ring.length;
+		if (ringCount-- == ring.length)
+		    notify();
+	    }
+
 	    if (Machine.autoGrader().canReceivePacket(privilege)) {
 		try {
-		    incomingPacket = new Packet(incomingBytes);
+		    incomingPacket = new Packet(packetBytes);
 
 		    privilege.stats.numPacketsReceived++;
 		}
 		catch (MalformedPacketException e) {
 		}
 	    }
-
-	    incomingBytes = null;
-	    notify();
-
-	    if (incomingPacket == null)
-		scheduleReceiveInterrupt();
-	    else if (receiveInterruptHandler != null)
-		receiveInterruptHandler.run();
-	}
-	else {
-	    scheduleReceiveInterrupt();
 	}
+
+	if (receiveInterruptHandler != null)
+	    receiveInterruptHandler.run();
     }
 
     /**
@@ -198,46 +261,64 @@ public class NetworkLink {
 	
 	if (incomingPacket != null) {
 	    incomingPacket = null;
-	    scheduleReceiveInterrupt();
+
+	    synchronized (this) {
+		if (ringCount > 0)
+		    privilege.interrupt.schedule(1, "network recv",
+						 receiveInterrupt);
+		else
+		    receiveIdle = true;
+	    }
 	}
 
 	return p;
     }
 
+    /**
+     * Copy datagrams into the receive ring as they arrive, waiting while it
+     * is full. Run by the receive thread.
+     */
     private void receiveLoop() {
 	while (true) {
-	    synchronized(this) {
-		while (incomingBytes != null) {
-		    try {
+	    synchronized (this) {
+		try {
+		    while (ringCount == ring.length)
 			wait();
-		    }
-		    catch (InterruptedException e) {
-		    }
+		}
+		catch (InterruptedException e) {
+		    return;
 		}
 	    }
 
-	    byte[] packetBytes;
-
 	    try {
-		byte[] buffer = new byte[Packet.maxPacketLength];
+		selector.select();
+		selector.selectedKeys().clear();
 
-		DatagramPacket dp = new DatagramPacket(buffer, buffer.length);
-		
-		socket.receive(dp);
+		synchronized (this) {
+		    while (ringCount < ring.length) {
+			ByteBuffer slot =
+			    ring[(ringStart+ringCount) % ring.length];
 
-		packetBytes = new byte[dp.getLength()];
+			slot.clear();
+			if (channel.receive(slot) == null)
+			    break;
 
-		System.arraycopy(buffer,0, packetBytes,0, packetBytes.length);
+			slot.flip();
+			ringCount++;
+		    }
+
+		    if (ringCount > 0 && receiveIdle) {
+			receiveIdle = false;
+			privilege.interrupt.post("network recv",
+						 receiveInterrupt);
+		    }
+		}
 	    }
 	    catch (IOException e) {
 		return;
 	    }
-
-	    synchronized(this) {
-		incomingBytes = packetBytes;
-	    }
 	}
-    }		
+    }
     
     private void scheduleSendInterrupt() {
 	privilege.interrupt.schedule(Stats.NetworkTime, "network send",
@@ -245,7 +326,10 @@ public class NetworkLink {
     }
 
     private void sendInterrupt() {
-	Lib.assertTrue(outgoingPacket != null);
+	Lib.assertTrue(!outgoing.isEmpty());
+
+	boolean wasFull = (outgoing.size() == transmitRingSize);
+	outgoingPacket = outgoing.poll();
 
 	// randomly drop packets, according to its reliability
 	if (Machine.autoGrader().canSendPacket(privilege) &&
@@ -259,35 +343,50 @@ public class NetworkLink {
 	    outgoingPacket = null;
 	}
 
-	if (sendInterruptHandler != null)
+	if (!outgoing.isEmpty())
+	    scheduleSendInterrupt();
+
+	if ((wasFull || outgoing.isEmpty()) && sendInterruptHandler != null)
 	    sendInterruptHandler.run();
     }
 
     private void sendPacket() {
 	Packet p = outgoingPacket;
 	outgoingPacket = null;
-	
-	try {
-	    socket.send(new DatagramPacket(p.packetBytes, p.packetBytes.length,
-					   localHost, portBase+p.dstLink));
 
-	    privilege.stats.numPacketsSent++;
+	if (destinations[p.dstLink] == null)
+	    destinations[p.dstLink] =
+		new InetSocketAddress(localHost, portBase+p.dstLink);
+
+	sendBuffer.clear();
+	sendBuffer.put(p.packetBytes);
+	sendBuffer.flip();
+
+	try {
+	    // a full host socket buffer drops the packet, as a network may
+	    if (channel.send(sendBuffer, destinations[p.dstLink]) > 0)
+		privilege.stats.numPacketsSent++;
 	}
 	catch (IOException e) {
 	}
     }
 
     /**
-     * Send another packet. If a packet is already being sent, the result is
-     * not defined.
+     * Queue another packet to be sent, after those already queued.
      *
      * @param	pkt	the packet to send.
+     * @return	<tt>true</tt> if the packet was queued, or <tt>false</tt> if
+     *		the transmit ring is full.
      */       
-    public void send(Packet pkt) {
-	if (outgoingPacket == null)
+    public boolean send(Packet pkt) {
+	if (outgoing.size() == transmitRingSize)
+	    return false;
+
+	outgoing.add(pkt);
+	if (outgoing.size() == 1)
 	    scheduleSendInterrupt();
-	
-	outgoingPacket = pkt;
+
+	return true;
     }
 
     private static final int hash;
@@ -316,14 +415,27 @@ public class NetworkLink {
     private Runnable sendInterruptHandler = null;
 
     private InetAddress localHost;
-    private DatagramSocket socket;
+    private DatagramChannel channel;
+    private Selector selector;
+    /** The address of each link sent to so far, by link address. */
+    private InetSocketAddress[] destinations =
+	new InetSocketAddress[Packet.linkAddressLimit];
+    private ByteBuffer sendBuffer =
+	ByteBuffer.allocateDirect(Packet.maxPacketLength);
 
     private byte linkAddress;
     private double reliability;
 
-    private byte[] incomingBytes = null;
+    /** Packets received from the channel but not yet by Nachos. */
+    private ByteBuffer[] ring;
+    private int ringStart = 0, ringCount = 0;
+    /** Whether no receive interrupt is scheduled. */
+    private boolean receiveIdle = true;
+
+    /** Packets queued to be sent, the first being sent now. */
+    private ArrayDeque<Packet> outgoing = new ArrayDeque<Packet>();
+    private int transmitRingSize;
+
     private Packet incomingPacket = null;
     private Packet outgoingPacket = null;
-
-    private boolean sendBusy = false;
 }
@@ -77,6 +77,70 @@ public class OpenFile {
 	return -1;
     }
 
+    /**
+     * Read this file starting at the specified position into a sequence of
+     * regions of the specified buffer, filling each region before starting
+     * on the next, and return the number of bytes successfully read. A short
+     * read ends the transfer. If no bytes were read because of a fatal error,
+     * returns -1.
+     *
+     * @param	pos		the offset in the file at which to start
+     *				reading.
+     * @param	buf		the buffer to store the bytes in.
+     * @param	extents		the regions of the buffer: region <i>i</i>
+     *				starts at <tt>extents[2*i]</tt> and is
+     *				<tt>extents[2*i+1]</tt> bytes long.
+     * @param	numExtents	the number of regions.
+     * @return	the actual number of bytes successfully read, or -1 on failure.
+     */
+    public int read(int pos, byte[] buf, int[] extents, int numExtents) {
+	int amount = 0;
+	for (int i=0; i<numExtents; i++) {
+	    int length = extents[2*i+1];
+	    int read = read(pos+amount, buf, extents[2*i], length);
+	    if (read == -1)
+		return (amount > 0) ? amount : -1;
+
+	    amount += read;
+	    if (read < length)
+		break;
+	}
+
+	return amount;
+    }
+
+    /**
+     * Write this file starting at the specified position from a sequence of
+     * regions of the specified buffer, and return the number of bytes
+     * successfully written. A short write ends the transfer. If no bytes were
+     * written because of a fatal error, returns -1.
+     *
+     * @param	pos		the offset in the file at which to start
+     *				writing.
+     * @param	buf		the buffer to get the bytes from.
+     * @param	extents		the regions of the buffer: region <i>i</i>
+     *				starts at <tt>extents[2*i]</tt> and is
+     *				<tt>extents[2*i+1]</tt> bytes long.
+     * @param	numExtents	the number of regions.
+     * @return	the actual number of bytes successfully written, or -1 on
+     *		failure.
+     */
+    public int write(int pos, byte[] buf, int[] extents, int numExtents) {
+	int amount = 0;
+	for (int i=0; i<numExtents; i++) {
+	    int length = extents[2*i+1];
+	    int written = write(pos+amount, buf, extents[2*i], length);
+	    if (written == -1)
+		return (amount > 0) ? amount : -1;
+
+	    amount += written;
+	    if (written < length)
+		break;
+	}
+
+	return amount;
+    }
+
     /**
      * Get the length of this file.
      *
@@ -86,6 +150,17 @@ public class OpenFile {
 	return -1;
     }
 
+    /**
+     * Write any data held for this file on its way to the underlying storage
+     * before returning. This implementation writes through, and does nothing.
+     *
+     * @return	<tt>true</tt> if the data was written, <tt>false</tt> on
+     *		failure.
+     */
+    public boolean sync() {
+	return true;
+    }
+
     /**
      * Close this file and release any associated system resources.
      */
@@ -136,6 +211,103 @@ public class OpenFile {
 	return -1;
     }
 
+    /**
+     * Read this file starting at the current file pointer into a sequence of
+     * regions of the specified buffer, as <tt>read(pos, buf, extents,
+     * numExtents)</tt> does. Advances the file pointer by the number of bytes
+     * read.
+     *
+     * @param	buf		the buffer to store the bytes in.
+     * @param	extents		the regions of the buffer.
+     * @param	numExtents	the number of regions.
+     * @return	the actual number of bytes successfully read, or -1 on failure.
+     */
+    public int read(byte[] buf, int[] extents, int numExtents) {
+	int amount = 0;
+	for (int i=0; i<numExtents; i++) {
+	    int length = extents[2*i+1];
+	    int read = read(buf, extents[2*i], length);
+	    if (read == -1)
+		return (amount > 0) ? amount : -1;
+
+	    amount += read;
+	    if (read < length)
+		break;
+	}
+
+	return amount;
+    }
+
+    /**
+     * Write this file starting at the current file pointer from a sequence of
+     * regions of the specified buffer, as <tt>write(pos, buf, extents,
+     * numExtents)</tt> does. Advances the file pointer by the number of bytes
+     * written.
+     *
+     * @param	buf		the buffer to get the bytes from.
+     * @param	extents		the regions of the buffer.
+     * @param	numExtents	the number of regions.
+     * @return	the actual number of bytes successfully written, or -1 on
+     *		failure.
+     */
+    public int write(byte[] buf, int[] extents, int numExtents) {
+	int amount = 0;
+	for (int i=0; i<numExtents; i++) {
+	    int length = extents[2*i+1];
+	    int written = write(buf, extents[2*i], length);
+	    if (written == -1)
+		return (amount > 0) ? amount : -1;
+
+	    amount += written;
+	    if (written < length)
+		break;
+	}
+
+	return amount;
+    }
+
+    /**
+     * Copy bytes from this file, starting at the current file pointer, to
+     * another file at its current file pointer, and return the number of
+     * bytes successfully copied. Advances both file pointers by this amount.
+     * Fewer bytes than requested are copied only if this file has no more to
+     * give, or the destination accepts no more. If no bytes could be copied
+     * because of a fatal error, returns -1.
+     *
+     * <p>
+     * This implementation copies through a kernel buffer; file systems that
+     * can copy more cheaply should override it.
+     *
+     * @param	destination	the file to copy to.
+     * @param	count		the number of bytes to copy.
+     * @return	the actual number of bytes successfully copied, or -1 on
+     *		failure.
+     */
+    public int copyTo(OpenFile destination, int count) {
+	byte[] buf = new byte[Math.min(count, copyBufferSize)];
+
+	int amount = 0;
+	while (amount < count) {
+	    int read = read(buf, 0, Math.min(count-amount, buf.length));
+	    if (read == -1)
+		return (amount > 0) ? amount : -1;
+	    if (read == 0)
+		break;
+
+	    int written = destination.write(buf, 0, read);
+	    if (written == -1)
+		return (amount > 0) ? amount : -1;
+
+	    amount += written;
+	    if (written < read)
+		break;
+	}
+
+	return amount;
+    }
+
+    private static final int copyBufferSize = 4096;
+
     private FileSystem fileSystem;
     private String name;
 }
@@ -51,6 +51,24 @@ public abstract class OpenFileWithPosition extends OpenFile {
 	return amount;
     }
 
+    public int read(byte[] buf, int[] extents, int numExtents) {
+	int amount = read(position, buf, extents, numExtents);
+	if (amount == -1)
+	    return -1;
+
+	position += amount;
+	return amount;
+    }
+
+    public int write(byte[] buf, int[] extents, int numExtents) {
+	int amount = write(position, buf, extents, numExtents);
+	if (amount == -1)
+	    return -1;
+
+	position += amount;
+	return amount;
+    }
+
     /**
      * The current value of the file pointer.
      */
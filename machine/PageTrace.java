@@ -0,0 +1,207 @@
+// PART OF THE MACHINE SIMULATION. DO NOT CHANGE.
+
+package nachos.machine;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * A compact record of the virtual pages referenced by user programs, written
+ * by the processor when the <tt>nachos.conf</tt> key
+ * <tt>Processor.traceFile</tt> is set.
+ *
+ * <p>
+ * Consecutive references by the same address space to the same page with the
+ * same access type are merged into a single run. The file starts with a
+ * 4-byte magic number, followed by records that each start with a tag byte:
+ *
+ * <ul>
+ * <li><tt>0</tt>: the address space changed; followed by the new address
+ * space identifier.
+ * <li><tt>1</tt> or <tt>2</tt>: a run of reads or writes; followed by the
+ * difference between the run's page number and that of the previous run,
+ * and by the length of the run.
+ * </ul>
+ *
+ * All numbers after the tag are unsigned LEB128 varints; page number
+ * differences are zigzag-encoded first, so that nearby pages take one byte.
+ */
+public final class PageTrace {
+    /**
+     * Allocate a new trace writer.
+     *
+     * @param	out	the stream to write the trace to.
+     * @exception	IOException	if the header could not be written.
+     */
+    public PageTrace(OutputStream out) throws IOException {
+	this.out = new BufferedOutputStream(out, 1<<16);
+
+	writeInt(magic);
+    }
+
+    /**
+     * Record a single memory reference.
+     *
+     * @param	asid	the address space making the reference.
+     * @param	vpn	the virtual page referenced.
+     * @param	write	<tt>true</tt> if the reference is a write.
+     */
+    public void reference(int asid, int vpn, boolean write) {
+	if (runLength > 0 && runLength < Integer.MAX_VALUE &&
+	    asid == runASID && vpn == runVPN && write == runWrite) {
+	    runLength++;
+	    return;
+	}
+
+	endRun();
+
+	runASID = asid;
+	runVPN = vpn;
+	runWrite = write;
+	runLength = 1;
+    }
+
+    /**
+     * Write out any buffered references and close the underlying stream.
+     */
+    public void close() {
+	endRun();
+
+	try {
+	    out.close();
+	}
+	catch (IOException e) {
+	}
+    }
+
+    private void endRun() {
+	if (runLength == 0)
+	    return;
+
+	try {
+	    if (runASID != lastASID) {
+		out.write(tagSwitch);
+		writeVarint(runASID);
+		lastASID = runASID;
+	    }
+
+	    out.write(runWrite ? tagWriteRun : tagReadRun);
+	    writeVarint(zigzag(runVPN - lastVPN));
+	    writeVarint(runLength);
+	    lastVPN = runVPN;
+	}
+	catch (IOException e) {
+	}
+
+	runLength = 0;
+    }
+
+    private void writeInt(int value) throws IOException {
+	for (int i=0; i<4; i++)
+	    out.write(value >>> (8*i));
+    }
+
+    private void writeVarint(int value) throws IOException {
+	while ((value & ~0x7F) != 0) {
+	    out.write((value & 0x7F) | 0x80);
+	    value >>>= 7;
+	}
+	out.write(value);
+    }
+
+    private static int zigzag(int value) {
+	return (value << 1) ^ (value >> 31);
+    }
+
+    private static int unzigzag(int value) {
+	return (value >>> 1) ^ -(value & 1);
+    }
+
+    /**
+     * Receives the runs of a trace as it is replayed.
+     */
+    public interface Visitor {
+	/**
+	 * Called for every run of references in the trace, in order.
+	 *
+	 * @param	asid	the address space making the references.
+	 * @param	vpn	the virtual page referenced.
+	 * @param	write	<tt>true</tt> if the references are writes.
+	 * @param	length	the number of consecutive references.
+	 */
+	public void run(int asid, int vpn, boolean write, int length);
+    }
+
+    /**
+     * Decode a trace written by a <tt>PageTrace</tt>, passing each run to the
+     * specified visitor.
+     *
+     * @param	in	the stream to read the trace from.
+     * @param	visitor	the visitor to pass runs to.
+     * @exception	IOException	if the trace is malformed or could not be
+     *					read.
+     */
+    public static void replay(InputStream in, Visitor visitor)
+	throws IOException {
+	in = new BufferedInputStream(in, 1<<16);
+
+	int header = 0;
+	for (int i=0; i<4; i++)
+	    header |= readByte(in) << (8*i);
+	if (header != magic)
+	    throw new IOException("not a page trace");
+
+	int asid = 0, vpn = 0;
+
+	for (int tag; (tag = in.read()) != -1; ) {
+	    switch (tag) {
+	    case tagSwitch:
+		asid = readVarint(in);
+		break;
+	    case tagReadRun:
+	    case tagWriteRun:
+		vpn += unzigzag(readVarint(in));
+		visitor.run(asid, vpn, tag == tagWriteRun, readVarint(in));
+		break;
+	    default:
+		throw new IOException("bad trace record " + tag);
+	    }
+	}
+    }
+
+    private static int readByte(InputStream in) throws IOException {
+	int value = in.read();
+	if (value == -1)
+	    throw new EOFException();
+
+	return value;
+    }
+
+    private static int readVarint(InputStream in) throws IOException {
+	int value = 0;
+	for (int shift=0; shift<32; shift+=7) {
+	    int b = readByte(in);
+	    value |= (b & 0x7F) << shift;
+	    if ((b & 0x80) == 0)
+		return value;
+	}
+
+	throw new IOException("varint too long");
+    }
+
+    private OutputStream out;
+
+    private int runASID, runVPN, runLength = 0;
+    private boolean runWrite;
+    private int lastASID = 0, lastVPN = 0;
+
+    private static final int magic = 0x3154504E;	// "NPT1"
+
+    private static final int tagSwitch = 0;
+    private static final int tagReadRun = 1;
+    private static final int tagWriteRun = 2;
+}
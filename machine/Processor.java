@@ -4,6 +4,10 @@ package nachos.machine;
 
 import nachos.security.*;
 
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.security.PrivilegedAction;
+
 /**
  * The <tt>Processor</tt> class simulates a MIPS processor that supports a
  * subset of the R3000 instruction set. Specifically, the processor lacks all
@@ -55,6 +59,29 @@ public final class Processor {
 	else {
 	    translations = null;
 	}
+
+	String traceFileName = Config.getString("Processor.traceFile");
+	if (traceFileName != null)
+	    openTrace(traceFileName);
+    }
+
+    private void openTrace(final String traceFileName) {
+	trace = (PageTrace) privilege.doPrivileged(new PrivilegedAction<PageTrace>() {
+		public PageTrace run() {
+		    try {
+			return new PageTrace(new FileOutputStream(traceFileName));
+		    }
+		    catch (IOException e) {
+			return null;
+		    }
+		}
+	    });
+
+	Lib.assertTrue(trace != null, "unable to open trace " + traceFileName);
+
+	privilege.addExitNotificationHandler(new Runnable() {
+		public void run() { trace.close(); }
+	    });
     }
 
     /**
@@ -177,6 +204,17 @@ public final class Processor {
 	this.translations = pageTable;
     }
 
+    /**
+     * Set the identifier of the address space whose program is running. The
+     * processor only uses this to tag references in the page reference
+     * trace.
+     *
+     * @param	asid	the address space identifier.
+     */
+    public void setAddressSpaceID(int asid) {
+	this.asid = asid;
+    }
+
     /**
      * Return the number of entries in this processor's TLB.
      *
@@ -228,6 +266,17 @@ public final class Processor {
 	return numPhysPages;
     }
 
+    /**
+     * Return the number of virtual memory references that have translated
+     * since the machine started, including those that missed the TLB or
+     * faulted before being retried.
+     *
+     * @return	the number of memory references.
+     */
+    public long getNumMemoryReferences() {
+	return privilege.stats.numMemoryReferences;
+    }
+
     /**
      * Return a reference to the physical memory array. The size of this array
      * is <tt>pageSize * getNumPhysPages()</tt>.
@@ -355,6 +404,11 @@ public final class Processor {
 	if (writing)
 	    entry.dirty = true;
 
+	// a reference that faults is counted once, when it is retried
+	privilege.stats.numMemoryReferences++;
+	if (trace != null)
+	    trace.reference(asid, vpn, writing);
+
 	int paddr = (ppn*pageSize) + offset;
 
 	if (Lib.test(dbgProcessor))
@@ -547,6 +601,11 @@ public final class Processor {
      */
     private TranslationEntry[] translations;
 
+    /** The address space tagging references in the trace. */
+    private int asid = 0;
+    /** The page reference trace, or <tt>null</tt> if not tracing. */
+    private PageTrace trace = null;
+
     /** Size of a page, in bytes. */
     public static final int pageSize = 0x400;
     /** Number of pages in a 32-bit address space. */
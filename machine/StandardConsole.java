@@ -8,6 +8,20 @@ import java.io.IOException;
 
 /**
  * A text-based console that uses System.in and System.out.
+ *
+ * <p>
+ * A buffer sent with <tt>writeBytes()</tt> is written to System.out in one
+ * call, and takes <tt>Stats.ConsoleTime</tt> ticks as a single byte does. If
+ * the <tt>nachos.conf</tt> key <tt>Console.perByteTiming</tt> is set, it
+ * instead takes <tt>Stats.ConsoleTime</tt> ticks per byte, as though the
+ * bytes were sent one at a time.
+ *
+ * <p>
+ * Input is read by a host thread that blocks on System.in and stores what it
+ * reads in a ring buffer of <tt>Console.inputBufferSize</tt> bytes. A
+ * receive interrupt is raised when bytes arrive and then every
+ * <tt>Stats.ConsoleTime</tt> ticks until the buffer is empty, so a console
+ * with no input pending causes no interrupts.
  */
 public class StandardConsole implements SerialConsole {
     /**
@@ -21,6 +35,10 @@ public class StandardConsole implements SerialConsole {
 
 	this.privilege = privilege;
 
+	perByteTiming = Config.getBoolean("Console.perByteTiming", false);
+	ring = new byte[Config.getInteger("Console.inputBufferSize", 1024)];
+	Lib.assertTrue(ring.length > 0);
+
 	receiveInterrupt = new Runnable() {
 		public void run() { receiveInterrupt(); }
 	    };
@@ -28,8 +46,17 @@ public class StandardConsole implements SerialConsole {
 	sendInterrupt = new Runnable() {
 		public void run() { sendInterrupt(); }
 	    };		
-	
-	scheduleReceiveInterrupt();
+
+	// only privileged code may create the input thread
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    Thread reader = new Thread(new Runnable() {
+			    public void run() { readInput(); }
+			}, "console input");
+		    reader.setDaemon(true);
+		    reader.start();
+		}
+	    });
     }
     
     public final void setInterruptHandlers(Runnable receiveInterruptHandler,
@@ -44,22 +71,83 @@ public class StandardConsole implements SerialConsole {
     }
 
     /**
-     * Attempt to read a byte from the object backing this console.
+     * Read bytes from the object backing this console, waiting until at least
+     * one is available. This is called by the input thread, not by a Nachos
+     * thread.
      *
-     * @return	the byte read, or -1 of no data is available.
+     * @param	buf	the buffer to store the bytes in.
+     * @param	offset	the offset in the buffer to start storing bytes.
+     * @param	length	the largest number of bytes to read.
+     * @return	the number of bytes read, or -1 if there will be no more.
      */
-    protected int in() {
+    protected int in(byte[] buf, int offset, int length) {
 	try {
-	    if (System.in.available() <= 0)
-		return -1;
-
-	    return System.in.read();
+	    return System.in.read(buf, offset, length);
 	}
 	catch (IOException e) {
 	    return -1;
 	}
     }
 
+    /**
+     * Copy input to the ring buffer as it arrives, until the end of the
+     * input. Run by the input thread.
+     */
+    private void readInput() {
+	byte[] buf = new byte[ring.length];
+
+	while (true) {
+	    int space;
+	    synchronized (ring) {
+		try {
+		    while (ringCount == ring.length)
+			ring.wait();
+		}
+		catch (InterruptedException e) {
+		    return;
+		}
+		space = ring.length - ringCount;
+	    }
+
+	    int amount = in(buf, 0, space);
+	    if (amount <= 0)
+		return;
+
+	    synchronized (ring) {
+		for (int i=0; i<amount; i++)
+		    ring[(ringStart+ringCount+i) % ring.length] = buf[i];
+		ringCount += amount;
+
+		if (receiveIdle) {
+		    receiveIdle = false;
+		    privilege.interrupt.post("console read", receiveInterrupt);
+		}
+	    }
+	}
+    }
+
+    /**
+     * Take the next byte from the ring buffer. If it is empty, the next byte
+     * to arrive will raise a receive interrupt.
+     *
+     * @return	the next byte, or -1 if the ring buffer is empty.
+     */
+    private int takeInput() {
+	synchronized (ring) {
+	    if (ringCount == 0) {
+		receiveIdle = true;
+		return -1;
+	    }
+
+	    int value = ring[ringStart] & 0xFF;
+	    ringStart = (ringStart+1) % ring.length;
+	    if (ringCount-- == ring.length)
+		ring.notify();
+
+	    return value;
+	}
+    }
+
     private int translateCharacter(int c) {
 	// translate win32 0x0D 0x0A sequence to single newline
 	if (c == 0x0A && prevCarriageReturn) {
@@ -89,16 +177,18 @@ public class StandardConsole implements SerialConsole {
     private void receiveInterrupt() {
 	Lib.assertTrue(incomingKey == -1);
 
-	incomingKey = translateCharacter(in());
-	if (incomingKey == -1) {
-	    scheduleReceiveInterrupt();
-	}
-	else {
-	    privilege.stats.numConsoleReads++;
+	while (incomingKey == -1) {
+	    int value = takeInput();
+	    if (value == -1)
+		return;
 
-	    if (receiveInterruptHandler != null)
-		receiveInterruptHandler.run();
+	    incomingKey = translateCharacter(value);
 	}
+
+	privilege.stats.numConsoleReads++;
+
+	if (receiveInterruptHandler != null)
+	    receiveInterruptHandler.run();
     }
 
     public final int readByte() {
@@ -127,13 +217,32 @@ public class StandardConsole implements SerialConsole {
 	System.out.flush();
     }	
 
+    /**
+     * Write a buffer of bytes to the object backing this console.
+     *
+     * @param	buf	the buffer holding the bytes to write.
+     * @param	offset	the offset in the buffer of the first byte.
+     * @param	length	the number of bytes to write.
+     */
+    protected void out(byte[] buf, int offset, int length) {
+	System.out.write(buf, offset, length);
+	System.out.flush();
+    }
+
     private void sendInterrupt() {
-	Lib.assertTrue(outgoingKey != -1);
+	if (outgoingBuffer != null) {
+	    out(outgoingBuffer, 0, outgoingBuffer.length);
+	    privilege.stats.numConsoleWrites += outgoingBuffer.length;
+	    outgoingBuffer = null;
+	}
+	else {
+	    Lib.assertTrue(outgoingKey != -1);
 
-	out(outgoingKey);
-	outgoingKey = -1;
+	    out(outgoingKey);
+	    outgoingKey = -1;
 
-	privilege.stats.numConsoleWrites++;
+	    privilege.stats.numConsoleWrites++;
+	}
 
 	if (sendInterruptHandler != null)
 	    sendInterruptHandler.run();
@@ -146,6 +255,17 @@ public class StandardConsole implements SerialConsole {
 	outgoingKey = value&0xFF;
     }
 
+    public final void writeBytes(byte[] buf, int offset, int length) {
+	Lib.assertTrue(offset >= 0 && length > 0 && offset+length <= buf.length);
+	Lib.assertTrue(outgoingKey == -1 && outgoingBuffer == null);
+
+	outgoingBuffer = new byte[length];
+	System.arraycopy(buf, offset, outgoingBuffer, 0, length);
+
+	int time = perByteTiming ? Stats.ConsoleTime*length : Stats.ConsoleTime;
+	privilege.interrupt.schedule(time, "console write", sendInterrupt);
+    }
+
     private Privilege privilege = null;
 
     private Runnable receiveInterrupt;
@@ -156,6 +276,15 @@ public class StandardConsole implements SerialConsole {
 
     private int incomingKey = -1;
     private int outgoingKey = -1;
+    /** The buffer being sent, or <tt>null</tt> if none is. */
+    private byte[] outgoingBuffer = null;
+    private boolean perByteTiming;
+
+    /** Input read by the input thread but not yet received. */
+    private byte[] ring;
+    private int ringStart = 0, ringCount = 0;
+    /** Whether no receive interrupt is scheduled. */
+    private boolean receiveIdle = true;
 
     private boolean prevCarriageReturn = false;
 }
@@ -23,14 +23,31 @@ public final class Stats {
 			   + ", user " + userTicks);
 	System.out.println("Disk I/O: reads " + numDiskReads
 			   + ", writes " + numDiskWrites);
+	System.out.println("Disk requests: " + numDiskRequests
+			   + ", average latency " + averageDiskLatency()
+			   + ", max latency " + maxDiskLatency);
 	System.out.println("Console I/O: reads " + numConsoleReads
 			   + ", writes " + numConsoleWrites);
 	System.out.println("Paging: page faults " + numPageFaults
-			   + ", TLB misses " + numTLBMisses);
+			   + ", TLB misses " + numTLBMisses
+			   + ", memory references " + numMemoryReferences);
 	System.out.println("Network I/O: received " + numPacketsReceived
 			   + ", sent " + numPacketsSent);
     }
 
+    /**
+     * Return the average time a disk request took, from arriving at the disk
+     * to completing.
+     *
+     * @return	the average latency in ticks, or 0 if no request completed.
+     */
+    public long averageDiskLatency() {
+	if (numDiskRequests == 0)
+	    return 0;
+
+	return totalDiskLatency / numDiskRequests;
+    }
+
     /**
      * The total amount of simulated time that has passed since Nachos
      * started.
@@ -49,6 +66,12 @@ public final class Stats {
     public int numDiskReads = 0;
     /** The total number of sectors Nachos has written to the simulated disk.*/
     public int numDiskWrites = 0;
+    /** The total number of requests the simulated disk has completed. */
+    public int numDiskRequests = 0;
+    /** The total time disk requests spent waiting and being served. */
+    public long totalDiskLatency = 0;
+    /** The longest time any disk request spent waiting and being served. */
+    public long maxDiskLatency = 0;
     /** The total number of characters Nachos has read from the console. */
     public int numConsoleReads = 0;
     /** The total number of characters Nachos has written to the console. */
@@ -57,6 +80,8 @@ public final class Stats {
     public int numPageFaults = 0;
     /** The total number of TLB misses that have occurred. */
     public int numTLBMisses = 0;
+    /** The total number of virtual memory references user programs made. */
+    public long numMemoryReferences = 0;
     /** The total number of packets Nachos has sent to the network. */
     public int numPacketsSent = 0;
     /** The total number of packets Nachos has received from the network. */
@@ -8,10 +8,56 @@ import nachos.threads.*;
 import java.io.File;
 import java.io.RandomAccessFile;
 import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Iterator;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * This class implements a file system that redirects all requests to the host
- * operating system's file system.
+ * operating system's file system. Every open file with the same name shares a
+ * single host file, and reads and writes it at its own position.
+ *
+ * <p>
+ * Each operation takes as long as a <tt>DiskModel</tt> needs to transfer the
+ * sectors involved, as if each file were stored contiguously on the disk it
+ * simulates.
+ *
+ * <p>
+ * Host I/O runs on a separate Java thread. A read or write hands its host
+ * I/O to that thread, then sleeps until the disk's completion interrupt,
+ * so other Nachos threads keep running while the host file is accessed. The
+ * host I/O is done in the order it was requested, and its result is only
+ * used once the interrupt arrives, so simulated time does not depend on how
+ * long the host takes.
+ *
+ * <p>
+ * If the <tt>nachos.conf</tt> key <tt>FileSystem.memoryMapped</tt> is true,
+ * host files are accessed through a region mapped with
+ * <tt>FileChannel.map()</tt>, so reads and writes are memory copies. The
+ * region is remapped, at least doubling in size, when a file grows past it.
+ * It is flushed, and the host file cut back to the file's length, when the
+ * file is last closed or Nachos exits.
+ *
+ * <p>
+ * Names are looked up in memory where possible. A host file stays open after
+ * its last open file closes, until its slot is needed for another, so
+ * reopening it takes no host I/O and no disk time. The last
+ * <tt>FileSystem.maxMissing</tt> names found not to exist are remembered too,
+ * so opening or removing them fails at once. Each host
+ * file records its own length. Every process shares this file system, so
+ * creating and removing files keeps the cache current; files changed on the
+ * host while Nachos runs may not be noticed.
  */
 public class StubFileSystem implements FileSystem {
     /**
@@ -24,13 +70,44 @@ public class StubFileSystem implements FileSystem {
     public StubFileSystem(Privilege privilege, File directory) {
 	this.privilege = privilege;
 	this.directory = directory;
+
+	maxOpenFiles = Config.getInteger("FileSystem.maxOpenFiles", 16);
+	maxMissing = Config.getInteger("FileSystem.maxMissing", 256);
+	memoryMapped = Config.getBoolean("FileSystem.memoryMapped", false);
+	disk = new DiskModel(privilege);
+
+	if (memoryMapped) {
+	    privilege.addExitNotificationHandler(new Runnable() {
+		    public void run() { unmapAll(); }
+		});
+	}
+
+	// only privileged code may create the I/O thread
+	privilege.doPrivileged(new Runnable() {
+		public void run() {
+		    hostIO = new ThreadPoolExecutor(1, 1, 0, TimeUnit.SECONDS,
+						    new LinkedBlockingQueue<Runnable>(),
+						    new ThreadFactory() {
+			    public Thread newThread(Runnable r) {
+				Thread thread = new Thread(r, "host I/O");
+				thread.setDaemon(true);
+				return thread;
+			    }
+			});
+		    hostIO.prestartCoreThread();
+		}
+	    });
     }
     
     public OpenFile open(String name, boolean truncate) {
+	if (!truncate && isMissing(name))
+	    return null;
 	if (!checkName(name))
 	    return null;
-	
-	delay();
+
+	// the header of a file already open is in memory
+	if (truncate || !hostFiles.containsKey(name))
+	    delayHeader(name, truncate);
 	    
 	try {
 	    return new StubOpenFile(name, truncate);
@@ -41,16 +118,35 @@ public class StubFileSystem implements FileSystem {
     }
     
     public boolean remove(String name) {
-	if (!checkName(name))
+	if (isMissing(name) || !checkName(name))
 	    return false;
 
-	delay();
+	delayHeader(name, true);
+
+	// files still open keep the removed host file; new opens get a new one
+	HostFile host = hostFiles.remove(name);
+	if (host != null) {
+	    if (host.references == 0)
+		host.close();
+	    else
+		host.drain();
+	}
 
 	FileRemover fr = new FileRemover(new File(directory, name));
 	privilege.doPrivileged(fr);
+	if (fr.successful)
+	    missing.put(name, Boolean.TRUE);
 	return fr.successful;
     }
 
+    /**
+     * Return whether the named file is known not to exist on the host,
+     * marking it as the most recently used name in <tt>missing</tt>.
+     */
+    private boolean isMissing(String name) {
+	return missing.get(name) != null;
+    }
+
     private class FileRemover implements Runnable {
 	public FileRemover(File f) {
 	    this.f = f;
@@ -64,108 +160,590 @@ public class StubFileSystem implements FileSystem {
 	private File f;
     }
 
-    private void delay() {
-	long time = Machine.timer().getTime();
-	int amount = 1000;
-	ThreadedKernel.alarm.waitUntil(amount);
-	Lib.assertTrue(Machine.timer().getTime() >= time+amount);
+    /**
+     * Return the disk sector holding the header of the named file. Each file
+     * occupies the run of sectors starting here, wrapping around the end of
+     * the disk; its contents start in the following sector.
+     */
+    private int headerSector(String name) {
+	return Math.floorMod(name.hashCode(), disk.getNumSectors());
     }
 
-    private class StubOpenFile extends OpenFileWithPosition {
-	StubOpenFile(final String name, final boolean truncate)
+    /**
+     * Wait for the disk to read or write the header of the named file.
+     */
+    private void delayHeader(String name, boolean write) {
+	disk.access(headerSector(name), 1, write);
+    }
+
+    /**
+     * Wait for the disk to transfer a range of bytes of the named file.
+     */
+    private void delay(String name, int pos, int length, boolean write) {
+	int sectorSize = disk.getSectorSize();
+	int first = Math.max(0, pos) / sectorSize;
+	int numSectors = 0;
+	if (length > 0)
+	    numSectors = (Math.max(0, pos)+length-1) / sectorSize - first + 1;
+
+	disk.access(headerSector(name) + 1 + first, numSectors, write);
+    }
+
+    /**
+     * Flush and trim every mapped host file, so that none is left longer
+     * than its contents when Nachos exits.
+     */
+    private void unmapAll() {
+	for (Iterator<HostFile> i=hostFiles.values().iterator(); i.hasNext(); ) {
+	    HostFile host = i.next();
+	    host.drain();
+	    try {
+		host.unmap();
+	    }
+	    catch (IOException e) {
+	    }
+	}
+    }
+
+    /**
+     * A host file, shared by every open file with the same name. The host
+     * file stays open for as long as any of them does, and afterwards until
+     * its slot is needed, and counts only once against <tt>maxOpenFiles</tt>.
+     */
+    private class HostFile {
+	HostFile(String name, RandomAccessFile file) throws IOException {
+	    this.name = name;
+	    this.file = file;
+	    channel = file.getChannel();
+
+	    // mapping needs privilege, which the I/O thread has
+	    if (!memoryMapped) {
+		length = (int) channel.size();
+	    }
+	    else {
+		Future<Integer> io = submit(new Callable<Integer>() {
+			public Integer call() throws IOException {
+			    length = (int) channel.size();
+			    if (length > 0)
+				remap(length);
+			    return length;
+			}
+		    });
+
+		if (await(io) == -1)
+		    throw new IOException();
+	    }
+	}
+
+	/**
+	 * Release a reference. The host file is kept open, idle, after the
+	 * last, unless its file was removed.
+	 */
+	void release() {
+	    if (--references > 0)
+		return;
+
+	    // a removed file's name may already refer to a newer host file
+	    if (hostFiles.get(name) != this) {
+		close();
+		return;
+	    }
+
+	    idle.put(name, this);
+	    if (memoryMapped) {
+		submit(new Callable<Integer>() {
+			public Integer call() throws IOException {
+			    unmap();
+			    return 0;
+			}
+		    });
+	    }
+	}
+
+	/**
+	 * Close the host file, which no open file may still refer to.
+	 */
+	void close() {
+	    if (hostFiles.get(name) == this)
+		hostFiles.remove(name);
+	    if (idle.get(name) == this)
+		idle.remove(name);
+	    openCount--;
+
+	    if (memoryMapped) {
+		submit(new Callable<Integer>() {
+			public Integer call() throws IOException {
+			    unmap();
+			    return 0;
+			}
+		    });
+	    }
+
+	    drain();
+	    try {
+		file.close();
+	    }
+	    catch (IOException e) {
+	    }
+	}
+
+	/**
+	 * Queue host I/O on this file, after any already queued.
+	 *
+	 * @param	io	the I/O to do, returning the number of bytes
+	 *			transferred.
+	 * @return	the I/O's result, for <tt>await()</tt>.
+	 */
+	Future<Integer> submit(Callable<Integer> io) {
+	    last = hostIO.submit(io);
+	    return last;
+	}
+
+	/**
+	 * Read from the mapped region.
+	 *
+	 * @return	the number of bytes read, which is less than requested
+	 *		only at the end of the file.
+	 */
+	int readMapped(int pos, byte[] buf, int offset, int length)
 	    throws IOException {
-	    super(StubFileSystem.this, name);
+	    int amount = Math.max(0, Math.min(length, this.length - pos));
+	    if (amount > 0) {
+		mapAtLeast(this.length);
+		map.position(pos);
+		map.get(buf, offset, amount);
+	    }
+	    return amount;
+	}
 
-	    final File f = new File(directory, name);
+	/**
+	 * Write to the mapped region, mapping more of the host file first if
+	 * the write extends past it.
+	 */
+	void writeMapped(int pos, byte[] buf, int offset, int length)
+	    throws IOException {
+	    mapAtLeast(Math.max(pos+length, this.length));
 
-	    if (openCount == maxOpenFiles)
-		throw new IOException();
+	    map.position(pos);
+	    map.put(buf, offset, length);
+	}
 
-	    privilege.doPrivileged(new Runnable() {
-		public void run() { getRandomAccessFile(f, truncate); }
-	    });
+	/**
+	 * Drop the mapped region, and cut the host file to length 0.
+	 */
+	void truncateMapped() throws IOException {
+	    map = null;
+	    channel.truncate(0);
+	}
 
-	    if (file == null)
-		throw new IOException();
+	/**
+	 * Make sure the mapped region covers the start of the host file, at
+	 * least doubling it if it must grow.
+	 */
+	void mapAtLeast(int size) throws IOException {
+	    int capacity = (map == null) ? 0 : map.capacity();
+	    if (size > capacity)
+		remap(Math.max(size, 2*capacity));
+	}
 
-	    open = true;
-	    openCount++;
+	/**
+	 * Map the start of the host file, extending the host file if it is
+	 * shorter.
+	 */
+	void remap(int capacity) throws IOException {
+	    map = channel.map(FileChannel.MapMode.READ_WRITE, 0, capacity);
+	}
+
+	/**
+	 * Write the mapped region back to the host file, and cut the host file
+	 * back to the file's length.
+	 */
+	void unmap() throws IOException {
+	    if (map == null)
+		return;
+
+	    map.force();
+	    // the old region must not be touched once the host file is cut
+	    map = null;
+	    channel.truncate(length);
+	}
+
+	/**
+	 * Wait for all the host I/O queued on this file to finish.
+	 */
+	void drain() {
+	    if (last != null)
+		await(last);
+	}
+
+	String name;
+	RandomAccessFile file;
+	FileChannel channel;
+	int references = 1;
+	/** The host I/O on this file queued last. */
+	Future<Integer> last = null;
+	/** The mapped start of the host file, when memory mapped. */
+	MappedByteBuffer map = null;
+	/**
+	 * The length of the file, including writes still queued. When memory
+	 * mapped, the host file may be longer, up to the end of the mapped
+	 * region.
+	 */
+	int length = 0;
+    }
+
+    /**
+     * Wait for host I/O to finish.
+     *
+     * @param	io	the I/O.
+     * @return	the number of bytes transferred, or -1 if the I/O failed.
+     */
+    private static int await(Future<Integer> io) {
+	try {
+	    return io.get().intValue();
+	}
+	catch (ExecutionException e) {
+	    return -1;
+	}
+	catch (InterruptedException e) {
+	    return -1;
+	}
+    }
+
+    private class HostFileOpener implements Runnable {
+	public HostFileOpener(File f, boolean truncate) {
+	    this.f = f;
+	    this.truncate = truncate;
 	}
 
-	private void getRandomAccessFile(File f, boolean truncate) {
+	public void run() {
 	    try {
-		if (!truncate && !f.exists())
+		if (!truncate && !f.exists()) {
+		    missing = true;
 		    return;
+		}
 
 		file = new RandomAccessFile(f, "rw");
-
-		if (truncate)
-		    file.setLength(0);
 	    }
 	    catch (IOException e) {
 	    }
 	}
 
-	public int read(int pos, byte[] buf, int offset, int length) {
-	    if (!open)
-		return -1;
-	    
-	    try {
-		delay();
+	public RandomAccessFile file = null;
+	/** Whether the file could not be opened because it does not exist. */
+	public boolean missing = false;
+	private File f;
+	private boolean truncate;
+    }
+
+    /**
+     * Return the host file with the specified name, opening it if it is not
+     * open or idle. The longest idle host file is closed if none can be
+     * opened otherwise.
+     *
+     * @exception	IOException	if the file could not be opened.
+     */
+    private HostFile getHostFile(String name, boolean truncate)
+	throws IOException {
+	HostFile host = hostFiles.get(name);
+
+	if (host != null) {
+	    if (host.references++ == 0)
+		idle.remove(name);
+	}
+	else {
+	    if (openCount >= maxOpenFiles && !idle.isEmpty())
+		idle.values().iterator().next().close();
+	    if (openCount >= maxOpenFiles)
+		throw new IOException();
 
-		file.seek(pos);
-		return Math.max(0, file.read(buf, offset, length));
+	    HostFileOpener opener =
+		new HostFileOpener(new File(directory, name), truncate);
+	    privilege.doPrivileged(opener);
+
+	    if (opener.file == null) {
+		// other failures may be transient, so are not remembered
+		if (opener.missing)
+		    missing.put(name, Boolean.TRUE);
+		throw new IOException();
+	    }
+	    missing.remove(name);
+
+	    try {
+		host = new HostFile(name, opener.file);
 	    }
 	    catch (IOException e) {
-		return -1;
+		opener.file.close();
+		throw e;
+	    }
+	    hostFiles.put(name, host);
+	    openCount++;
+	}
+
+	if (truncate) {
+	    final HostFile truncated = host;
+	    host.length = 0;
+	    Future<Integer> io = host.submit(new Callable<Integer>() {
+		    public Integer call() throws IOException {
+			if (memoryMapped)
+			    truncated.truncateMapped();
+			else
+			    truncated.channel.truncate(0);
+			return 0;
+		    }
+		});
+
+	    if (await(io) == -1) {
+		host.release();
+		throw new IOException();
 	    }
 	}
+
+	return host;
+    }
+
+    /**
+     * An open file with its own position, doing positional I/O on a shared
+     * host file.
+     */
+    private class StubOpenFile extends OpenFileWithPosition {
+	StubOpenFile(String name, boolean truncate)
+	    throws IOException {
+	    super(StubFileSystem.this, name);
+
+	    host = getHostFile(name, truncate);
+	    open = true;
+	}
+
+	public int read(final int pos, final byte[] buf, final int offset,
+			final int length) {
+	    if (!open)
+		return -1;
+	    
+	    return transfer(pos, available(pos, length), false,
+			    new Callable<Integer>() {
+		    public Integer call() throws IOException {
+			return readAt(pos, buf, offset, length);
+		    }
+		});
+	}
 	
-	public int write(int pos, byte[] buf, int offset, int length) {
+	public int write(final int pos, final byte[] buf, final int offset,
+			 final int length) {
 	    if (!open)
 		return -1;
 	    
-	    try {
-		delay();
-		
-		file.seek(pos);
-		file.write(buf, offset, length);
-		return length;
-	    }
-	    catch (IOException e) {
+	    extend(pos+length);
+	    return transfer(pos, length, true, new Callable<Integer>() {
+		    public Integer call() throws IOException {
+			writeAt(pos, buf, offset, length);
+			return length;
+		    }
+		});
+	}
+
+	public int read(final int pos, final byte[] buf, final int[] extents,
+			final int numExtents) {
+	    if (!open)
 		return -1;
-	    }
+
+	    // a vectored transfer costs the same as a single one
+	    return transfer(pos, available(pos, total(extents, numExtents)),
+			    false, new Callable<Integer>() {
+		    public Integer call() throws IOException {
+			int amount = 0;
+			for (int i=0; i<numExtents; i++) {
+			    int length = extents[2*i+1];
+			    int read = readAt(pos+amount, buf, extents[2*i],
+					      length);
+			    amount += read;
+			    if (read < length)
+				break;
+			}
+			return amount;
+		    }
+		});
 	}
 
-	public int length() {
-	    try {
-		return (int) file.length();
-	    }
-	    catch (IOException e) {
+	public int write(final int pos, final byte[] buf, final int[] extents,
+			 final int numExtents) {
+	    if (!open)
+		return -1;
+
+	    extend(pos+total(extents, numExtents));
+	    return transfer(pos, total(extents, numExtents), true,
+			    new Callable<Integer>() {
+		    public Integer call() throws IOException {
+			int amount = 0;
+			for (int i=0; i<numExtents; i++) {
+			    writeAt(pos+amount, buf, extents[2*i],
+				    extents[2*i+1]);
+			    amount += extents[2*i+1];
+			}
+			return amount;
+		    }
+		});
+	}
+
+	public int copyTo(OpenFile destination, final int count) {
+	    // mapped files copy through their regions
+	    if (!(destination instanceof StubOpenFile) || memoryMapped)
+		return super.copyTo(destination, count);
+
+	    StubOpenFile target = (StubOpenFile) destination;
+	    if (!open || !target.open)
 		return -1;
+
+	    // the host copies between the files without an intermediate buffer
+	    final int source = position, sinkPosition = target.position;
+	    final FileChannel sink = target.host.channel;
+	    int available = available(position, count);
+
+	    Future<Integer> io = host.submit(new Callable<Integer>() {
+		    public Integer call() throws IOException {
+			sink.position(sinkPosition);
+
+			long amount = 0;
+			while (amount < count) {
+			    long copied =
+				host.channel.transferTo(source+amount,
+							count-amount, sink);
+			    if (copied <= 0)
+				break;
+			    amount += copied;
+			}
+			return (int) amount;
+		    }
+		});
+	    target.host.last = io;
+
+	    delay(getName(), position, available, false);
+	    delay(target.getName(), target.position, available, true);
+
+	    int amount = await(io);
+	    if (amount > 0) {
+		position += amount;
+		target.position += amount;
+		target.extend(target.position);
 	    }
+	    return amount;
+	}
+
+	public int length() {
+	    return host.length;
 	}
 
 	public void close() {
 	    if (open) {
 		open = false;
-		openCount--;
+		host.release();
 	    }
-		
-	    try {
-		file.close();
+	}
+
+	/**
+	 * Return how many of the bytes requested are in the file, and so must
+	 * come from the disk.
+	 */
+	private int available(int pos, int length) {
+	    return Math.max(0, Math.min(length, length()-pos));
+	}
+
+	/**
+	 * Queue host I/O, wait for the disk to transfer the bytes involved,
+	 * then wait for the host I/O to finish.
+	 *
+	 * @return	the number of bytes transferred, or -1 if the host I/O
+	 *		failed.
+	 */
+	private int transfer(int pos, int length, boolean write,
+			     Callable<Integer> io) {
+	    Future<Integer> result = host.submit(io);
+	    delay(getName(), pos, length, write);
+	    return await(result);
+	}
+
+	/**
+	 * Note that a write will make the file at least the specified length.
+	 */
+	private void extend(int end) {
+	    host.length = Math.max(host.length, end);
+	}
+
+	private int total(int[] extents, int numExtents) {
+	    int total = 0;
+	    for (int i=0; i<numExtents; i++)
+		total += extents[2*i+1];
+	    return total;
+	}
+
+	private int readAt(int pos, byte[] buf, int offset, int length)
+	    throws IOException {
+	    if (memoryMapped)
+		return host.readMapped(pos, buf, offset, length);
+
+	    ByteBuffer buffer = ByteBuffer.wrap(buf, offset, length);
+	    while (buffer.hasRemaining()) {
+		if (host.channel.read(buffer, pos+buffer.position()-offset) <= 0)
+		    break;
 	    }
-	    catch (IOException e) {
+	    return buffer.position()-offset;
+	}
+
+	private void writeAt(int pos, byte[] buf, int offset, int length)
+	    throws IOException {
+	    if (memoryMapped) {
+		host.writeMapped(pos, buf, offset, length);
+		return;
 	    }
+
+	    ByteBuffer buffer = ByteBuffer.wrap(buf, offset, length);
+	    while (buffer.hasRemaining())
+		host.channel.write(buffer, pos+buffer.position()-offset);
 	}
 
-	private RandomAccessFile file = null;
+	private HostFile host;
 	private boolean open = false;
     }
 
+    /** The open host files, including idle ones, by name. */
+    private HashMap<String, HostFile> hostFiles =
+	new HashMap<String, HostFile>();
+    /** The idle host files, by name, longest idle first. */
+    private LinkedHashMap<String, HostFile> idle =
+	new LinkedHashMap<String, HostFile>();
+    /**
+     * Names known not to exist on the host, least recently used first. Only
+     * the last <tt>maxMissing</tt> are remembered.
+     */
+    private LinkedHashMap<String, Boolean> missing =
+	new LinkedHashMap<String, Boolean>(16, 0.75f, true) {
+	    protected boolean removeEldestEntry(Map.Entry<String, Boolean> e) {
+		return size() > maxMissing;
+	    }
+	};
+    /** The number of open host files. */
     private int openCount = 0;
-    private static final int maxOpenFiles = 16;
+    /**
+     * The number of files that may be open at once, given by the
+     * <tt>nachos.conf</tt> key <tt>FileSystem.maxOpenFiles</tt>.
+     */
+    private int maxOpenFiles;
+    /**
+     * The number of missing names remembered, given by the
+     * <tt>nachos.conf</tt> key <tt>FileSystem.maxMissing</tt>.
+     */
+    private int maxMissing;
+    /**
+     * Whether host files are accessed through mapped regions, given by the
+     * <tt>nachos.conf</tt> key <tt>FileSystem.memoryMapped</tt>.
+     */
+    private boolean memoryMapped;
     
+    /** The timing of the disk the files are stored on. */
+    private DiskModel disk;
+    /** Runs host I/O, one request at a time, in the order requested. */
+    private ThreadPoolExecutor hostIO;
+
     private Privilege privilege;
     private File directory;
 
@@ -35,11 +35,14 @@ public class NetKernel extends VMKernel {
     public void selfTest() {
 	super.selfTest();
 
-	KThread serverThread = new KThread(new Runnable() {
-		public void run() { pingServer(); }
-	    });
+	startPingServer(postOffice);
 
-	serverThread.fork();
+	// every other link of a loopback network is a node answering pings
+	LoopbackNetwork network = Machine.loopbackNetwork();
+	if (network != null) {
+	    for (int i=1; i<network.getNumLinks(); i++)
+		startPingServer(new PostOffice(network.getLink(i)));
+	}
 
 	System.out.println("Press any key to start the network test...");
 	console.readByte(true);
@@ -82,7 +85,15 @@ public class NetKernel extends VMKernel {
 	System.out.println("time=" + (endTime-startTime) + " ticks");	
     }
 
-    private void pingServer() {
+    private void startPingServer(final PostOffice postOffice) {
+	KThread serverThread = new KThread(new Runnable() {
+		public void run() { pingServer(postOffice); }
+	    });
+
+	serverThread.fork();
+    }
+
+    private void pingServer(PostOffice postOffice) {
 	while (true) {
 	    MailMessage ping = postOffice.receive(1);
 
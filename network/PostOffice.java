@@ -14,6 +14,10 @@ import nachos.threads.*;
  * from the network and to place them in the appropriate queues. This cannot
  * be done in the receive interrupt handler because each queue (implemented
  * with a <tt>SynchList</tt>) is protected by a lock.
+ *
+ * <p>
+ * Sending does not wait for the message to be sent, only for room in the
+ * network link's transmit ring, so several threads can keep the link busy.
  */
 public class PostOffice {
     /**
@@ -22,6 +26,19 @@ public class PostOffice {
      * "postal worker" thread.
      */
     public PostOffice() {
+	this(Machine.networkLink());
+    }
+
+    /**
+     * Allocate a new post office on a specific network link, such as one of
+     * the links of the loopback network.
+     *
+     * @param	link	the network link this post office sends and receives
+     *			on.
+     */
+    public PostOffice(NetworkLink link) {
+	this.link = link;
+
 	messageReceived = new Semaphore(0);
 	messageSent = new Semaphore(0);
 	sendLock = new Lock();
@@ -36,8 +53,7 @@ public class PostOffice {
 	Runnable sendHandler = new Runnable() {
 	    public void run() { sendInterrupt(); }
 	};
-	Machine.networkLink().setInterruptHandlers(receiveHandler,
-						   sendHandler);
+	link.setInterruptHandlers(receiveHandler, sendHandler);
 
 	KThread t = new KThread(new Runnable() {
 		public void run() { postalDelivery(); }
@@ -73,7 +89,7 @@ public class PostOffice {
 	while (true) {
 	    messageReceived.P();
 
-	    Packet p = Machine.networkLink().receive();
+	    Packet p = link.receive();
 
 	    MailMessage mail;
 
@@ -102,7 +118,9 @@ public class PostOffice {
     }
 
     /**
-     * Send a message to a mailbox on a remote machine.
+     * Send a message to a mailbox on a remote machine. Returns once the
+     * message is queued on the network link, waiting while its transmit ring
+     * is full.
      */
     public void send(MailMessage mail) {
 	if (Lib.test(dbgNet))
@@ -110,24 +128,33 @@ public class PostOffice {
 
 	sendLock.acquire();
 
-	Machine.networkLink().send(mail.packet);
-	messageSent.P();
+	boolean intStatus = Machine.interrupt().disable();
+	while (!link.send(mail.packet)) {
+	    sendWaiting = true;
+	    messageSent.P();
+	}
+	Machine.interrupt().restore(intStatus);
 
 	sendLock.release();
     }
 
     /**
-     * Called when a packet has been sent and another can be queued to the
-     * network link. Note that this is called even if the previous packet was
-     * dropped.
+     * Called when a packet has been sent and either the network link's
+     * transmit ring has room again or it is empty. Note that this is called
+     * even if the packet was dropped.
      */
     private void sendInterrupt() {
-	messageSent.V();
+	if (sendWaiting) {
+	    sendWaiting = false;
+	    messageSent.V();
+	}
     }
 
+    private NetworkLink link;
     private SynchList[] queues;
     private Semaphore messageReceived;	// V'd when a message can be dequeued
     private Semaphore messageSent;	// V'd when a message can be queued
+    private boolean sendWaiting = false;
     private Lock sendLock;
 
     private static final char dbgNet = 'n';
@@ -175,6 +175,12 @@ public class NachosSecurityManager extends SecurityManager {
      */
     public void checkPermission(Permission perm) {
 	String name = perm.getName();
+
+	// core reflection generates an accessor class, in a class loader of
+	// its own, for a method or constructor invoked repeatedly; only its
+	// own code asks for permissions while it does
+	if (isGeneratingAccessor())
+	    return;
 	
 	// some permissions are strictly forbidden
 	if (perm instanceof RuntimePermission) {
@@ -276,6 +282,28 @@ public class NachosSecurityManager extends SecurityManager {
 	verifyPrivilege(perm);
     }
 
+    /**
+     * Test whether core reflection is generating an accessor class, which it
+     * does after a method or constructor has been invoked reflectively a
+     * number of times. Creating a file mapping, or a process by name, both do
+     * so.
+     *
+     * @return	<tt>true</tt> if an accessor generator is on the stack.
+     */
+    private boolean isGeneratingAccessor() {
+	Class<?>[] stack = getClassContext();
+	for (int i=0; i<stack.length; i++) {
+	    // only the bootstrap class loader loads the real one
+	    String name = stack[i].getName();
+	    if ((name.equals("sun.reflect.MethodAccessorGenerator") ||
+		 name.equals("jdk.internal.reflect.MethodAccessorGenerator")) &&
+		stack[i].getClassLoader() == null)
+		return true;
+	}
+
+	return false;
+    }
+
     /**
      * Called by the <tt>java.lang.Thread</tt> constructor to determine a
      * thread group for a child thread of the current thread. The caller must
@@ -149,6 +149,17 @@ public abstract class Privilege {
 	 * @param	handler	the interrupt handler to call.
 	 */
 	public void schedule(long when, String type, Runnable handler);
+
+	/**
+	 * Raise an interrupt from outside the simulation. Unlike
+	 * <tt>schedule()</tt>, this may be called from any Java thread, such
+	 * as one blocked on host I/O; the interrupt occurs the next time the
+	 * simulated time advances.
+	 *
+	 * @param	type	a name for the type of interrupt being raised.
+	 * @param	handler	the interrupt handler to call.
+	 */
+	public void post(String type, Runnable handler);
 	
 	/**
 	 * Advance the simulated time.
@@ -0,0 +1,55 @@
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+/* checks that fork() gives the child a private copy of the parent's memory:
+ * neither process sees what the other writes after the fork */
+
+#define PAGESIZE 1024
+#define DATASIZE (4*PAGESIZE)
+
+char data[DATASIZE];
+
+int main(int argc, char** argv)
+{
+  int pid, status, i;
+
+  for (i=0; i<DATASIZE; i++)
+    data[i] = 'p';
+
+  pid = fork();
+  if (pid==-1) {
+    printf("forktest: fork failed\n");
+    return 1;
+  }
+
+  if (pid==0) {
+    /* the child starts with the parent's data, and keeps it */
+    for (i=0; i<DATASIZE; i++) {
+      if (data[i]!='p')
+	exit(2);
+    }
+
+    for (i=0; i<DATASIZE; i+=PAGESIZE/2)
+      data[i] = 'c';
+    exit(0);
+  }
+
+  /* written while the child may still be checking its copy */
+  data[PAGESIZE] = 'q';
+
+  if (join(pid, &status)!=1 || status!=0) {
+    printf("forktest: child saw the parent's write (status %d)\n", status);
+    return 1;
+  }
+
+  for (i=0; i<DATASIZE; i++) {
+    if (data[i]!=(i==PAGESIZE ? 'q' : 'p')) {
+      printf("forktest: parent saw the child's write at %d\n", i);
+      return 1;
+    }
+  }
+
+  printf("forktest: ok\n");
+  return 0;
+}
@@ -0,0 +1,46 @@
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+/* checks that fsync() succeeds on an open file, leaving its data readable
+ * through another descriptor while it stays open, and fails on a bad
+ * descriptor */
+
+char text[] = "synced before close\n";
+char buf[64];
+
+int main(int argc, char** argv)
+{
+  int fd, other, length;
+
+  length = strlen(text);
+
+  fd = creat("fsynctest.tmp");
+  if (fd==-1 || write(fd, text, length)!=length) {
+    printf("fsynctest: cannot write fsynctest.tmp\n");
+    return 1;
+  }
+
+  if (fsync(fd)!=0) {
+    printf("fsynctest: fsync failed\n");
+    return 1;
+  }
+
+  other = open("fsynctest.tmp");
+  if (other==-1 || read(other, buf, sizeof(buf))!=length ||
+      strncmp(buf, text, length)!=0) {
+    printf("fsynctest: synced data not readable\n");
+    return 1;
+  }
+  close(other);
+  close(fd);
+
+  if (fsync(fd)!=-1 || fsync(-1)!=-1) {
+    printf("fsynctest: fsync accepted a bad descriptor\n");
+    return 1;
+  }
+
+  unlink("fsynctest.tmp");
+  printf("fsynctest: ok\n");
+  return 0;
+}
@@ -0,0 +1,70 @@
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+/* checks that writev() and readv() transfer their buffers in order, and that
+ * copyfile() copies what they wrote */
+
+char *parts[] = { "vectored ", "I/O ", "works\n" };
+char text[] = "vectored I/O works\n";
+
+int main(int argc, char** argv)
+{
+  struct iovec iov[3];
+  char first[5], second[32];
+  int fd, copy, length, i;
+
+  length = strlen(text);
+
+  for (i=0; i<3; i++) {
+    iov[i].base = parts[i];
+    iov[i].length = strlen(parts[i]);
+  }
+
+  fd = creat("iovtest.tmp");
+  if (fd==-1 || writev(fd, iov, 3)!=length) {
+    printf("iovtest: writev failed\n");
+    return 1;
+  }
+  close(fd);
+
+  fd = open("iovtest.tmp");
+  iov[0].base = first;
+  iov[0].length = sizeof(first);
+  iov[1].base = second;
+  iov[1].length = sizeof(second);
+  if (fd==-1 || readv(fd, iov, 2)!=length) {
+    printf("iovtest: readv failed\n");
+    return 1;
+  }
+  close(fd);
+
+  second[length-sizeof(first)] = '\0';
+  if (strncmp(first, text, sizeof(first))!=0 ||
+      strcmp(second, text+sizeof(first))!=0) {
+    printf("iovtest: readv returned the wrong bytes\n");
+    return 1;
+  }
+
+  fd = open("iovtest.tmp");
+  copy = creat("iovtest.cpy");
+  if (fd==-1 || copy==-1 || copyfile(fd, copy, 100)!=length) {
+    printf("iovtest: copyfile failed\n");
+    return 1;
+  }
+  close(fd);
+  close(copy);
+
+  fd = open("iovtest.cpy");
+  if (fd==-1 || read(fd, second, sizeof(second))!=length ||
+      strncmp(second, text, length)!=0) {
+    printf("iovtest: copyfile copied the wrong bytes\n");
+    return 1;
+  }
+  close(fd);
+
+  unlink("iovtest.tmp");
+  unlink("iovtest.cpy");
+  printf("iovtest: ok\n");
+  return 0;
+}
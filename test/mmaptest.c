@@ -0,0 +1,91 @@
+#include "syscall.h"
+#include "stdio.h"
+#include "stdlib.h"
+
+/* checks that changes to a mapped file are written back to the file, both by
+ * munmap() and by close() */
+
+#define LENGTH (2*1024+100)
+#define MAPADDR ((char*) 0x40000)
+
+char buf[LENGTH];
+
+char expected(int i)
+{
+  return 'a' + i%26;
+}
+
+int check(char *name, char first, char last)
+{
+  int fd, i;
+
+  fd = open(name);
+  if (fd==-1 || read(fd, buf, LENGTH)!=LENGTH) {
+    printf("mmaptest: cannot read %s\n", name);
+    return 0;
+  }
+  close(fd);
+
+  for (i=0; i<LENGTH; i++) {
+    char c = (i==0) ? first : (i==LENGTH-1) ? last : expected(i);
+    if (buf[i]!=c) {
+      printf("mmaptest: wrong byte at %d\n", i);
+      return 0;
+    }
+  }
+
+  return 1;
+}
+
+int main(int argc, char** argv)
+{
+  char *name = "mmaptest.tmp";
+  int fd, i;
+
+  for (i=0; i<LENGTH; i++)
+    buf[i] = expected(i);
+
+  fd = creat(name);
+  if (fd==-1 || write(fd, buf, LENGTH)!=LENGTH) {
+    printf("mmaptest: cannot write %s\n", name);
+    return 1;
+  }
+  close(fd);
+
+  /* written back by munmap() */
+  fd = open(name);
+  if (mmap(fd, MAPADDR)!=LENGTH) {
+    printf("mmaptest: mmap failed\n");
+    return 1;
+  }
+  for (i=0; i<LENGTH; i++) {
+    if (MAPADDR[i]!=expected(i)) {
+      printf("mmaptest: wrong mapped byte at %d\n", i);
+      return 1;
+    }
+  }
+  MAPADDR[0] = 'X';
+  MAPADDR[LENGTH-1] = 'Y';
+  if (munmap(MAPADDR)!=0) {
+    printf("mmaptest: munmap failed\n");
+    return 1;
+  }
+  close(fd);
+  if (!check(name, 'X', 'Y'))
+    return 1;
+
+  /* written back by close() */
+  fd = open(name);
+  if (mmap(fd, MAPADDR)!=LENGTH) {
+    printf("mmaptest: mmap failed\n");
+    return 1;
+  }
+  MAPADDR[0] = 'Z';
+  close(fd);
+  if (!check(name, 'Z', 'Y'))
+    return 1;
+
+  unlink(name);
+  printf("mmaptest: ok\n");
+  return 0;
+}
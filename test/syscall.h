@@ -25,6 +25,12 @@
 #define syscallMmap		10
 #define syscallConnect		11
 #define syscallAccept		12
+#define syscallFork		13
+#define syscallMunmap		14
+#define syscallReadv		15
+#define syscallWritev		16
+#define syscallCopyfile		17
+#define syscallFsync		18
 
 /* Don't want the assembler to see C code, but start.s includes syscall.h. */
 #ifndef START_S
@@ -53,7 +59,7 @@
  */
 void halt();
 
-/* PROCESS MANAGEMENT SYSCALLS: exit(), exec(), join() */
+/* PROCESS MANAGEMENT SYSCALLS: exit(), exec(), join(), fork() */
 
 /**
  * Terminate the current process immediately. Any open file descriptors
@@ -109,6 +115,20 @@ int exec(char *file, int argc, char *argv[]);
  */
 int join(int processID, int *status);
 
+/**
+ * Create a child process that is a copy of the current process. The child
+ * starts with the same memory contents, the same registers, and the same open
+ * file descriptors as its parent, and both processes continue execution at
+ * the return from fork(). Memory is copied lazily: a page is only copied
+ * when one of the two processes first writes to it. Open files are shared, so
+ * the parent and child share the file position of each file descriptor.
+ *
+ * In the parent, fork() returns the child process's process ID, which can be
+ * passed to join(). In the child, fork() returns 0. On error, returns -1 and
+ * no child is created.
+ */
+int fork();
+
 /* FILE MANAGEMENT SYSCALLS: creat, open, read, write, close, unlink
  *
  * A file descriptor is a small, non-negative integer that refers to a file on
@@ -181,6 +201,57 @@ int read(int fileDescriptor, void *buffer, int count);
  */
 int write(int fileDescriptor, void *buffer, int count);
 
+/**
+ * A buffer in a vector of buffers passed to readv() or writev().
+ */
+struct iovec {
+    void *base;		/* the first byte of the buffer */
+    int length;		/* the number of bytes in the buffer */
+};
+
+/**
+ * Attempt to read into each of the count buffers described by iov in turn,
+ * as if by a single read() into one buffer as large as all of them combined.
+ * count may be at most 16.
+ *
+ * Returns the total number of bytes read, with the same meaning as for
+ * read(), or -1 if an error occurred.
+ */
+int readv(int fileDescriptor, struct iovec *iov, int count);
+
+/**
+ * Attempt to write each of the count buffers described by iov in turn, as if
+ * by a single write() from one buffer holding all of them. count may be at
+ * most 16.
+ *
+ * Returns the total number of bytes written, or -1 if an error occurred. As
+ * for write(), it IS an error if fewer bytes were written than requested.
+ */
+int writev(int fileDescriptor, struct iovec *iov, int count);
+
+/**
+ * Copy up to count bytes from the file referred to by srcFileDescriptor to the
+ * file referred to by dstFileDescriptor, starting at each file's position,
+ * without passing the data through the user program's memory. Both file
+ * positions are advanced by the number of bytes copied.
+ *
+ * Returns the number of bytes copied, which is smaller than count only if the
+ * end of the source file was reached or the source is a stream with no more
+ * bytes available, or -1 if an error occurred.
+ */
+int copyfile(int srcFileDescriptor, int dstFileDescriptor, int count);
+
+/**
+ * Write any data written to the file referred to by fileDescriptor that the
+ * kernel is still holding in memory out to the file system's storage, before
+ * returning. close() does the same, so fsync() is only needed to make data
+ * durable while the file stays open. Pages of a file mapped by mmap() are
+ * written back by munmap(), not by fsync().
+ *
+ * Returns 0 on success, or -1 if an error occurred.
+ */
+int fsync(int fileDescriptor);
+
 /**
  * Close a file descriptor, so that it no longer refers to any file or stream
  * and may be reused.
@@ -217,6 +288,10 @@ int unlink(char *name);
 /**
  * Map the file referenced by fileDescriptor into memory at address. The file
  * may be as large as 0x7FFFFFFF bytes.
+ *
+ * address must be page-aligned, and must lie past the end of the program's
+ * address space and outside any other map. Pages are read from the file when
+ * first used, and processes that map the same file share them.
  * 
  * To maintain consistency, further calls to read() and write() on this file
  * descriptor will fail (returning -1) until the file descriptor is closed.
@@ -228,6 +303,15 @@ int unlink(char *name);
  */
 int mmap(int fileDescriptor, char *address);
 
+/**
+ * Remove the map created by an mmap() call at address. All remaining dirty
+ * pages of the map will be flushed to disk, and read() and write() may be
+ * used on the file descriptor again.
+ *
+ * Returns 0 on success, or -1 if no map starts at address.
+ */
+int munmap(char *address);
+
 /**
  * Attempt to initiate a new connection to the specified port on the specified
  * remote host, and return a new file descriptor referring to the connection.
@@ -194,6 +194,13 @@ public class KThread {
 
 		currentThread.status = statusFinished;
 
+		// wake up every thread that joined this one
+		if (currentThread.joinQueue != null) {
+			KThread joiner;
+			while ((joiner = currentThread.joinQueue.nextThread()) != null)
+				joiner.ready();
+		}
+
 		sleep();
 	}
 
@@ -280,15 +287,15 @@ public class KThread {
 		boolean intStatus = Machine.interrupt().disable();
 		if (this.status != statusFinished){
 			// enable priority donation
-			ThreadQueue waitQueue = ThreadedKernel.scheduler.newThreadQueue(true);
-			waitQueue.acquire(this); //give this access => This now holds the resource of this waitQueue
-			//waitQueue.nextThread();
+			if (joinQueue == null) {
+				joinQueue = ThreadedKernel.scheduler.newThreadQueue(true);
+				joinQueue.acquire(this); //give this access => This now holds the resource of this waitQueue
+			}
 			// Assuming priority donation happens as soon as something is added to the queue
-			waitQueue.waitForAccess(currentThread); //put currentThread to this waitQueue so it can donate its priority
-			while(this.status != statusFinished)
-				KThread.yield();
-			//KThread.sleep(); // set the status of current Thread to Blocked
-			// allowing this thread to run with higher priority
+			joinQueue.waitForAccess(currentThread); //put currentThread to this waitQueue so it can donate its priority
+			// block until finish() wakes us, so that time keeps advancing
+			// for threads this one is waiting on
+			KThread.sleep();
 		}
 		Machine.interrupt().restore(intStatus);
 	}
@@ -472,6 +479,8 @@ public class KThread {
 	private int status = statusNew;
 	private String name = "(unnamed thread)";
 	private Runnable target;
+	/** Threads waiting in <tt>join()</tt> for this thread to finish. */
+	private ThreadQueue joinQueue = null;
 	private TCB tcb;
 
 	/**
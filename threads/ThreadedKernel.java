@@ -1,6 +1,7 @@
 package nachos.threads;
 
 import nachos.machine.*;
+import nachos.filesys.*;
 
 /**
  * A multi-threaded OS kernel.
@@ -41,7 +42,9 @@ public class ThreadedKernel extends Kernel {
 
 	/**
 	 * Test this kernel. Test the <tt>KThread</tt>, <tt>Semaphore</tt>,
-	 * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes. Note that the
+	 * <tt>SynchList</tt>, and <tt>ElevatorBank</tt> classes, and the file
+	 * system if it is a <tt>LogFileSystem</tt>, <tt>ExtentFileSystem</tt>
+	 * or <tt>MemoryFileSystem</tt>. Note that the
 	 * autograder never calls this method, so it is safe to put additional
 	 * tests here.
 	 */	
@@ -54,6 +57,15 @@ public class ThreadedKernel extends Kernel {
 		if (Machine.bank() != null) {
 			ElevatorBank.selfTest();
 		}
+		if (fileSystem instanceof LogFileSystem) {
+			((LogFileSystem) fileSystem).selfTest();
+		}
+		if (fileSystem instanceof ExtentFileSystem) {
+			((ExtentFileSystem) fileSystem).selfTest();
+		}
+		if (fileSystem instanceof MemoryFileSystem) {
+			((MemoryFileSystem) fileSystem).selfTest();
+		}
 	}
 
 	/**
@@ -67,6 +79,9 @@ public class ThreadedKernel extends Kernel {
 	 * Terminate this kernel. Never returns.
 	 */
 	public void terminate() {
+		if (fileSystem instanceof CachedFileSystem) {
+			((CachedFileSystem) fileSystem).printStats();
+		}
 		Machine.halt();
 	}
 
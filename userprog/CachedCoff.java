@@ -0,0 +1,211 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.io.EOFException;
+import java.util.Arrays;
+import java.util.zip.CRC32;
+
+/**
+ * A COFF executable whose headers and section contents are held in memory,
+ * so that its pages can be loaded without reading the file again. Instances
+ * are handed out by <tt>ExecutableCache</tt>; any number of them may share
+ * the same contents.
+ *
+ * <p>
+ * The <tt>Coff</tt> loader must not be backed by a simulated cache, so that
+ * pages are never loaded instantaneously. Loading a page that has initialized
+ * contents therefore still waits for the number of ticks given by the
+ * <tt>nachos.conf</tt> key <tt>CachedCoff.pageLoadTicks</tt>, by default a
+ * quarter rotation of the disk, the time a page takes to pass under the
+ * head. What is saved is the read itself, and the disk's seek and queueing.
+ */
+public class CachedCoff extends Coff {
+    private CachedCoff(Image image) {
+	this.image = image;
+
+	sections = new CoffSection[image.sections.length];
+	for (int s=0; s<sections.length; s++)
+	    sections[s] = new Section(this, image.sections[s]);
+    }
+
+    /**
+     * Load an executable into memory. The file is validated by the standard
+     * <tt>Coff</tt> loader, then read in a single operation.
+     *
+     * @param	file	the file containing the executable. It is closed before
+     *			this method returns.
+     * @return	a loader for the executable.
+     * @exception	EOFException	if the executable is corrupt.
+     */
+    static CachedCoff load(OpenFile file) throws EOFException {
+	int length = file.length();
+
+	Coff coff = new Coff(file);
+
+	try {
+	    byte[] contents = new byte[length];
+	    Lib.strictReadFile(file, 0, contents, 0, length);
+
+	    return new CachedCoff(new Image(file.getName(), coff, contents));
+	}
+	finally {
+	    coff.close();
+	}
+    }
+
+    /**
+     * Return another loader for the same executable, sharing its contents.
+     *
+     * @return	a new loader.
+     */
+    public CachedCoff duplicate() {
+	return new CachedCoff(image);
+    }
+
+    /**
+     * Return a string that identifies the contents of this executable, and
+     * that differs between executables that may be loaded differently.
+     *
+     * @return	the identity of this executable.
+     */
+    public String getIdentity() {
+	return image.identity;
+    }
+
+    /**
+     * Return the number of bytes of memory held by this executable's
+     * contents.
+     *
+     * @return	the size of this executable in memory.
+     */
+    int getSize() {
+	return image.size;
+    }
+
+    public int getNumSections() {
+	return sections.length;
+    }
+
+    public CoffSection getSection(int sectionNumber) {
+	Lib.assertTrue(sectionNumber >= 0 && sectionNumber < sections.length);
+
+	return sections[sectionNumber];
+    }
+
+    public int getEntryPoint() {
+	return image.entryPoint;
+    }
+
+    /**
+     * Release this loader. The contents stay in memory for as long as
+     * another loader or the cache refers to them.
+     */
+    public void close() {
+    }
+
+    /**
+     * The parsed contents of an executable file.
+     */
+    private static class Image {
+	Image(String name, Coff coff, byte[] contents) {
+	    entryPoint = coff.getEntryPoint();
+
+	    int optionalHeaderLength = Lib.bytesToUnsignedShort(contents, 16);
+	    int offset = headerLength + optionalHeaderLength;
+
+	    size = 0;
+	    sections = new SectionImage[coff.getNumSections()];
+	    for (int s=0; s<sections.length; s++) {
+		sections[s] = new SectionImage(coff.getSection(s), contents,
+					       offset + s*CoffSection.headerLength);
+		size += sections[s].contents.length;
+	    }
+
+	    CRC32 crc = new CRC32();
+	    crc.update(contents, 0, contents.length);
+	    identity = name + ":" + contents.length + ":"
+		+ Long.toHexString(crc.getValue());
+	}
+
+	int entryPoint;
+	SectionImage[] sections;
+	String identity;
+	int size;
+    }
+
+    /**
+     * The header and initialized contents of a section.
+     */
+    private static class SectionImage {
+	SectionImage(CoffSection section, byte[] contents, int headerOffset) {
+	    name = section.getName();
+	    readOnly = section.isReadOnly();
+	    numPages = section.getLength();
+	    firstVPN = section.getFirstVPN();
+
+	    int flags = Lib.bytesToInt(contents, headerOffset+36);
+	    executable = (flags & 0x0FFF) == 0x0020;
+
+	    initialized = section.isInitialzed();
+	    if (initialized) {
+		int size = Lib.bytesToInt(contents, headerOffset+16);
+		int contentOffset = Lib.bytesToInt(contents, headerOffset+20);
+		this.contents = Arrays.copyOfRange(contents, contentOffset,
+						   contentOffset+size);
+	    }
+	    else {
+		this.contents = new byte[0];
+	    }
+	}
+
+	String name;
+	boolean executable, readOnly, initialized;
+	int numPages, firstVPN;
+	byte[] contents;
+    }
+
+    /**
+     * A section whose pages are copied from memory.
+     */
+    private static class Section extends CoffSection {
+	Section(CachedCoff coff, SectionImage image) {
+	    super(coff, image.name, image.executable, image.readOnly,
+		  image.numPages, image.firstVPN);
+
+	    this.initialized = image.initialized;
+	    this.contents = image.contents;
+
+	    pageLoadTicks = Config.getInteger("CachedCoff.pageLoadTicks",
+					      Stats.RotationTime/4);
+	}
+
+	public void loadPage(int spn, int ppn) {
+	    Lib.assertTrue(spn>=0 && spn<numPages);
+	    Lib.assertTrue(ppn>=0 && ppn<Machine.processor().getNumPhysPages());
+
+	    int pageSize = Processor.pageSize;
+	    byte[] memory = Machine.processor().getMemory();
+	    int paddr = ppn*pageSize;
+	    int faddr = spn*pageSize;
+	    int initlen = Math.max(0, Math.min(pageSize, contents.length-faddr));
+
+	    if (initlen > 0) {
+		if (pageLoadTicks > 0)
+		    ThreadedKernel.alarm.waitUntil(pageLoadTicks);
+		System.arraycopy(contents, faddr, memory, paddr, initlen);
+	    }
+	    Arrays.fill(memory, paddr+initlen, paddr+pageSize, (byte) 0);
+	}
+
+	private byte[] contents;
+	private int pageLoadTicks;
+    }
+
+    private Image image;
+    private CoffSection[] sections;
+
+    private static final int headerLength = 20;
+}
@@ -0,0 +1,144 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.io.EOFException;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+
+/**
+ * A kernel-wide cache of parsed executables, so that running a program again
+ * does not open, parse or read its file. Executables are kept in
+ * least-recently-used order, and the oldest are discarded once their total
+ * size exceeds the budget given by the <tt>nachos.conf</tt> key
+ * <tt>UserKernel.executableCacheSize</tt>.
+ *
+ * <p>
+ * The cache cannot see changes made to a file behind the kernel's back, so
+ * every syscall that creates, writes or removes a file must call
+ * <tt>invalidate()</tt> once the change is made. An executable read while
+ * its file changes is then not cached, since the invalidation comes after
+ * the read began; changes to other files do not affect it.
+ */
+public class ExecutableCache {
+    /**
+     * Allocate a new executable cache.
+     *
+     * @param	budget	the number of bytes of section contents to keep.
+     */
+    public ExecutableCache(int budget) {
+	this.budget = budget;
+    }
+
+    /**
+     * Return a loader for the named executable, reading the file only if it
+     * is not in the cache.
+     *
+     * @param	name	the name of the file containing the executable.
+     * @return	a loader for the executable, or <tt>null</tt> if the file
+     *		could not be opened or is not a valid executable.
+     */
+    public CachedCoff open(String name) {
+	lock.acquire();
+	CachedCoff cached = executables.get(name);
+	if (cached != null) {
+	    lock.release();
+	    Lib.debug(dbgProcess, "\texecutable cache hit");
+	    return cached.duplicate();
+	}
+
+	// a write or unlink while the file is read must not be overtaken
+	Load load = loading.get(name);
+	if (load == null) {
+	    load = new Load();
+	    loading.put(name, load);
+	}
+	load.loaders++;
+	int generation = load.generation;
+	lock.release();
+
+	OpenFile file = ThreadedKernel.fileSystem.open(name, false);
+	if (file == null) {
+	    Lib.debug(dbgProcess, "\topen failed");
+	    finishLoad(name, load);
+	    return null;
+	}
+
+	try {
+	    cached = CachedCoff.load(file);
+	}
+	catch (EOFException e) {
+	    file.close();
+	    Lib.debug(dbgProcess, "\tcoff load failed");
+	    finishLoad(name, load);
+	    return null;
+	}
+
+	lock.acquire();
+	if (generation == load.generation && cached.getSize() <= budget) {
+	    executables.put(name, cached);
+	    size += cached.getSize();
+	    evict();
+	}
+	lock.release();
+	finishLoad(name, load);
+
+	return cached.duplicate();
+    }
+
+    private void finishLoad(String name, Load load) {
+	lock.acquire();
+	if (--load.loaders == 0)
+	    loading.remove(name);
+	lock.release();
+    }
+
+    /**
+     * Discard the named file's cached executable, if any, because the file
+     * has been modified or removed.
+     *
+     * @param	name	the name of the file.
+     */
+    public void invalidate(String name) {
+	lock.acquire();
+
+	Load load = loading.get(name);
+	if (load != null)
+	    load.generation++;
+
+	CachedCoff cached = executables.remove(name);
+	if (cached != null)
+	    size -= cached.getSize();
+
+	lock.release();
+    }
+
+    private void evict() {
+	Iterator<CachedCoff> i = executables.values().iterator();
+	while (size > budget) {
+	    CachedCoff cached = i.next();
+	    size -= cached.getSize();
+	    i.remove();
+	}
+    }
+
+    /**
+     * The executables being read into the cache, counting the invalidations
+     * of each since its reads began.
+     */
+    private static class Load {
+	int loaders = 0;
+	int generation = 0;
+    }
+
+    private int budget, size = 0;
+    private HashMap<String, Load> loading = new HashMap<String, Load>();
+    private LinkedHashMap<String, CachedCoff> executables =
+	new LinkedHashMap<String, CachedCoff>(16, 0.75f, true);
+    private Lock lock = new Lock();
+
+    private static final char dbgProcess = 'a';
+}
@@ -0,0 +1,126 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * A process's open files, indexed by file descriptor. The table starts small
+ * and doubles whenever a descriptor past its end is needed, up to a fixed
+ * limit. A bitmap of the descriptors in use finds the lowest free descriptor,
+ * and the next open one, without looking at every entry.
+ */
+public class FileDescriptorTable {
+    /**
+     * Allocate a new, empty file descriptor table.
+     *
+     * @param	limit	the number of file descriptors the table can hold.
+     */
+    public FileDescriptorTable(int limit) {
+	Lib.assertTrue(limit >= firstFree);
+
+	this.limit = limit;
+	files = new OpenFile[Math.min(initialSize, limit)];
+    }
+
+    /**
+     * Return the file open as the specified file descriptor.
+     *
+     * @param	fileDescriptor	the file descriptor.
+     * @return	the file, or <tt>null</tt> if the descriptor is out of range
+     *		or not open.
+     */
+    public OpenFile get(int fileDescriptor) {
+	if (fileDescriptor < 0 || fileDescriptor >= files.length)
+	    return null;
+
+	return files[fileDescriptor];
+    }
+
+    /**
+     * Test whether every file descriptor available to <tt>add()</tt> is in
+     * use.
+     *
+     * @return	<tt>true</tt> if no more files can be added.
+     */
+    public boolean isFull() {
+	return used.nextClearBit(firstFree) >= limit;
+    }
+
+    /**
+     * Open a file as the lowest free file descriptor, not counting the
+     * descriptors reserved for standard input and output.
+     *
+     * @param	file	the file.
+     * @return	the new file descriptor, or -1 if the table is full.
+     */
+    public int add(OpenFile file) {
+	int fileDescriptor = used.nextClearBit(firstFree);
+	if (fileDescriptor >= limit)
+	    return -1;
+
+	set(fileDescriptor, file);
+	return fileDescriptor;
+    }
+
+    /**
+     * Open a file as a specific file descriptor, which must be free.
+     *
+     * @param	fileDescriptor	the file descriptor.
+     * @param	file		the file.
+     */
+    public void set(int fileDescriptor, OpenFile file) {
+	Lib.assertTrue(fileDescriptor >= 0 && fileDescriptor < limit);
+	Lib.assertTrue(get(fileDescriptor) == null && file != null);
+
+	if (fileDescriptor >= files.length) {
+	    int size = files.length;
+	    while (size <= fileDescriptor)
+		size *= 2;
+	    files = Arrays.copyOf(files, Math.min(size, limit));
+	}
+
+	files[fileDescriptor] = file;
+	used.set(fileDescriptor);
+    }
+
+    /**
+     * Free a file descriptor, without closing its file.
+     *
+     * @param	fileDescriptor	the file descriptor.
+     * @return	the file that was open as the descriptor, or <tt>null</tt>.
+     */
+    public OpenFile remove(int fileDescriptor) {
+	OpenFile file = get(fileDescriptor);
+	if (file != null) {
+	    files[fileDescriptor] = null;
+	    used.clear(fileDescriptor);
+	}
+
+	return file;
+    }
+
+    /**
+     * Return the lowest open file descriptor that is not below the specified
+     * one. <tt>next(0)</tt> returns the first open descriptor, and
+     * <tt>next(fd+1)</tt> the one after <i>fd</i>.
+     *
+     * @param	fileDescriptor	the descriptor to start from.
+     * @return	the open file descriptor, or -1 if there is none.
+     */
+    public int next(int fileDescriptor) {
+	return used.nextSetBit(fileDescriptor);
+    }
+
+    private OpenFile[] files;
+    /** The file descriptors in use. */
+    private BitSet used = new BitSet();
+    private int limit;
+
+    private static final int initialSize = 16;
+    /** Descriptors below this are reserved for standard input and output. */
+    private static final int firstFree = 2;
+}
@@ -0,0 +1,131 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.Arrays;
+
+/**
+ * A file mapped into a process's address space by the <tt>mmap()</tt>
+ * syscall. Page <i>i</i> of the map holds the <i>i</i>th page of the file,
+ * starting at virtual page <tt>getFirstVPN()</tt>. The map covers the file as
+ * long as it was when it was mapped; the rest of its last page reads as zeroes
+ * and is never written back.
+ */
+public class MemoryMap {
+    /**
+     * Allocate a new map of the specified file.
+     *
+     * @param	fileDescriptor	the file descriptor the file is open as, whose
+     *				closing removes the map.
+     * @param	file		the file to map.
+     * @param	firstVPN	the first virtual page of the map.
+     */
+    public MemoryMap(int fileDescriptor, OpenFile file, int firstVPN) {
+	this.fileDescriptor = fileDescriptor;
+	this.file = file;
+	this.firstVPN = firstVPN;
+
+	length = file.length();
+	numPages = (length + pageSize - 1) / pageSize;
+    }
+
+    /**
+     * Return the file descriptor whose file is mapped.
+     *
+     * @return	the file descriptor.
+     */
+    public int getFileDescriptor() {
+	return fileDescriptor;
+    }
+
+    /**
+     * Return the name of the mapped file, which identifies its pages in
+     * <tt>UserKernel.filePages</tt>.
+     *
+     * @return	the name of the file.
+     */
+    public String getName() {
+	return file.getName();
+    }
+
+    /**
+     * Return the length of the mapped file, in bytes.
+     *
+     * @return	the length of the file when it was mapped.
+     */
+    public int getLength() {
+	return length;
+    }
+
+    /**
+     * Return the first virtual page of this map.
+     *
+     * @return	the first virtual page number.
+     */
+    public int getFirstVPN() {
+	return firstVPN;
+    }
+
+    /**
+     * Return the number of virtual pages this map occupies.
+     *
+     * @return	the number of pages.
+     */
+    public int getNumPages() {
+	return numPages;
+    }
+
+    /**
+     * Test whether the specified virtual page belongs to this map.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	<tt>true</tt> if the page is mapped from the file.
+     */
+    public boolean contains(int vpn) {
+	return vpn >= firstVPN && vpn < firstVPN+numPages;
+    }
+
+    /**
+     * Read a page of the file into physical memory.
+     *
+     * @param	page	the page number within this map.
+     * @param	ppn	the target physical page number.
+     */
+    public void loadPage(int page, int ppn) {
+	Lib.assertTrue(page >= 0 && page < numPages);
+	Lib.assertTrue(ppn >= 0 && ppn < Machine.processor().getNumPhysPages());
+
+	byte[] memory = Machine.processor().getMemory();
+	int paddr = ppn*pageSize;
+	int faddr = page*pageSize;
+	int amount = Math.min(pageSize, length-faddr);
+
+	int read = Math.max(0, file.read(faddr, memory, paddr, amount));
+	Arrays.fill(memory, paddr+read, paddr+pageSize, (byte) 0);
+    }
+
+    /**
+     * Write a page of the file back from physical memory.
+     *
+     * @param	page	the page number within this map.
+     * @param	ppn	the physical page holding it.
+     */
+    public void writePage(int page, int ppn) {
+	Lib.assertTrue(page >= 0 && page < numPages);
+	Lib.assertTrue(ppn >= 0 && ppn < Machine.processor().getNumPhysPages());
+
+	byte[] memory = Machine.processor().getMemory();
+	int faddr = page*pageSize;
+
+	file.write(faddr, memory, ppn*pageSize, Math.min(pageSize, length-faddr));
+	UserKernel.executables.invalidate(file.getName());
+    }
+
+    private int fileDescriptor;
+    private OpenFile file;
+    private int firstVPN, numPages, length;
+
+    private static final int pageSize = Processor.pageSize;
+}
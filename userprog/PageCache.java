@@ -0,0 +1,122 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+
+/**
+ * A kernel-wide index of the physical pages that hold pages of some file, so
+ * that every process using the same page can map the same frame instead of
+ * reading and storing its own copy. The kernel keeps one cache for the
+ * read-only text pages of executables, and another for the pages of
+ * memory-mapped files.
+ *
+ * <p>
+ * Pages are identified by the file they came from and a page number within
+ * it. A frame stays in the cache only while some process maps it; whoever
+ * frees the frame must call <tt>remove()</tt>. The cache is not
+ * synchronized: callers must hold <tt>UserKernel.lock</tt>.
+ */
+public class PageCache {
+    /**
+     * Allocate a new, empty page cache.
+     */
+    public PageCache() {
+    }
+
+    /**
+     * Return the physical page holding the specified page, if any process
+     * has it loaded.
+     *
+     * @param	file	the identity of the file.
+     * @param	page	the page number within the file.
+     * @return	the physical page number, or -1 if the page is not cached.
+     */
+    public int lookup(String file, int page) {
+	Integer ppn = frames.get(new Page(file, page));
+	if (ppn == null)
+	    return -1;
+
+	Lib.debug(dbgProcess, "\tsharing page " + page + " in ppn " + ppn);
+	return ppn;
+    }
+
+    /**
+     * Record that a physical page now holds the specified page. Does nothing
+     * if another frame holding the same page is already cached, for example
+     * because two processes loaded it at the same time.
+     *
+     * @param	file	the identity of the file.
+     * @param	page	the page number within the file.
+     * @param	ppn	the physical page holding it.
+     */
+    public void insert(String file, int page, int ppn) {
+	Page key = new Page(file, page);
+	if (frames.containsKey(key))
+	    return;
+
+	frames.put(key, ppn);
+	pages.put(ppn, key);
+    }
+
+    /**
+     * Forget the page held by the specified physical page, if any. Called
+     * whenever a frame is freed or reused.
+     *
+     * @param	ppn	the physical page being released.
+     */
+    public void remove(int ppn) {
+	Page key = pages.remove(ppn);
+	if (key != null)
+	    frames.remove(key);
+    }
+
+    /**
+     * Forget every page of the specified file, because the file was removed
+     * or replaced. Frames already mapped stay with the processes that map
+     * them, but are no longer shared with anyone who loads the file later.
+     *
+     * @param	file	the identity of the file.
+     */
+    public void removeFile(String file) {
+	Iterator<Map.Entry<Page, Integer>> i = frames.entrySet().iterator();
+	while (i.hasNext()) {
+	    Map.Entry<Page, Integer> entry = i.next();
+	    if (entry.getKey().file.equals(file)) {
+		pages.remove(entry.getValue());
+		i.remove();
+	    }
+	}
+    }
+
+    private static class Page {
+	Page(String file, int page) {
+	    this.file = file;
+	    this.page = page;
+	}
+
+	public boolean equals(Object o) {
+	    if (!(o instanceof Page))
+		return false;
+
+	    Page key = (Page) o;
+	    return page == key.page && file.equals(key.file);
+	}
+
+	public int hashCode() {
+	    return file.hashCode()*31 + page;
+	}
+
+	String file;
+	int page;
+    }
+
+    private HashMap<Page, Integer> frames = new HashMap<Page, Integer>();
+    private HashMap<Integer, Page> pages = new HashMap<Integer, Page>();
+
+    private static final char dbgProcess = 'a';
+}
@@ -0,0 +1,124 @@
+package nachos.userprog;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+
+/**
+ * An open file that is referenced by more than one file descriptor, such as
+ * the descriptors a child process inherits from its parent across
+ * <tt>fork()</tt>. Every reference shares the same underlying file, and so
+ * the same file position; the underlying file is closed when the last
+ * reference is closed.
+ */
+public class SharedOpenFile extends OpenFile {
+	/**
+	 * Allocate the first reference to the specified file.
+	 *
+	 * @param	file	the file to share. It becomes the property of this
+	 *			object, and should not be accessed any further.
+	 */
+	public SharedOpenFile(OpenFile file) {
+		this(file, new int[] { 1 });
+	}
+
+	private SharedOpenFile(OpenFile file, int[] references) {
+		super(file.getFileSystem(), file.getName());
+
+		this.file = file;
+		this.references = references;
+	}
+
+	/**
+	 * Return a new reference to the same underlying file.
+	 *
+	 * @return	a reference that must be closed separately.
+	 */
+	public SharedOpenFile duplicate() {
+		Lib.assertTrue(!closed);
+
+		boolean intStatus = Machine.interrupt().disable();
+		references[0]++;
+		Machine.interrupt().restore(intStatus);
+
+		return new SharedOpenFile(file, references);
+	}
+
+	public int read(int pos, byte[] buf, int offset, int length) {
+		return file.read(pos, buf, offset, length);
+	}
+
+	public int write(int pos, byte[] buf, int offset, int length) {
+		return file.write(pos, buf, offset, length);
+	}
+
+	public int read(int pos, byte[] buf, int[] extents, int numExtents) {
+		return file.read(pos, buf, extents, numExtents);
+	}
+
+	public int write(int pos, byte[] buf, int[] extents, int numExtents) {
+		return file.write(pos, buf, extents, numExtents);
+	}
+
+	public int length() {
+		return file.length();
+	}
+
+	public boolean sync() {
+		return file.sync();
+	}
+
+	public void seek(int pos) {
+		file.seek(pos);
+	}
+
+	public int tell() {
+		return file.tell();
+	}
+
+	public int read(byte[] buf, int offset, int length) {
+		return file.read(buf, offset, length);
+	}
+
+	public int write(byte[] buf, int offset, int length) {
+		return file.write(buf, offset, length);
+	}
+
+	public int read(byte[] buf, int[] extents, int numExtents) {
+		return file.read(buf, extents, numExtents);
+	}
+
+	public int write(byte[] buf, int[] extents, int numExtents) {
+		return file.write(buf, extents, numExtents);
+	}
+
+	public int copyTo(OpenFile destination, int count) {
+		// let the underlying files copy directly if they can
+		if (destination instanceof SharedOpenFile)
+			destination = ((SharedOpenFile) destination).file;
+
+		return file.copyTo(destination, count);
+	}
+
+	/**
+	 * Release this reference, closing the underlying file if it was the last
+	 * one.
+	 */
+	public void close() {
+		if (closed)
+			return;
+		closed = true;
+
+		boolean intStatus = Machine.interrupt().disable();
+		boolean last = (--references[0] == 0);
+		Machine.interrupt().restore(intStatus);
+
+		if (last)
+			file.close();
+	}
+
+	private OpenFile file;
+	/** The number of open references to <tt>file</tt>, shared by all. */
+	private int[] references;
+	private boolean closed = false;
+}
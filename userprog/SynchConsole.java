@@ -4,9 +4,20 @@ import nachos.machine.*;
 import nachos.threads.*;
 import nachos.userprog.*;
 
+import java.util.ArrayDeque;
+
 /**
  * Provides a simple, synchronized interface to the machine's console. The
  * interface can also be accessed through <tt>OpenFile</tt> objects.
+ *
+ * <p>
+ * Bytes are taken from the console as they arrive and queued, up to
+ * <tt>Console.maxInput</tt> bytes, so a read returns everything that has
+ * arrived. If the <tt>nachos.conf</tt> key <tt>Console.cooked</tt> is set,
+ * input is edited a line at a time: received bytes are echoed, a backspace
+ * erases the last byte of the line, and nothing can be read until a whole
+ * line, ending in a newline, has arrived. Programs that echo and edit their
+ * own input, such as the shell, should use the default raw mode.
  */
 public class SynchConsole {
     /**
@@ -23,7 +34,24 @@ public class SynchConsole {
 	Runnable sendHandler = new Runnable() {
 	    public void run() { sendInterrupt(); }
 	};
+
+	maxInput = Config.getInteger("Console.maxInput", 256);
+	Lib.assertTrue(maxInput > 1);
+
+	cooked = Config.getBoolean("Console.cooked", false);
+	if (cooked) {
+	    KThread echoThread = new KThread(new Runnable() {
+		    public void run() { echo(); }
+		});
+	    echoThread.setName("console echo").fork();
+	}
+
 	console.setInterruptHandlers(receiveHandler, sendHandler);
+
+	// take a byte that arrived before there was a handler for it
+	boolean intStatus = Machine.interrupt().disable();
+	receive();
+	Machine.interrupt().restore(intStatus);
     }
 
     /**
@@ -37,24 +65,49 @@ public class SynchConsole {
      *		and no byte was available.
      */
     public int readByte(boolean block) {
-	int value;
+	byte[] buf = new byte[1];
+
+	if (read(buf, 0, 1, block) == 0)
+	    return -1;
+
+	return buf[0] & 0xFF;
+    }
+
+    /**
+     * Read every byte that has arrived, up to a limit. If none has arrived,
+     * blocks until one does, or returns immediately, depending on the value
+     * of <i>block</i>.
+     *
+     * @param	buf	the buffer to store the bytes in.
+     * @param	offset	the offset in the buffer to start storing bytes.
+     * @param	length	the largest number of bytes to read.
+     * @param	block	<tt>true</tt> if this should wait for a byte if none
+     *			is available.
+     * @return	the number of bytes read.
+     */
+    public int read(byte[] buf, int offset, int length, boolean block) {
+	int amount = 0;
 	boolean intStatus = Machine.interrupt().disable();	
 	readLock.acquire();
 
-	if (block || charAvailable) {
-	    charAvailable = false;
+	while (block && length > 0 && input.isEmpty()) {
+	    readWaiting = true;
 	    readWait.P();
-
-	    value = console.readByte();
-	    Lib.assertTrue(value != -1);
 	}
-	else {
-	    value = -1;
+
+	while (amount < length && !input.isEmpty()) {
+	    buf[offset+amount++] = input.poll();
+
+	    // make room for a byte the console is holding
+	    if (charPending) {
+		charPending = false;
+		receive();
+	    }
 	}
 
 	readLock.release();
 	Machine.interrupt().restore(intStatus);
-	return value;
+	return amount;
     }
 
     /**
@@ -67,8 +120,77 @@ public class SynchConsole {
     }
 
     private void receiveInterrupt() {
-	charAvailable = true;
-	readWait.V();
+	if (input.size() + line.size() < maxInput)
+	    receive();
+	else
+	    charPending = true;
+    }
+
+    /**
+     * Take the byte the console is holding, and queue it to be read. Called
+     * with interrupts disabled.
+     */
+    private void receive() {
+	int value = console.readByte();
+	if (value == -1)
+	    return;
+
+	if (!cooked) {
+	    input.add((byte) value);
+	}
+	else if (value == '\b') {
+	    if (!line.isEmpty()) {
+		line.pollLast();
+		echo("\b \b");
+	    }
+	}
+	else if (value == '\n') {
+	    line.add((byte) value);
+	    input.addAll(line);
+	    line.clear();
+	    echo("\n");
+	}
+	// leave room for the newline ending the line
+	else if (line.size() < maxInput-1) {
+	    line.add((byte) value);
+	    echo(String.valueOf((char) value));
+	}
+
+	if (readWaiting && !input.isEmpty()) {
+	    readWaiting = false;
+	    readWait.V();
+	}
+    }
+
+    private void echo(String s) {
+	for (int i=0; i<s.length(); i++)
+	    echoed.add((byte) s.charAt(i));
+
+	if (echoWaiting) {
+	    echoWaiting = false;
+	    echoWait.V();
+	}
+    }
+
+    /**
+     * Write the bytes echoed in cooked mode to the console. Run by the echo
+     * thread, because an interrupt handler cannot wait for the console.
+     */
+    private void echo() {
+	while (true) {
+	    boolean intStatus = Machine.interrupt().disable();
+	    while (echoed.isEmpty()) {
+		echoWaiting = true;
+		echoWait.P();
+	    }
+
+	    byte[] buf = new byte[echoed.size()];
+	    for (int i=0; i<buf.length; i++)
+		buf[i] = echoed.poll();
+	    Machine.interrupt().restore(intStatus);
+
+	    writeBytes(buf, 0, buf.length);
+	}
     }
 
     /**
@@ -83,6 +205,24 @@ public class SynchConsole {
 	writeLock.release();
     }
 
+    /**
+     * Send a buffer of bytes to the console as one transfer. Blocks until
+     * every byte has been sent.
+     *
+     * @param	buf	the buffer holding the bytes to send.
+     * @param	offset	the offset in the buffer of the first byte.
+     * @param	length	the number of bytes to send.
+     */
+    public void writeBytes(byte[] buf, int offset, int length) {
+	if (length <= 0)
+	    return;
+
+	writeLock.acquire();
+	console.writeBytes(buf, offset, length);
+	writeWait.P();
+	writeLock.release();
+    }
+
     /**
      * Return an <tt>OpenFile</tt> that can be used to write this as a file.
      *
@@ -96,9 +236,21 @@ public class SynchConsole {
 	writeWait.V();
     }
 
-    private boolean charAvailable = false;
-
     private SerialConsole console;
+    private int maxInput;
+    private boolean cooked;
+
+    /** Bytes that can be read. */
+    private ArrayDeque<Byte> input = new ArrayDeque<Byte>();
+    /** In cooked mode, the line being edited. */
+    private ArrayDeque<Byte> line = new ArrayDeque<Byte>();
+    /** In cooked mode, bytes waiting to be echoed. */
+    private ArrayDeque<Byte> echoed = new ArrayDeque<Byte>();
+    /** Whether the console is holding a byte there was no room for. */
+    private boolean charPending = false;
+    private boolean readWaiting = false, echoWaiting = false;
+    private Semaphore echoWait = new Semaphore(0);
+
     private Lock readLock = new Lock();
     private Lock writeLock = new Lock();
     private Semaphore readWait = new Semaphore(0);
@@ -120,24 +272,14 @@ public class SynchConsole {
 	    if (!canRead)
 		return 0;
 
-	    int i;
-	    for (i=0; i<length; i++) {
-		int value = SynchConsole.this.readByte(false);
-		if (value == -1)
-		    break;
-		
-		buf[offset+i] = (byte) value;
-	    }
-
-	    return i;
+	    return SynchConsole.this.read(buf, offset, length, false);
 	}
 
 	public int write(byte[] buf, int offset, int length) {
 	    if (!canWrite)
 		return 0;
 	    
-	    for (int i=0; i<length; i++)
-		SynchConsole.this.writeByte(buf[offset+i]);
+	    SynchConsole.this.writeBytes(buf, offset, length);
 	    
 	    return length;
 	}
@@ -34,8 +34,15 @@ public class UserKernel extends ThreadedKernel {
 		int numPhysPages = Machine.processor().getNumPhysPages();
 		for(Integer i=0; i<numPhysPages; i++)
 			availablePages.add(i);
+		frameReferences = new int[numPhysPages];
+		textPages = new PageCache();
+		filePages = new PageCache();
 		
 		lock = new Lock();
+
+		executables = new ExecutableCache(Config.getInteger("UserKernel.executableCacheSize", 1<<20));
+
+		maxFileDescriptors = Config.getInteger("UserKernel.maxFileDescriptors", 1024);
 	}
 
 	/**
@@ -44,6 +51,10 @@ public class UserKernel extends ThreadedKernel {
 	public void selfTest() {
 		super.selfTest();
 
+		// the test takes process IDs that the first programs would get
+		if (Config.getBoolean("UserKernel.testSyscalls", false))
+			UserProcess.selfTest();
+
 		//System.out.println("Num phys pages: " + availablePages.size());
 		System.out.println("Testing the console device. Typed characters");
 		System.out.println("will be echoed until q is typed.");
@@ -123,9 +134,27 @@ public class UserKernel extends ThreadedKernel {
 	/** Globally accessible list of free physical pages in memory. */
 	public static LinkedList<Integer> availablePages;
 	
-	/** Lock for accessing the availablePages list */
+	/**
+	 * For each physical page, the number of page tables that map it. Pages
+	 * are shared copy-on-write by processes created with fork().
+	 */
+	public static int[] frameReferences;
+
+	/** Physical pages holding text shared by processes running the same executable. */
+	public static PageCache textPages;
+
+	/** Physical pages holding memory-mapped file pages, shared by every process mapping the file. */
+	public static PageCache filePages;
+	
+	/** Lock for accessing the availablePages list, frameReferences, textPages and filePages */
 	public static Lock lock;
 
+	/** Parsed executables, so that programs can be run again without reading them. */
+	public static ExecutableCache executables;
+
+	/** The number of file descriptors each process's table can hold. */
+	public static int maxFileDescriptors;
+
 	// dummy variables to make javac smarter
 	private static Coff dummy1 = null;
 }
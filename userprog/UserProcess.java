@@ -2,9 +2,9 @@ package nachos.userprog;
 
 import nachos.machine.*;
 import nachos.threads.*;
+import nachos.filesys.*;
 import nachos.userprog.*;
 
-import java.io.EOFException;
 import java.util.*;
 
 /**
@@ -26,7 +26,7 @@ public class UserProcess {
 	public UserProcess() {
 
 		//Initialize variables use for project 2
-		fileDescriptorTable = new OpenFile[16];
+		fileDescriptorTable = new FileDescriptorTable(UserKernel.maxFileDescriptors);
 		boolean intStatus = Machine.interrupt().disable();
 		processID = processIdCounter;
 		processIdCounter++;
@@ -39,9 +39,10 @@ public class UserProcess {
 		}	
 		Machine.interrupt().restore(intStatus);	
 
-		fileDescriptorTable[0] = stdin; //stdin
-		fileDescriptorTable[1] = stdout; //stdout
+		fileDescriptorTable.set(0, stdin); //stdin
+		fileDescriptorTable.set(1, stdout); //stdout
 		childProcesses = new LinkedList<UserProcess>();
+		memoryMaps = new LinkedList<MemoryMap>();
 		parentProcess = null;		
 		exitStatuses = new HashMap<Integer,Integer>();
 		mapLock = new Lock();
@@ -67,6 +68,11 @@ public class UserProcess {
 	 * @return	<tt>true</tt> if the program was successfully executed.
 	 */
 	public boolean execute(String name, String[] args) {
+		// the first program run is the root process, which may halt
+		if (rootProcess == null)
+			rootProcess = this;
+
+
 		if (!load(name, args))
 			return false;
 
@@ -76,6 +82,15 @@ public class UserProcess {
 		return true;
 	}
 
+	/**
+	 * Return the kernel-wide identifier of this process.
+	 *
+	 * @return	the process ID assigned when this process was allocated.
+	 */
+	public int getProcessID() {
+		return processID;
+	}
+
 	/**
 	 * Save the state of this process in preparation for a context switch.
 	 * Called by <tt>UThread.saveState()</tt>.
@@ -88,6 +103,7 @@ public class UserProcess {
 	 * <tt>UThread.restoreState()</tt>.
 	 */
 	public void restoreState() {
+		Machine.processor().setAddressSpaceID(processID);
 		Machine.processor().setPageTable(pageTable);
 	}
 
@@ -150,51 +166,22 @@ public class UserProcess {
 			int length) {
 		Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
-		//make sure that virtual address is valid for this process' virtual address space
-		if (vaddr < 0)
-			vaddr = 0;
-		if (length > Machine.processor().makeAddress(numPages-1, pageSize-1) - vaddr)
-			length = Machine.processor().makeAddress(numPages-1, pageSize-1) - vaddr;
-
 		byte[] memory = Machine.processor().getMemory();
+		int amount = 0;
 
-		int firstVirtPage = Machine.processor().pageFromAddress(vaddr);
-		int lastVirtPage = Machine.processor().pageFromAddress(vaddr+length);
-		int numBytesTransferred = 0;
-		for (int i=firstVirtPage; i<=lastVirtPage; i++){
-			if (!pageTable[i].valid)
-				break; //stop reading, return numBytesTransferred for whatever we've written so far
-			int firstVirtAddress = Machine.processor().makeAddress(i, 0);
-			int lastVirtAddress = Machine.processor().makeAddress(i, pageSize-1);
-			int offset1;
-			int offset2;
-			//virtual page is in the middle, copy entire page (most common case)
-			if (vaddr <= firstVirtAddress && vaddr+length >= lastVirtAddress){
-				offset1 = 0;
-				offset2 = pageSize - 1;
-			}
-			//virtual page is first to be transferred
-			else if (vaddr > firstVirtAddress && vaddr+length >= lastVirtAddress){
-				offset1 = vaddr - firstVirtAddress;
-				offset2 = pageSize - 1;
-			}
-			//virtual page is last to be transferred
-			else if (vaddr <= firstVirtAddress && vaddr+length < lastVirtAddress){
-				offset1 = 0;
-				offset2 = (vaddr + length) - firstVirtAddress;
-			}
-			//only need inner chunk of a virtual page (special case)
-			else { //(vaddr > firstVirtAddress && vaddr+length < lastVirtAddress)
-				offset1 = vaddr - firstVirtAddress;
-				offset2 = (vaddr + length) - firstVirtAddress;
+		while (amount < length){
+			int start = vaddr+amount;
+			int numExtents = translateExtents(start, length-amount, false);
+			if (numExtents == 0)
+				break;
+			for (int i=0; i<numExtents; i++){
+				System.arraycopy(memory, extents[2*i], data, offset+amount, extents[2*i+1]);
+				amount += extents[2*i+1];
 			}
-			int firstPhysAddress = Machine.processor().makeAddress(pageTable[i].ppn, offset1);
-			//int lastPhysAddress = Machine.processor().makeAddress(pageTable[i].ppn, offset2);
-			System.arraycopy(memory, firstPhysAddress, data, offset+numBytesTransferred, offset2-offset1);
-			numBytesTransferred += (offset2-offset1);
-			pageTable[i].used = true;
-		}		
-		return numBytesTransferred;
+			releaseExtents(start, numExtents, false);
+		}
+
+		return amount;
 	}
 
 	/**
@@ -229,51 +216,82 @@ public class UserProcess {
 		Lib.assertTrue(offset >= 0 && length >= 0 && offset+length <= data.length);
 
 		byte[] memory = Machine.processor().getMemory();
+		int amount = 0;
 
-		//make sure that virtual address is valid for this process' virtual address space
-		if (vaddr < 0)
-			vaddr = 0;
-		if (length > Machine.processor().makeAddress(numPages-1, pageSize-1) - vaddr)
-			length = Machine.processor().makeAddress(numPages-1, pageSize-1) - vaddr;
-
-		int firstVirtPage = Machine.processor().pageFromAddress(vaddr);
-		int lastVirtPage = Machine.processor().pageFromAddress(vaddr+length);
-		int numBytesTransferred = 0;
-		for (int i=firstVirtPage; i<=lastVirtPage; i++){
-			if (!pageTable[i].valid || pageTable[i].readOnly)
-				break; //stop writing, return numBytesTransferred for whatever we've written so far
-			int firstVirtAddress = Machine.processor().makeAddress(i, 0);
-			int lastVirtAddress = Machine.processor().makeAddress(i, pageSize-1);
-			int offset1;
-			int offset2;
-			//virtual page is in the middle, copy entire page (most common case)
-			if (vaddr <= firstVirtAddress && vaddr+length >= lastVirtAddress){
-				offset1 = 0;
-				offset2 = pageSize - 1;
-			}
-			//virtual page is first to be transferred
-			else if (vaddr > firstVirtAddress && vaddr+length >= lastVirtAddress){
-				offset1 = vaddr - firstVirtAddress;
-				offset2 = pageSize - 1;
-			}
-			//virtual page is last to be transferred
-			else if (vaddr <= firstVirtAddress && vaddr+length < lastVirtAddress){
-				offset1 = 0;
-				offset2 = (vaddr + length) - firstVirtAddress;
-			}
-			//only need inner chunk of a virtual page (special case)
-			else { //(vaddr > firstVirtAddress && vaddr+length < lastVirtAddress)
-				offset1 = vaddr - firstVirtAddress;
-				offset2 = (vaddr + length) - firstVirtAddress;
+		while (amount < length){
+			int start = vaddr+amount;
+			int numExtents = translateExtents(start, length-amount, true);
+			if (numExtents == 0)
+				break;
+			for (int i=0; i<numExtents; i++){
+				System.arraycopy(data, offset+amount, memory, extents[2*i], extents[2*i+1]);
+				amount += extents[2*i+1];
 			}
-			int firstPhysAddress = Machine.processor().makeAddress(pageTable[i].ppn, offset1);
-			//int lastPhysAddress = Machine.processor().makeAddress(pageTable[i].ppn, offset2);
-			System.arraycopy(data, offset+numBytesTransferred, memory, firstPhysAddress, offset2-offset1);
-			numBytesTransferred += (offset2-offset1);
-			pageTable[i].used = pageTable[i].dirty = true;
+			releaseExtents(start, numExtents, true);
 		}
 
-		return numBytesTransferred;
+		return amount;
+	}
+
+	/**
+	 * Translate a range of this process's virtual memory into the extents of
+	 * physical memory that hold it, stored in <tt>extents</tt> as pairs of a
+	 * physical address and a length, one per page. Pages of mapped files are
+	 * loaded, and if the memory is to be written, copy-on-write pages are
+	 * copied. Translation stops at the first page that cannot be used, and
+	 * after <tt>maxExtents</tt> pages; every successful call must be followed
+	 * by <tt>releaseExtents()</tt> once the memory has been accessed.
+	 *
+	 * @param	vaddr	the first byte of virtual memory to translate.
+	 * @param	length	the number of bytes to translate.
+	 * @param	writing	<tt>true</tt> if the memory will be written.
+	 * @return	the number of extents translated, which is zero if the
+	 *		first page cannot be used.
+	 */
+	protected int translateExtents(int vaddr, int length, boolean writing) {
+		int numExtents = 0;
+		int amount = 0;
+
+		while (amount < length && numExtents < maxExtents){
+			int vpn = Processor.pageFromAddress(vaddr+amount);
+			if (vaddr+amount < 0 || vpn >= pageTable.length || pageTable[vpn] == null)
+				break;
+			if (!pageTable[vpn].valid && !loadMappedPage(vpn))
+				break;
+			if (writing && vpn < numPages && copyOnWrite[vpn] && !breakCopyOnWrite(vpn))
+				break;
+
+			TranslationEntry entry = pageTable[vpn];
+			if (writing && entry.readOnly)
+				break;
+
+			int pageOffset = Processor.offsetFromAddress(vaddr+amount);
+			int chunk = Math.min(length-amount, pageSize-pageOffset);
+
+			entry.used = true;
+			if (writing)
+				entry.dirty = true;
+
+			extents[2*numExtents] = entry.ppn*pageSize + pageOffset;
+			extents[2*numExtents+1] = chunk;
+			numExtents++;
+			amount += chunk;
+		}
+
+		return numExtents;
+	}
+
+	/**
+	 * Release the physical memory translated by the last call to
+	 * <tt>translateExtents()</tt>, which needs no action unless pages can be
+	 * evicted.
+	 *
+	 * @param	vaddr		the first byte of virtual memory that was
+	 *				translated.
+	 * @param	numExtents	the number of extents translated.
+	 * @param	written		<tt>true</tt> if the memory was written.
+	 */
+	protected void releaseExtents(int vaddr, int numExtents, boolean written) {
 	}
 
 	/**
@@ -289,20 +307,12 @@ public class UserProcess {
 	private boolean load(String name, String[] args) {
 		Lib.debug(dbgProcess, "UserProcess.load(\"" + name + "\")");
 
-		OpenFile executable = ThreadedKernel.fileSystem.open(name, false);
-		if (executable == null) {
-			Lib.debug(dbgProcess, "\topen failed");
+		CachedCoff executable = UserKernel.executables.open(name);
+		if (executable == null)
 			return false;
-		}
 
-		try {
-			coff = new Coff(executable);
-		}
-		catch (EOFException e) {
-			executable.close();
-			Lib.debug(dbgProcess, "\tcoff load failed");
-			return false;
-		}
+		coff = executable;
+		coffIdentity = executable.getIdentity();
 
 		// make sure the sections are contiguous and start at page 0
 		numPages = 0;
@@ -340,6 +350,8 @@ public class UserProcess {
 		// and finally reserve 1 page for arguments
 		numPages++;
 
+		copyOnWrite = new boolean[numPages];
+
 		if (!loadSections())
 			return false;
 
@@ -379,11 +391,44 @@ public class UserProcess {
 		}
 
 		UserKernel.lock.acquire();
-		//allocate physical pages from free pages list
 		pageTable = new TranslationEntry[numPages];
+		//map text pages already loaded by another process running this executable
+		for (int s=0; s<coff.getNumSections(); s++) {
+			CoffSection section = coff.getSection(s);
+			if (!section.isReadOnly())
+				continue;
+			for (int i=0; i<section.getLength(); i++) {
+				int vpn = section.getFirstVPN()+i;
+				int sharedPage = UserKernel.textPages.lookup(coffIdentity, vpn);
+				if (sharedPage != -1){
+					pageTable[vpn] = new TranslationEntry(vpn,sharedPage,true,true,false,false);
+					UserKernel.frameReferences[sharedPage]++;
+				}
+			}
+		}
+		//make sure the rest of the address space fits in memory
+		int pagesNeeded = 0;
+		for (int i=0; i<numPages; i++){
+			if (pageTable[i] == null)
+				pagesNeeded++;
+		}
+		if (pagesNeeded > UserKernel.availablePages.size()){
+			for (int i=0; i<numPages; i++){
+				if (pageTable[i] != null)
+					UserKernel.frameReferences[pageTable[i].ppn]--;
+			}
+			UserKernel.lock.release();
+			coff.close();
+			Lib.debug(dbgProcess, "\tinsufficient physical memory");
+			return false;
+		}
+		//allocate physical pages from free pages list
 		for (int i=0; i<numPages; i++){
+			if (pageTable[i] != null)
+				continue;
 			int nextFreePage = UserKernel.availablePages.poll();
 			pageTable[i] = new TranslationEntry(i,nextFreePage,true,false,false,false);
+			UserKernel.frameReferences[nextFreePage] = 1;
 		}
 		UserKernel.lock.release();
 
@@ -397,7 +442,17 @@ public class UserProcess {
 			for (int i=0; i<section.getLength(); i++) {
 				int vpn = section.getFirstVPN()+i;
 
+				if (pageTable[vpn].readOnly)
+					continue; //shared text page, already loaded
+
 				section.loadPage(i, pageTable[vpn].ppn);
+
+				if (section.isReadOnly()){
+					pageTable[vpn].readOnly = true;
+					UserKernel.lock.acquire();
+					UserKernel.textPages.insert(coffIdentity, vpn, pageTable[vpn].ppn);
+					UserKernel.lock.release();
+				}
 			}
 		}
 
@@ -409,20 +464,211 @@ public class UserProcess {
 	 */
 	protected void unloadSections() {
 		UserKernel.lock.acquire();
-		//deallocate physical pages
+		//deallocate physical pages no longer shared with another process
 		for (int i=0; i<numPages; i++){
-			UserKernel.availablePages.add(pageTable[i].ppn);
+			if (--UserKernel.frameReferences[pageTable[i].ppn] == 0){
+				UserKernel.textPages.remove(pageTable[i].ppn);
+				UserKernel.availablePages.add(pageTable[i].ppn);
+			}
 		}
 		UserKernel.lock.release();
 
-		for (int i=0; i<16; i++){
-			if (fileDescriptorTable[i] != null){
-				fileDescriptorTable[i].close();
-			}
-		}	
-		coff.close();
+		if (coff != null)
+			coff.close();
 	}    
 
+	/**
+	 * Initialize the address space of a process created by <tt>fork()</tt> as
+	 * a copy of its parent's. Called in place of <tt>loadSections()</tt>.
+	 * Instead of being copied, every page is shared with the parent, and
+	 * writable pages become copy-on-write in both processes.
+	 *
+	 * @param	parent	the process being forked, which must be the current
+	 *			process.
+	 * @return	<tt>true</tt> if successful.
+	 */
+	protected boolean forkSections(UserProcess parent) {
+		pageTable = new TranslationEntry[numPages];
+
+		UserKernel.lock.acquire();
+		for (int i=0; i<numPages; i++){
+			TranslationEntry entry = parent.pageTable[i];
+			if (!entry.readOnly){
+				entry.readOnly = true;
+				parent.copyOnWrite[i] = true;
+			}
+			copyOnWrite[i] = parent.copyOnWrite[i];
+			pageTable[i] = new TranslationEntry(entry);
+			UserKernel.frameReferences[entry.ppn]++;
+		}
+		UserKernel.lock.release();
+
+		return true;
+	}
+
+	/**
+	 * Give this process a private, writable copy of the specified
+	 * copy-on-write page, so that it can be modified. If no other process
+	 * still shares the page, it is simply made writable.
+	 *
+	 * @param	vpn	the virtual page to copy.
+	 * @return	<tt>false</tt> if no physical memory was available.
+	 */
+	protected boolean breakCopyOnWrite(int vpn) {
+		Lib.assertTrue(copyOnWrite[vpn]);
+
+		TranslationEntry entry = pageTable[vpn];
+
+		UserKernel.lock.acquire();
+		if (UserKernel.frameReferences[entry.ppn] > 1){
+			Integer ppn = UserKernel.availablePages.poll();
+			if (ppn == null){
+				UserKernel.lock.release();
+				Lib.debug(dbgProcess, "\tno memory to copy page " + vpn);
+				return false;
+			}
+			byte[] memory = Machine.processor().getMemory();
+			System.arraycopy(memory, entry.ppn*pageSize, memory, ppn*pageSize, pageSize);
+			UserKernel.frameReferences[entry.ppn]--;
+			UserKernel.frameReferences[ppn] = 1;
+			entry.ppn = ppn;
+		}
+		UserKernel.lock.release();
+
+		entry.readOnly = false;
+		copyOnWrite[vpn] = false;
+		return true;
+	}
+
+	/**
+	 * Close every file still open in this process's file descriptor table.
+	 */
+	private void closeOpenFiles() {
+		for (int i=fileDescriptorTable.next(0); i!=-1; i=fileDescriptorTable.next(i+1))
+			closeFile(i);
+	}
+
+	/**
+	 * Close an open file descriptor, first removing its memory map if the
+	 * file is mapped.
+	 *
+	 * @param	fileDescriptor	the file descriptor to close.
+	 */
+	private void closeFile(int fileDescriptor) {
+		MemoryMap map = findFileMap(fileDescriptor);
+		if (map != null)
+			unmap(map);
+
+		fileDescriptorTable.remove(fileDescriptor).close();
+	}
+
+	/**
+	 * Return the memory map containing the specified virtual page.
+	 *
+	 * @param	vpn	the virtual page number.
+	 * @return	the map, or <tt>null</tt> if the page is not in a mapped
+	 *		file.
+	 */
+	protected MemoryMap findMemoryMap(int vpn) {
+		for (MemoryMap map : memoryMaps){
+			if (map.contains(vpn))
+				return map;
+		}
+		return null;
+	}
+
+	/**
+	 * Return the memory map of the file open as the specified file
+	 * descriptor.
+	 *
+	 * @param	fileDescriptor	the file descriptor.
+	 * @return	the map, or <tt>null</tt> if the file is not mapped.
+	 */
+	private MemoryMap findFileMap(int fileDescriptor) {
+		for (MemoryMap map : memoryMaps){
+			if (map.getFileDescriptor() == fileDescriptor)
+				return map;
+		}
+		return null;
+	}
+
+	/**
+	 * Load a page of a mapped file in response to a page fault, mapping the
+	 * frame of any other process that has the same page loaded.
+	 *
+	 * @param	vpn	the virtual page that faulted.
+	 * @return	<tt>false</tt> if the page is not in a mapped file, or no
+	 *		physical memory was available.
+	 */
+	private boolean loadMappedPage(int vpn) {
+		MemoryMap map = findMemoryMap(vpn);
+		if (map == null)
+			return false;
+
+		int page = vpn - map.getFirstVPN();
+
+		// the lock is held while the page is read, so that no other
+		// process loads a second copy of it
+		UserKernel.lock.acquire();
+		int ppn = UserKernel.filePages.lookup(map.getName(), page);
+		if (ppn != -1){
+			UserKernel.frameReferences[ppn]++;
+		}else{
+			Integer free = UserKernel.availablePages.poll();
+			if (free == null){
+				UserKernel.lock.release();
+				Lib.debug(dbgProcess, "\tno memory to load mapped page " + vpn);
+				return false;
+			}
+			ppn = free;
+			map.loadPage(page, ppn);
+			UserKernel.frameReferences[ppn] = 1;
+			UserKernel.filePages.insert(map.getName(), page, ppn);
+		}
+		UserKernel.lock.release();
+
+		TranslationEntry entry = pageTable[vpn];
+		entry.ppn = ppn;
+		entry.used = entry.dirty = false;
+		entry.valid = true;
+		return true;
+	}
+
+	/**
+	 * Remove a memory map from this process's address space.
+	 *
+	 * @param	map	the map to remove.
+	 */
+	private void unmap(MemoryMap map) {
+		unmapPages(map);
+		memoryMaps.remove(map);
+	}
+
+	/**
+	 * Release the pages of a memory map, writing back every page that this
+	 * process has modified. The map's virtual pages become unusable.
+	 *
+	 * @param	map	the map being removed.
+	 */
+	protected void unmapPages(MemoryMap map) {
+		for (int i=0; i<map.getNumPages(); i++){
+			int vpn = map.getFirstVPN()+i;
+			TranslationEntry entry = pageTable[vpn];
+			if (entry.valid){
+				if (entry.dirty)
+					map.writePage(i, entry.ppn);
+
+				UserKernel.lock.acquire();
+				if (--UserKernel.frameReferences[entry.ppn] == 0){
+					UserKernel.filePages.remove(entry.ppn);
+					UserKernel.availablePages.add(entry.ppn);
+				}
+				UserKernel.lock.release();
+			}
+			pageTable[vpn] = null;
+		}
+	}
+
 	/**
 	 * Initialize the processor's registers in preparation for running the
 	 * program loaded into this process. Set the PC register to point at the
@@ -433,8 +679,16 @@ public class UserProcess {
 	public void initRegisters() {
 		Processor processor = Machine.processor();
 
+		// a forked process resumes where its parent was
+		if (forkRegisters != null) {
+			for (int i=0; i<Processor.numUserRegisters; i++)
+				processor.writeRegister(i, forkRegisters[i]);
+			forkRegisters = null;
+			return;
+		}
+
 		// by default, everything's 0
-		for (int i=0; i<processor.numUserRegisters; i++)
+		for (int i=0; i<Processor.numUserRegisters; i++)
 			processor.writeRegister(i, 0);
 
 		// initialize PC and SP according
@@ -453,7 +707,7 @@ public class UserProcess {
 
 		// Added for project 2 //
 		// check if this process is root //
-		if (this.processID != 0){
+		if (this != rootProcess){
 			Lib.debug(dbgProcess, "Program is not root");
 			return 0;
 		}
@@ -481,25 +735,18 @@ public class UserProcess {
 		}
 
 		// check for free fileDescriptor
-		int emptyIndex = -1;
-		for(int i=2; i<16; i++){
-			if(fileDescriptorTable[i] == null){
-				emptyIndex = i;
-				break;
-			}
-		}
-		if (emptyIndex == -1){
+		if (fileDescriptorTable.isFull()){
 			Lib.debug(dbgProcess, "No free fileDescriptor available");
 			return -1;
 		}
 
 		OpenFile file = ThreadedKernel.fileSystem.open(filename, true);
+		fileReplaced(filename);
 		if (file == null){
 			Lib.debug(dbgProcess, "Cannot create file");
 			return -1;
 		}else{
-			fileDescriptorTable[emptyIndex] = file;
-			return emptyIndex;
+			return fileDescriptorTable.add(file);
 		}
 	}
 
@@ -516,14 +763,7 @@ public class UserProcess {
 		}
 
 		// check for free fileDescriptor
-		int emptyIndex = -1;
-		for(int i=2; i<16; i++){
-			if(fileDescriptorTable[i] == null){
-				emptyIndex = i;
-				break;
-			}
-		}
-		if (emptyIndex == -1){
+		if (fileDescriptorTable.isFull()){
 			Lib.debug(dbgProcess, "No free fileDescriptor available");
 			return -1;
 		}
@@ -533,72 +773,47 @@ public class UserProcess {
 			Lib.debug(dbgProcess, "Cannot create file");
 			return -1;
 		}else{
-			fileDescriptorTable[emptyIndex] = file;
-			return emptyIndex;
+			return fileDescriptorTable.add(file);
 		}
 	}
 
 	private int handleRead(int fileDescriptor, int bufferAddr, int count){
-		int bytesRead = 0; //how much we're going to read
-		int returnAmount = 0; //what we're going to return
-
-		//ERROR: invalid fileDescriptor
-		if(fileDescriptor < 0 || fileDescriptor > 15) { return -1; }
-
 		//get the file
-		OpenFile file = fileDescriptorTable[fileDescriptor];
+		OpenFile file = fileDescriptorTable.get(fileDescriptor);
 
 		//ERROR: there's no file at fileDescriptor
 		if(file == null) { return -1; }
 
+		//ERROR: the file is mapped into memory
+		if(findFileMap(fileDescriptor) != null) { return -1; }
+
 		// Make sure count is positive. What if count is 0???
 		if(count < 0) { return -1; }
 
-		//the buffer we're going to write to
-		byte[] buffer = new byte[count];
-
-		//READ FROM FILE
-		bytesRead = file.read(buffer, 0, count);
-
-		//ERROR: there was an error while reading
-		if(bytesRead == -1) { return -1; }
-
-		//write from buffer to virtual address space
-		returnAmount = writeVirtualMemory(bufferAddr, buffer, 0, bytesRead);
-
-		//all done! return the amount of bytes we ended up reading
-		return returnAmount;
+		//READ FROM FILE directly into the process's memory
+		return transferFile(file, bufferAddr, count, true);
 	}
 
 	private int handleWrite(int fileDescriptor, int bufferAddr, int count){
-		int bytesWritten = 0; //how much we're going to write
 		int returnAmount = 0; //what we're going to return
 
-		//ERROR: invalid fileDescriptor
-		if(fileDescriptor < 0 || fileDescriptor > 15) { return -1; }
-
 		//get the file
-		OpenFile file = fileDescriptorTable[fileDescriptor];
+		OpenFile file = fileDescriptorTable.get(fileDescriptor);
 
 		//ERROR: there's no file at fileDescriptor
 		if(file == null) { return -1; }
 
+		//ERROR: the file is mapped into memory
+		if(findFileMap(fileDescriptor) != null) { return -1; }
+
 		// check if count is positive. What if count is 0?
 		if(count < 0) { return -1; }
 
-		//the buffer we're going to read from
-		byte[] buffer = new byte[count];
-
-		//write from virtual address space to buffer
-		bytesWritten = readVirtualMemory(bufferAddr, buffer, 0, count);
-
-		//ERROR: didn't read all the bytes we wanted to
-		// Do you still want to write to disk though?
+		//write to file directly from the process's memory
 		// Specs: " On error, -1 is returned, and the new file position is undefined "		
-		//if(bytesWritten != count) { return -1; }
-
-		//write from buffer to file
-		returnAmount = file.write(buffer, 0, bytesWritten); //even bytesWritten != count, we still write
+		returnAmount = transferFile(file, bufferAddr, count, false); //even if not all of the buffer is valid, we still write
+		if (returnAmount != 0)
+			fileChanged(file);
 
 		if (returnAmount != count){
 			return -1;
@@ -607,17 +822,187 @@ public class UserProcess {
 		return returnAmount;
 	}
 
+	/**
+	 * Discard any cached executable read from a file that was just written.
+	 * Streams, such as the console, are not in the file system, and cannot
+	 * hold executables.
+	 */
+	private void fileChanged(OpenFile file) {
+		if (file.getFileSystem() != null)
+			UserKernel.executables.invalidate(file.getName());
+	}
+
+	/**
+	 * Discard everything cached from a file that was just created or
+	 * removed: its parsed executable, and the mapped pages that processes
+	 * loading the new file must not share with those mapping the old one.
+	 */
+	private void fileReplaced(String name) {
+		UserKernel.executables.invalidate(name);
+
+		UserKernel.lock.acquire();
+		UserKernel.filePages.removeFile(name);
+		UserKernel.lock.release();
+	}
+
+	/**
+	 * Handle the readv() and writev() system calls. Each buffer is transferred
+	 * in turn, and the transfer ends at the first one that is not transferred
+	 * completely.
+	 *
+	 * @param	reading	<tt>true</tt> for readv(), <tt>false</tt> for
+	 *			writev().
+	 * @return	the number of bytes transferred, or -1 on error.
+	 */
+	private int handleVectored(int fileDescriptor, int iovAddr, int iovCount, boolean reading){
+		if (fileDescriptorTable.get(fileDescriptor) == null){
+			return -1;
+		}
+		if (findFileMap(fileDescriptor) != null){
+			return -1;
+		}
+		if (iovCount < 0 || iovCount > maxIovecs){
+			Lib.debug(dbgProcess, "Invalid iovec count");
+			return -1;
+		}
+
+		byte[] iov = new byte[iovCount*8];
+		if (readVirtualMemory(iovAddr, iov) != iov.length){
+			Lib.debug(dbgProcess, "Invalid iovec array");
+			return -1;
+		}
+		int total = 0;
+		for (int i=0; i<iovCount; i++){
+			int length = Lib.bytesToInt(iov, i*8+4);
+			if (length < 0){
+				return -1;
+			}
+			total += length;
+		}
+
+		OpenFile file = fileDescriptorTable.get(fileDescriptor);
+
+		int amount = 0;
+		for (int i=0; i<iovCount; i++){
+			int base = Lib.bytesToInt(iov, i*8);
+			int length = Lib.bytesToInt(iov, i*8+4);
+
+			int transferred = transferFile(file, base, length, reading);
+			if (transferred == -1){
+				if (reading)
+					return (amount > 0) ? amount : -1;
+				break;
+			}
+			amount += transferred;
+			if (transferred < length)
+				break;
+		}
+
+		if (!reading && amount > 0)
+			fileChanged(file);
+
+		// as for write(), writing less than requested is an error
+		if (!reading && amount != total){
+			return -1;
+		}
+		return amount;
+	}
+
+	/**
+	 * Handle the copyfile() system call, which copies data from one file to
+	 * another entirely within the kernel.
+	 *
+	 * @return	the number of bytes copied, or -1 on error.
+	 */
+	private int handleCopyfile(int srcFileDescriptor, int dstFileDescriptor, int count){
+		if (fileDescriptorTable.get(srcFileDescriptor) == null || fileDescriptorTable.get(dstFileDescriptor) == null){
+			return -1;
+		}
+		if (srcFileDescriptor == dstFileDescriptor || count < 0){
+			return -1;
+		}
+		if (findFileMap(srcFileDescriptor) != null || findFileMap(dstFileDescriptor) != null){
+			return -1;
+		}
+
+		OpenFile destination = fileDescriptorTable.get(dstFileDescriptor);
+		int amount = fileDescriptorTable.get(srcFileDescriptor).copyTo(destination, count);
+		if (amount != 0)
+			fileChanged(destination);
+		return amount;
+	}
+
+	/**
+	 * Handle the fsync() system call, which writes any data the file system
+	 * is still holding for a file to the underlying storage.
+	 *
+	 * @return	0 on success, or -1 on error.
+	 */
+	private int handleFsync(int fileDescriptor){
+		OpenFile file = fileDescriptorTable.get(fileDescriptor);
+		if (file == null){
+			return -1;
+		}
+
+		return file.sync() ? 0 : -1;
+	}
+
+	/**
+	 * Transfer data between an open file and this process's virtual memory,
+	 * starting at the file's current position. The file reads into or writes
+	 * from physical memory directly, a batch of pages at a time.
+	 *
+	 * @param	file	the file to transfer data to or from.
+	 * @param	vaddr	the first byte of virtual memory to transfer.
+	 * @param	count	the number of bytes to transfer.
+	 * @param	reading	<tt>true</tt> to read the file into memory,
+	 *			<tt>false</tt> to write memory to the file.
+	 * @return	the number of bytes transferred, or -1 if the file failed
+	 *		before any were.
+	 */
+	private int transferFile(OpenFile file, int vaddr, int count, boolean reading){
+		byte[] memory = Machine.processor().getMemory();
+		int amount = 0;
+
+		while (amount < count){
+			int start = vaddr+amount;
+			int numExtents = translateExtents(start, count-amount, reading);
+			if (numExtents == 0)
+				break;
+
+			int size = 0;
+			for (int i=0; i<numExtents; i++)
+				size += extents[2*i+1];
+
+			int transferred;
+			if (reading)
+				transferred = file.read(memory, extents, numExtents);
+			else
+				transferred = file.write(memory, extents, numExtents);
+
+			releaseExtents(start, numExtents, reading && transferred > 0);
+
+			if (transferred == -1)
+				return (amount > 0) ? amount : -1;
+			amount += transferred;
+			if (transferred < size)
+				break;
+		}
+
+		return amount;
+	}
+
 	private int handleClose(int fileDescriptor){
-		if ((fileDescriptor < 0) || (fileDescriptor > 15) || fileDescriptorTable[fileDescriptor] == null ) {
+		if (fileDescriptorTable.get(fileDescriptor) == null) {
 			return -1;
 		}
-		fileDescriptorTable[fileDescriptor].close();
-		fileDescriptorTable[fileDescriptor] = null;
+		closeFile(fileDescriptor);
 		return 0;
 	}
 
 	private int handleUnlink(String name){
 		boolean succeeded = ThreadedKernel.fileSystem.remove(name);
+		fileReplaced(name);
 		if (!succeeded)
 		{
 			return -1;
@@ -626,6 +1011,76 @@ public class UserProcess {
 	}
 
 
+	/**
+	 * Handle the mmap() system call. The whole file is mapped, starting at
+	 * the specified page-aligned address, which must lie past the end of the
+	 * program and outside any other map. No page is read until it is first
+	 * used.
+	 *
+	 * @return	the length of the file, or -1 if it could not be mapped.
+	 */
+	private int handleMmap(int fileDescriptor, int vaddr){
+		if (fileDescriptorTable.get(fileDescriptor) == null){
+			return -1;
+		}
+		if (findFileMap(fileDescriptor) != null){
+			Lib.debug(dbgProcess, "File is already mapped");
+			return -1;
+		}
+		if (vaddr < 0 || Processor.offsetFromAddress(vaddr) != 0){
+			Lib.debug(dbgProcess, "Invalid map address");
+			return -1;
+		}
+
+		OpenFile file = fileDescriptorTable.get(fileDescriptor);
+		if (file.length() < 0){
+			Lib.debug(dbgProcess, "File cannot be mapped");
+			return -1;
+		}
+
+		MemoryMap map = new MemoryMap(fileDescriptor, file, Processor.pageFromAddress(vaddr));
+		int firstVPN = map.getFirstVPN();
+		int endVPN = firstVPN + map.getNumPages();
+		if (firstVPN < numPages || endVPN > maxMapPages){
+			Lib.debug(dbgProcess, "Map outside the usable address space");
+			return -1;
+		}
+		for (MemoryMap other : memoryMaps){
+			if (firstVPN < other.getFirstVPN()+other.getNumPages() && other.getFirstVPN() < endVPN){
+				Lib.debug(dbgProcess, "Map overlaps another map");
+				return -1;
+			}
+		}
+
+		if (endVPN > pageTable.length){
+			pageTable = Arrays.copyOf(pageTable, endVPN);
+			// the processor must see the larger page table
+			restoreState();
+		}
+		for (int vpn=firstVPN; vpn<endVPN; vpn++)
+			pageTable[vpn] = new TranslationEntry(vpn, -1, false, false, false, false);
+
+		memoryMaps.add(map);
+		return map.getLength();
+	}
+
+	/**
+	 * Handle the munmap() system call. Dirty pages are written back, and the
+	 * file descriptor can be read and written again.
+	 *
+	 * @return	0 on success, or -1 if no map starts at the address.
+	 */
+	private int handleMunmap(int vaddr){
+		for (MemoryMap map : memoryMaps){
+			if (vaddr >= 0 && Processor.offsetFromAddress(vaddr) == 0
+					&& map.getFirstVPN() == Processor.pageFromAddress(vaddr)){
+				unmap(map);
+				return 0;
+			}
+		}
+		return -1;
+	}
+
 	/**
 	 * Part 3
 	 */
@@ -640,13 +1095,14 @@ public class UserProcess {
 			parentProcess.exitStatuses.put(processID, status);
 			parentProcess.mapLock.release();
 		}
+		this.closeOpenFiles();
 		this.unloadSections();
 		ListIterator<UserProcess> iter = childProcesses.listIterator();
 		while(iter.hasNext()) {
 			iter.next().parentProcess = null;
 		}
 		childProcesses.clear();
-		if (this.processID == 0) {
+		if (this == rootProcess) {
 			Kernel.kernel.terminate(); //root exiting
 		} else {
 			KThread.finish();
@@ -710,6 +1166,71 @@ public class UserProcess {
 		} 	
 	}
 
+	/**
+	 * Handle the fork() system call. The child gets a copy-on-write copy of
+	 * this process's address space and references to all of its open files,
+	 * and returns 0 from fork() in its own thread.
+	 *
+	 * @return	the child's process ID, or -1 if it could not be created.
+	 */
+	private int handleFork(){
+		UserProcess child = forkProcess();
+		if (child == null){
+			return -1;
+		}
+
+		// the child returns 0 from the syscall that created it
+		Processor processor = Machine.processor();
+		child.forkRegisters = new int[Processor.numUserRegisters];
+		for (int i=0; i<Processor.numUserRegisters; i++)
+			child.forkRegisters[i] = processor.readRegister(i);
+		child.forkRegisters[Processor.regV0] = 0;
+		child.forkRegisters[Processor.regPC] = processor.readRegister(Processor.regNextPC);
+		child.forkRegisters[Processor.regNextPC] = processor.readRegister(Processor.regNextPC)+4;
+
+		child.thread = new UThread(child);
+		child.thread.setName(KThread.currentThread().getName()).fork();
+
+		return child.processID;
+	}
+
+	/**
+	 * Create a child of this process, with a copy-on-write copy of its
+	 * address space and references to all of its open files. The child is
+	 * not started.
+	 *
+	 * @return	the child, or <tt>null</tt> if it could not be created.
+	 */
+	private UserProcess forkProcess(){
+		UserProcess child = UserProcess.newUserProcess();
+
+		child.coffIdentity = coffIdentity;
+		child.numPages = numPages;
+		child.copyOnWrite = new boolean[numPages];
+		if (!child.forkSections(this)){
+			Lib.debug(dbgProcess, "Cannot fork the address space");
+			return null;
+		}
+
+		// both processes now share every open file
+		child.closeOpenFiles();
+		for (int i=fileDescriptorTable.next(0); i!=-1; i=fileDescriptorTable.next(i+1)){
+			OpenFile file = fileDescriptorTable.get(i);
+			if (!(file instanceof SharedOpenFile)){
+				file = new SharedOpenFile(fileDescriptorTable.remove(i));
+				fileDescriptorTable.set(i, file);
+			}
+			child.fileDescriptorTable.set(i, ((SharedOpenFile) file).duplicate());
+		}
+		child.stdin = child.fileDescriptorTable.get(0);
+		child.stdout = child.fileDescriptorTable.get(1);
+
+		this.childProcesses.add(child);
+		child.parentProcess = this;
+
+		return child;
+	}
+
 	// NOT BULLET-PROOF. PERFECT IT PLEASE!!!
 
 	private int handleJoin(int processID, int statusAddr){
@@ -768,7 +1289,14 @@ public class UserProcess {
 	syscallRead = 6,
 	syscallWrite = 7,
 	syscallClose = 8,
-	syscallUnlink = 9;
+	syscallUnlink = 9,
+	syscallMmap = 10,
+	syscallFork = 13,
+	syscallMunmap = 14,
+	syscallReadv = 15,
+	syscallWritev = 16,
+	syscallCopyfile = 17,
+	syscallFsync = 18;
 
 	/**
 	 * Handle a syscall exception. Called by <tt>handleException()</tt>. The
@@ -789,6 +1317,16 @@ public class UserProcess {
 	 *								</tt></td></tr>
 	 * <tr><td>8</td><td><tt>int  close(int fd);</tt></td></tr>
 	 * <tr><td>9</td><td><tt>int  unlink(char *name);</tt></td></tr>
+	 * <tr><td>10</td><td><tt>int  mmap(int fd, char *address);</tt></td></tr>
+	 * <tr><td>13</td><td><tt>int  fork();</tt></td></tr>
+	 * <tr><td>14</td><td><tt>int  munmap(char *address);</tt></td></tr>
+	 * <tr><td>15</td><td><tt>int  readv(int fd, struct iovec *iov, int count);
+	 *								</tt></td></tr>
+	 * <tr><td>16</td><td><tt>int  writev(int fd, struct iovec *iov, int count);
+	 *								</tt></td></tr>
+	 * <tr><td>17</td><td><tt>int  copyfile(int srcFd, int dstFd, int count);
+	 *								</tt></td></tr>
+	 * <tr><td>18</td><td><tt>int  fsync(int fd);</tt></td></tr>
 	 * </table>
 	 * 
 	 * @param	syscall	the syscall number.
@@ -828,6 +1366,20 @@ public class UserProcess {
 				return -1;
 			}
 			return handleUnlink(name);
+		case syscallMmap:
+			return handleMmap(a0, a1);
+		case syscallFork:
+			return handleFork();
+		case syscallMunmap:
+			return handleMunmap(a0);
+		case syscallReadv:
+			return handleVectored(a0, a1, a2, true);
+		case syscallWritev:
+			return handleVectored(a0, a1, a2, false);
+		case syscallCopyfile:
+			return handleCopyfile(a0, a1, a2);
+		case syscallFsync:
+			return handleFsync(a0);
 
 		default:
 			Lib.debug(dbgProcess, "Unknown syscall " + syscall);
@@ -859,6 +1411,23 @@ public class UserProcess {
 			processor.advancePC();
 			break;				       
 
+		case Processor.exceptionReadOnly:
+			int vpn = Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr));
+			// retry the write once the page has been copied
+			if (vpn >= 0 && vpn < numPages && copyOnWrite[vpn] && breakCopyOnWrite(vpn))
+				break;
+			Lib.debug(dbgProcess, "Unexpected exception: " + Processor.exceptionNames[cause]);
+			handleExit(-9999);
+			break;
+
+		case Processor.exceptionPageFault:
+			// pages of mapped files are loaded on first use
+			if (loadMappedPage(Processor.pageFromAddress(processor.readRegister(Processor.regBadVAddr))))
+				break;
+			Lib.debug(dbgProcess, "Unexpected exception: " + Processor.exceptionNames[cause]);
+			handleExit(-9999);
+			break;
+
 		default:
 			Lib.debug(dbgProcess, "Unexpected exception: " + Processor.exceptionNames[cause]);
 			handleExit(-9999); //abnormal exception, exit with status = -9999
@@ -866,28 +1435,260 @@ public class UserProcess {
 		}
 	}
 
+	/**
+	 * Test the system calls by making them on behalf of a process that never
+	 * runs. The shell is loaded into it, and the pages at the bottom of its
+	 * stack hold whatever the calls read and write, starting with the name of
+	 * a test file. The test files are kept in a <tt>MemoryFileSystem</tt>
+	 * that stands in for the kernel's file system while the test runs, so
+	 * nothing is written to the test directory.
+	 */
+	public static void selfTest() {
+		UserProcess process = newUserProcess();
+		if (!process.load(Machine.getShellProgramName(), new String[] { })){
+			process.closeOpenFiles();
+			return;
+		}
+
+		int base = (process.numPages-1-process.stackPages)*pageSize;
+		forkTest(process, base);
+
+		FileSystem fileSystem = ThreadedKernel.fileSystem;
+		ThreadedKernel.fileSystem = new MemoryFileSystem();
+		String prefix = Config.getString("MemoryFileSystem.prefix", "");
+		byte[] name = (prefix + "selftest.tmp\0").getBytes();
+		Lib.assertTrue(process.writeVirtualMemory(base, name) == name.length);
+
+		mmapTest(process, base);
+		vectoredIOTest(process, base);
+		fsyncTest(process, base);
+
+		process.closeOpenFiles();
+		process.unloadSections();
+		ThreadedKernel.fileSystem = fileSystem;
+	}
+
+	/**
+	 * Test fork(): a forked child and its parent must each keep their own
+	 * copy of a page written after the fork.
+	 */
+	private static void forkTest(UserProcess process, int base) {
+		int page = base+4*pageSize;
+
+		byte[] contents = new byte[pageSize], check = new byte[pageSize];
+		Arrays.fill(contents, (byte) 'p');
+		Lib.assertTrue(process.writeVirtualMemory(page, contents) == pageSize);
+
+		UserProcess child = process.forkProcess();
+		Lib.assertTrue(child != null, "UserProcess test: fork failed");
+		Lib.assertTrue(child.writeVirtualMemory(page, new byte[] { 'c' }) == 1);
+		Lib.assertTrue(process.writeVirtualMemory(page+1, new byte[] { 'q' }) == 1);
+
+		contents[1] = 'q';
+		Lib.assertTrue(process.readVirtualMemory(page, check) == pageSize);
+		Lib.assertTrue(Arrays.equals(contents, check),
+			       "UserProcess test: parent saw the child's write");
+		contents[0] = 'c';
+		contents[1] = 'p';
+		Lib.assertTrue(child.readVirtualMemory(page, check) == pageSize);
+		Lib.assertTrue(Arrays.equals(contents, check),
+			       "UserProcess test: child saw the parent's write");
+
+		child.closeOpenFiles();
+		child.unloadSections();
+		process.childProcesses.remove(child);
+	}
+
+	/**
+	 * Test readv(), writev() and copyfile() on the file named at
+	 * <tt>base</tt>: data written with writev() must read back in order with
+	 * readv(), and be copied intact by copyfile().
+	 */
+	private static void vectoredIOTest(UserProcess process, int base) {
+		int copyName = base+pageSize/2, iov = base+pageSize-8*maxIovecs;
+		int data = base+pageSize, buffer = base+2*pageSize;
+
+		String prefix = Config.getString("MemoryFileSystem.prefix", "");
+		byte[] copyNameBytes = (prefix + "selftest.cpy\0").getBytes();
+		Lib.assertTrue(process.writeVirtualMemory(copyName, copyNameBytes) == copyNameBytes.length);
+
+		// writev() gathers the parts in iovec order, not address order
+		byte[] text = "vectored I/O works\n".getBytes();
+		byte[] check = new byte[text.length];
+		int[] parts = { 9, 4, text.length-13 };
+		int[] bases = { data+200, data+100, data };
+		byte[] iovecs = new byte[3*8];
+		for (int i=0, offset=0; i<3; offset+=parts[i], i++){
+			Lib.assertTrue(process.writeVirtualMemory(bases[i], text, offset, parts[i]) == parts[i]);
+			Lib.bytesFromInt(iovecs, i*8, bases[i]);
+			Lib.bytesFromInt(iovecs, i*8+4, parts[i]);
+		}
+		Lib.assertTrue(process.writeVirtualMemory(iov, iovecs) == iovecs.length);
+
+		int fd = process.handleSyscall(syscallCreate, base, 0, 0, 0);
+		Lib.assertTrue(fd != -1, "UserProcess test: creat failed");
+		Lib.assertTrue(process.handleSyscall(syscallWritev, fd, iov, 3, 0) == text.length,
+			       "UserProcess test: writev failed");
+		Lib.assertTrue(process.handleSyscall(syscallClose, fd, 0, 0, 0) == 0);
+
+		// readv() scatters the file across buffers of any size
+		Lib.bytesFromInt(iovecs, 0, buffer);
+		Lib.bytesFromInt(iovecs, 4, 5);
+		Lib.bytesFromInt(iovecs, 8, buffer+512);
+		Lib.bytesFromInt(iovecs, 12, 64);
+		Lib.assertTrue(process.writeVirtualMemory(iov, iovecs, 0, 16) == 16);
+
+		fd = process.handleSyscall(syscallOpen, base, 0, 0, 0);
+		Lib.assertTrue(process.handleSyscall(syscallReadv, fd, iov, 2, 0) == text.length,
+			       "UserProcess test: readv failed");
+		Lib.assertTrue(process.handleSyscall(syscallClose, fd, 0, 0, 0) == 0);
+
+		Lib.assertTrue(process.readVirtualMemory(buffer, check, 0, 5) == 5);
+		Lib.assertTrue(process.readVirtualMemory(buffer+512, check, 5, text.length-5) == text.length-5);
+		Lib.assertTrue(Arrays.equals(text, check),
+			       "UserProcess test: readv returned the wrong bytes");
+
+		// copyfile() copies what writev() wrote
+		int source = process.handleSyscall(syscallOpen, base, 0, 0, 0);
+		int copy = process.handleSyscall(syscallCreate, copyName, 0, 0, 0);
+		Lib.assertTrue(process.handleSyscall(syscallCopyfile, source, copy, 100, 0) == text.length,
+			       "UserProcess test: copyfile failed");
+		Lib.assertTrue(process.handleSyscall(syscallClose, source, 0, 0, 0) == 0);
+		Lib.assertTrue(process.handleSyscall(syscallClose, copy, 0, 0, 0) == 0);
+
+		fd = process.handleSyscall(syscallOpen, copyName, 0, 0, 0);
+		Lib.assertTrue(process.handleSyscall(syscallRead, fd, buffer, 64, 0) == text.length);
+		Lib.assertTrue(process.handleSyscall(syscallClose, fd, 0, 0, 0) == 0);
+		Lib.assertTrue(process.readVirtualMemory(buffer, check) == text.length);
+		Lib.assertTrue(Arrays.equals(text, check),
+			       "UserProcess test: copyfile copied the wrong bytes");
+
+		Lib.assertTrue(process.handleSyscall(syscallUnlink, base, 0, 0, 0) == 0);
+		Lib.assertTrue(process.handleSyscall(syscallUnlink, copyName, 0, 0, 0) == 0);
+	}
+
+	/**
+	 * Test fsync() on the file named at <tt>base</tt>: it must succeed on an
+	 * open file, whose data another descriptor must then read, and fail once
+	 * the file is closed.
+	 */
+	private static void fsyncTest(UserProcess process, int base) {
+		int data = base+pageSize, buffer = base+2*pageSize;
+		byte[] text = "synced I/O works\n".getBytes();
+		byte[] check = new byte[text.length];
+		Lib.assertTrue(process.writeVirtualMemory(data, text) == text.length);
+
+		int fd = process.handleSyscall(syscallCreate, base, 0, 0, 0);
+		Lib.assertTrue(fd != -1, "UserProcess test: creat failed");
+		Lib.assertTrue(process.handleSyscall(syscallWrite, fd, data, text.length, 0) == text.length);
+		Lib.assertTrue(process.handleSyscall(syscallFsync, fd, 0, 0, 0) == 0,
+			       "UserProcess test: fsync failed");
+
+		int other = process.handleSyscall(syscallOpen, base, 0, 0, 0);
+		Lib.assertTrue(process.handleSyscall(syscallRead, other, buffer, 64, 0) == text.length);
+		Lib.assertTrue(process.handleSyscall(syscallClose, other, 0, 0, 0) == 0);
+		Lib.assertTrue(process.readVirtualMemory(buffer, check) == text.length);
+		Lib.assertTrue(Arrays.equals(text, check),
+			       "UserProcess test: synced data not readable");
+
+		Lib.assertTrue(process.handleSyscall(syscallClose, fd, 0, 0, 0) == 0);
+		Lib.assertTrue(process.handleSyscall(syscallFsync, fd, 0, 0, 0) == -1,
+			       "UserProcess test: fsync accepted a closed file");
+
+		Lib.assertTrue(process.handleSyscall(syscallUnlink, base, 0, 0, 0) == 0);
+	}
+
+	/**
+	 * Test mmap() and munmap() on the file named at <tt>base</tt>: a map
+	 * must show the file, and munmap() must write a change made through it
+	 * back to the file.
+	 */
+	private static void mmapTest(UserProcess process, int base) {
+		int data = base+pageSize, buffer = base+2*pageSize;
+		int mapping = process.numPages*pageSize;
+
+		byte[] text = "mapped I/O works\n".getBytes();
+		byte[] check = new byte[text.length];
+		Lib.assertTrue(process.writeVirtualMemory(data, text) == text.length);
+
+		int fd = process.handleSyscall(syscallCreate, base, 0, 0, 0);
+		Lib.assertTrue(fd != -1, "UserProcess test: creat failed");
+		Lib.assertTrue(process.handleSyscall(syscallWrite, fd, data, text.length, 0) == text.length);
+		Lib.assertTrue(process.handleSyscall(syscallClose, fd, 0, 0, 0) == 0);
+
+		fd = process.handleSyscall(syscallOpen, base, 0, 0, 0);
+		Lib.assertTrue(process.handleSyscall(syscallMmap, fd, mapping, 0, 0) == text.length,
+			       "UserProcess test: mmap failed");
+		Lib.assertTrue(process.readVirtualMemory(mapping, check) == text.length);
+		Lib.assertTrue(Arrays.equals(text, check),
+			       "UserProcess test: map shows the wrong bytes");
+		Lib.assertTrue(process.writeVirtualMemory(mapping, new byte[] { 'M' }) == 1);
+		Lib.assertTrue(process.handleSyscall(syscallMunmap, mapping, 0, 0, 0) == 0,
+			       "UserProcess test: munmap failed");
+
+		Lib.assertTrue(process.handleSyscall(syscallRead, fd, buffer, text.length, 0) == text.length);
+		Lib.assertTrue(process.handleSyscall(syscallClose, fd, 0, 0, 0) == 0);
+		Lib.assertTrue(process.readVirtualMemory(buffer, check) == text.length);
+		text[0] = 'M';
+		Lib.assertTrue(Arrays.equals(text, check),
+			       "UserProcess test: munmap did not write the map back");
+
+		Lib.assertTrue(process.handleSyscall(syscallUnlink, base, 0, 0, 0) == 0);
+	}
+
 	/** The program being run by this process. */
 	protected Coff coff;
 
 	/** This process's page table. */
 	protected TranslationEntry[] pageTable;
-	/** The number of contiguous pages occupied by the program. */
+	/**
+	 * The number of contiguous pages occupied by the program. Pages past the
+	 * program, if any, belong to files mapped by mmap().
+	 */
 	protected int numPages;
+	/** The files mapped into this process's address space. */
+	protected LinkedList<MemoryMap> memoryMaps;
+	/**
+	 * For each virtual page, whether it is read-only only because it is
+	 * shared copy-on-write with a process created by <tt>fork()</tt>.
+	 */
+	protected boolean[] copyOnWrite;
+	/**
+	 * Identifies the executable, so that processes running the same one can
+	 * share its text pages.
+	 */
+	protected String coffIdentity;
+
+	/**
+	 * The physical memory extents found by the last call to
+	 * <tt>translateExtents()</tt>, as pairs of an address and a length.
+	 */
+	protected int[] extents = new int[2*maxExtents];
+	/** The most pages <tt>translateExtents()</tt> translates at once. */
+	protected static final int maxExtents = 16;
 
 	/** The number of pages in the program's stack. */
 	protected final int stackPages = 8;
+	/** The most buffers readv() and writev() accept. */
+	private static final int maxIovecs = 16;
+	/** Maps must end below this virtual page, bounding the page table's size. */
+	private static final int maxMapPages = 0x10000;
 
 	private int initialPC, initialSP;
 	private int argc, argv;
+	/** The registers a forked process starts with, or null. */
+	private int[] forkRegisters;
 
 	private static final int pageSize = Processor.pageSize;
 	private static final char dbgProcess = 'a';
 
 	// new variables for project 2
-	private OpenFile[] fileDescriptorTable;
+	private FileDescriptorTable fileDescriptorTable;
 	private LinkedList<UserProcess> childProcesses;
 	private UserProcess parentProcess;
 	private static int processIdCounter = 0;
+	/** The first process to run a program, which alone may halt Nachos. */
+	private static UserProcess rootProcess = null;
 	private int processID;
 	private UThread thread;
 	//key = processID, value = status or -9999 if unhandled exception occured
@@ -0,0 +1,149 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+
+/**
+ * The adaptive replacement cache (ARC) policy. Resident frames are split
+ * between <i>T1</i>, pages that have been referenced once since they were
+ * faulted in, and <i>T2</i>, pages that have been referenced again.
+ * <i>B1</i> and <i>B2</i> remember the identities of pages recently evicted
+ * from each list. A fault on a page in <i>B1</i> means <i>T1</i> was too
+ * small, and grows the target size <i>p</i> of <i>T1</i>; a fault on a page
+ * in <i>B2</i> shrinks it.
+ *
+ * <p>
+ * The hardware does not report individual references, so hits are detected
+ * the way the clock policy detects them: when a frame reaches the head of
+ * its list with its <tt>used</tt> bit set, it is promoted to the tail of
+ * <i>T2</i> instead of being evicted (this variant is also known as CAR).
+ * The kernel sets the bit for the reference that faulted a page in, so a
+ * page new to <i>T1</i> has the bit cleared and goes back to the tail of
+ * <i>T1</i> the first time it reaches the head; only a later reference
+ * promotes it.
+ */
+public class ARCPolicy extends ReplacementPolicy {
+    /**
+     * Allocate a new ARC replacement policy.
+     */
+    public ARCPolicy() {
+    }
+
+    public void initialize(FrameTable frames) {
+	super.initialize(frames);
+
+	fresh = new boolean[numFrames];
+    }
+
+    public void frameLoaded(int ppn) {
+	Long key = frames.getKey(ppn);
+
+	if (b1.remove(key)) {
+	    target = Math.min(numFrames,
+			      target + Math.max(1, b2.size()/(b1.size()+1)));
+	    t2.add(ppn);
+	}
+	else if (b2.remove(key)) {
+	    target = Math.max(0,
+			      target - Math.max(1, b1.size()/(b2.size()+1)));
+	    t2.add(ppn);
+	}
+	else {
+	    t1.add(ppn);
+	    fresh[ppn] = true;
+	}
+
+	// the history never remembers more than one memory's worth per list
+	trim(b1, numFrames - t1.size());
+	trim(b2, 2*numFrames - t1.size() - t2.size() - b1.size());
+    }
+
+    public void frameFreed(int ppn) {
+	Integer frame = ppn;
+
+	if (!t1.remove(frame))
+	    t2.remove(frame);
+    }
+
+    public int findVictim() {
+	int limit = 2*(t1.size()+t2.size()) + 1;
+	// unevictable frames rotated to the tail of each list
+	int skipped1 = 0, skipped2 = 0;
+
+	for (int i=0; i<limit; i++) {
+	    boolean usable1 = t1.size() > skipped1, usable2 = t2.size() > skipped2;
+	    if (!usable1 && !usable2)
+		break;
+
+	    boolean fromT1 = usable1 &&
+		(t1.size() >= Math.max(1, target) || !usable2);
+	    LinkedList<Integer> list = fromT1 ? t1 : t2;
+
+	    int ppn = list.removeFirst();
+	    TranslationEntry entry = frames.getEntry(ppn);
+
+	    if (!frames.isEvictable(ppn)) {
+		list.add(ppn);
+		if (fromT1)
+		    skipped1++;
+		else
+		    skipped2++;
+	    }
+	    else if (entry.used) {
+		entry.used = false;
+		if (fromT1 && fresh[ppn])
+		    t1.add(ppn);
+		else
+		    t2.add(ppn);
+		fresh[ppn] = false;
+	    }
+	    else {
+		(fromT1 ? b1 : b2).add(frames.getKey(ppn));
+		return ppn;
+	    }
+	}
+
+	Lib.assertNotReached("no evictable frames");
+	return -1;
+    }
+
+    /**
+     * Return the target size of <i>T1</i>, which ghost hits adjust.
+     *
+     * @return	the number of frames <i>T1</i> is allowed to hold.
+     */
+    int getTarget() {
+	return target;
+    }
+
+    /**
+     * Discard the oldest entries of a history list until it holds at most
+     * <i>size</i> entries.
+     */
+    private void trim(LinkedHashSet<Long> history, int size) {
+	Iterator<Long> i = history.iterator();
+	while (history.size() > Math.max(0, size)) {
+	    i.next();
+	    i.remove();
+	}
+    }
+
+    private LinkedList<Integer> t1 = new LinkedList<Integer>();
+    private LinkedList<Integer> t2 = new LinkedList<Integer>();
+    private LinkedHashSet<Long> b1 = new LinkedHashSet<Long>();
+    private LinkedHashSet<Long> b2 = new LinkedHashSet<Long>();
+
+    /**
+     * For each frame in <i>T1</i>, whether its <tt>used</tt> bit may still
+     * be from the reference that faulted it in.
+     */
+    private boolean[] fresh;
+    /** The target size of <i>T1</i>. */
+    private int target = 0;
+}
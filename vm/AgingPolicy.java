@@ -0,0 +1,67 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * An LRU approximation using aging counters. Every frame has an 8-bit
+ * counter. Each time a victim is needed, every counter is shifted right one
+ * bit and the frame's <tt>used</tt> bit is shifted in at the top, and then
+ * the <tt>used</tt> bit is cleared. The frame with the smallest counter has
+ * gone the longest without being referenced, and is evicted.
+ */
+public class AgingPolicy extends ReplacementPolicy {
+    /**
+     * Allocate a new aging replacement policy.
+     */
+    public AgingPolicy() {
+    }
+
+    public void initialize(FrameTable frames) {
+	super.initialize(frames);
+
+	counters = new int[numFrames];
+    }
+
+    public void frameLoaded(int ppn) {
+	// a page that was just faulted in is about to be used
+	counters[ppn] = topBit;
+    }
+
+    public int findVictim() {
+	for (int ppn=0; ppn<numFrames; ppn++) {
+	    TranslationEntry entry = frames.getEntry(ppn);
+	    if (entry == null)
+		continue;
+
+	    counters[ppn] >>>= 1;
+	    if (entry.used) {
+		counters[ppn] |= topBit;
+		entry.used = false;
+	    }
+	}
+
+	// start the search after the last victim so ties are broken fairly
+	int victim = -1;
+	for (int i=0; i<numFrames; i++) {
+	    int ppn = (start+i) % numFrames;
+
+	    if (frames.getEntry(ppn) == null || !frames.isEvictable(ppn))
+		continue;
+
+	    if (victim == -1 || counters[ppn] < counters[victim])
+		victim = ppn;
+	}
+
+	Lib.assertTrue(victim != -1, "no evictable frames");
+	start = (victim+1) % numFrames;
+	return victim;
+    }
+
+    private int[] counters;
+    private int start = 0;
+
+    private static final int topBit = 0x80;
+}
@@ -0,0 +1,42 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * The clock (second-chance) replacement policy. A hand sweeps physical
+ * memory in order; a frame whose <tt>used</tt> bit is set has the bit
+ * cleared and is passed over, and the first frame found with a clear
+ * <tt>used</tt> bit is evicted.
+ */
+public class ClockPolicy extends ReplacementPolicy {
+    /**
+     * Allocate a new clock replacement policy.
+     */
+    public ClockPolicy() {
+    }
+
+    public int findVictim() {
+	// two full sweeps are always enough: the first clears every used bit
+	for (int i=0; i<2*numFrames+1; i++) {
+	    int ppn = hand;
+	    hand = (hand+1) % numFrames;
+
+	    TranslationEntry entry = frames.getEntry(ppn);
+	    if (entry == null || !frames.isEvictable(ppn))
+		continue;
+
+	    if (entry.used)
+		entry.used = false;
+	    else
+		return ppn;
+	}
+
+	Lib.assertNotReached("no evictable frames");
+	return -1;
+    }
+
+    private int hand = 0;
+}
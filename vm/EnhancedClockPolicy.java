@@ -0,0 +1,73 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * The enhanced second-chance policy. Frames are ranked by their
+ * (<tt>used</tt>, <tt>dirty</tt>) bits, and the hand looks for the lowest
+ * class present, so that clean pages are preferred over pages that would
+ * have to be written back to swap:
+ *
+ * <ol>
+ * <li>The first sweep looks for an unused, clean frame without changing
+ * anything.
+ * <li>The second sweep looks for an unused, dirty frame, clearing the
+ * <tt>used</tt> bit of every frame it passes over.
+ * <li>If both sweeps fail, every <tt>used</tt> bit is now clear and the two
+ * sweeps are repeated.
+ * </ol>
+ */
+public class EnhancedClockPolicy extends ReplacementPolicy {
+    /**
+     * Allocate a new enhanced clock replacement policy.
+     */
+    public EnhancedClockPolicy() {
+    }
+
+    public int findVictim() {
+	for (int round=0; round<2; round++) {
+	    int ppn = sweep(false);
+	    if (ppn != -1)
+		return ppn;
+
+	    ppn = sweep(true);
+	    if (ppn != -1)
+		return ppn;
+	}
+
+	Lib.assertNotReached("no evictable frames");
+	return -1;
+    }
+
+    /**
+     * Sweep the hand around physical memory once, looking for an unused frame
+     * with the specified dirty bit.
+     *
+     * @param	dirty	the value of the dirty bit to look for.
+     * @return	the victim, or -1 if none was found in this sweep.
+     */
+    private int sweep(boolean dirty) {
+	for (int i=0; i<numFrames; i++) {
+	    int ppn = hand;
+	    hand = (hand+1) % numFrames;
+
+	    TranslationEntry entry = frames.getEntry(ppn);
+	    if (entry == null || !frames.isEvictable(ppn))
+		continue;
+
+	    if (!entry.used && entry.dirty == dirty)
+		return ppn;
+
+	    // only the second sweep gives pages their second chance
+	    if (dirty)
+		entry.used = false;
+	}
+
+	return -1;
+    }
+
+    private int hand = 0;
+}
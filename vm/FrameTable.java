@@ -0,0 +1,60 @@
+package nachos.vm;
+
+import nachos.machine.*;
+
+/**
+ * The view of physical memory that a <tt>ReplacementPolicy</tt> works
+ * against. <tt>VMKernel</tt> provides one backed by its inverted page table;
+ * <tt>TraceSimulator</tt> provides one backed by a replayed reference trace.
+ *
+ * @see	nachos.vm.ReplacementPolicy
+ */
+public interface FrameTable {
+    /**
+     * Return the number of physical pages.
+     *
+     * @return	the number of frames in this table.
+     */
+    public int getNumFrames();
+
+    /**
+     * Return the translation entry mapped to the specified frame. Its
+     * <tt>used</tt> and <tt>dirty</tt> bits reflect every reference made
+     * since they were last cleared.
+     *
+     * @param	ppn	the physical page number.
+     * @return	the entry, or <tt>null</tt> if the frame is free.
+     */
+    public TranslationEntry getEntry(int ppn);
+
+    /**
+     * Test whether the specified frame may be chosen as a victim.
+     *
+     * @param	ppn	the physical page number.
+     * @return	<tt>true</tt> if the frame holds a page that may be evicted.
+     */
+    public boolean isEvictable(int ppn);
+
+    /**
+     * Return a key identifying the virtual page held by the specified frame,
+     * which remains meaningful after the page has been evicted.
+     *
+     * @param	ppn	the physical page number.
+     * @return	a key unique to the page's address space and virtual page.
+     */
+    public long getKey(int ppn);
+
+    /**
+     * Write the specified frame back if it is dirty, leaving it resident.
+     *
+     * @param	ppn	the physical page number.
+     */
+    public void cleanFrame(int ppn);
+
+    /**
+     * Return the current time, as used to measure the age of a reference.
+     *
+     * @return	the current time.
+     */
+    public long getTime();
+}
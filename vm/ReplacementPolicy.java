@@ -0,0 +1,77 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * Chooses which resident page to evict when <tt>VMKernel</tt> runs out of
+ * free physical pages. The policy used by the kernel is specified by the
+ * <tt>nachos.conf</tt> key <tt>VMKernel.replacementPolicy</tt>.
+ *
+ * <p>
+ * Policies observe the state of physical memory through a
+ * <tt>FrameTable</tt>: <tt>getEntry()</tt> returns the translation entry
+ * currently mapped to a frame, whose <tt>used</tt> and <tt>dirty</tt> bits
+ * are up to date whenever <tt>findVictim()</tt> is called. A policy may
+ * clear <tt>used</tt> bits, but must never modify any other field.
+ *
+ * <p>
+ * Inside the kernel, all methods are called with <tt>VMKernel.vmLock</tt>
+ * held. The same policies are replayed offline by <tt>TraceSimulator</tt>.
+ *
+ * @see	nachos.vm.VMKernel
+ * @see	nachos.vm.TraceSimulator
+ */
+public abstract class ReplacementPolicy {
+    /**
+     * Allocate a new replacement policy.
+     */
+    public ReplacementPolicy() {
+    }
+
+    /**
+     * Prepare this policy to manage the specified physical memory. Called
+     * once, before any other method.
+     *
+     * @param	frames	the frames this policy chooses victims from.
+     */
+    public void initialize(FrameTable frames) {
+	this.frames = frames;
+	this.numFrames = frames.getNumFrames();
+    }
+
+    /**
+     * Called after a page has been loaded into the specified frame and
+     * mapped by its owning process.
+     *
+     * @param	ppn	the physical page that was filled.
+     */
+    public void frameLoaded(int ppn) {
+    }
+
+    /**
+     * Called when the owner of the specified frame releases it without the
+     * frame having been chosen as a victim (for example, when a process
+     * exits).
+     *
+     * @param	ppn	the physical page that was released.
+     */
+    public void frameFreed(int ppn) {
+    }
+
+    /**
+     * Choose a resident, evictable frame to replace. The returned frame is no
+     * longer tracked by this policy; <tt>frameLoaded()</tt> will be called
+     * again once it has been refilled.
+     *
+     * @return	the physical page number of the victim.
+     */
+    public abstract int findVictim();
+
+    /** The physical memory managed by this policy. */
+    protected FrameTable frames;
+    /** The number of physical pages managed by this policy. */
+    protected int numFrames;
+}
@@ -0,0 +1,127 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+import java.util.Arrays;
+import java.util.LinkedList;
+
+/**
+ * A file, on the kernel's file system, that holds pages evicted from
+ * physical memory. The file is divided into page-sized slots, which are
+ * handed out on demand and recycled once the page stored in them is no
+ * longer needed. A slot can be shared by several copy-on-write pages, and is
+ * only recycled when the last of them releases it.
+ */
+public class SwapFile {
+    /**
+     * Create a new, empty swap file.
+     *
+     * @param	name	the name of the file to store pages in.
+     */
+    public SwapFile(String name) {
+	this.name = name;
+
+	file = ThreadedKernel.fileSystem.open(name, true);
+	Lib.assertTrue(file != null, "unable to create swap file " + name);
+    }
+
+    /**
+     * Reserve a slot in this swap file.
+     *
+     * @return	the slot number.
+     */
+    public int allocateSlot() {
+	int slot;
+	if (!freeSlots.isEmpty()) {
+	    slot = freeSlots.removeFirst();
+	}
+	else {
+	    slot = numSlots++;
+	    if (slot == references.length)
+		references = Arrays.copyOf(references, 2*references.length);
+	}
+
+	references[slot] = 1;
+	return slot;
+    }
+
+    /**
+     * Add a reference to a slot, so that it is not recycled until an
+     * additional call to <tt>freeSlot()</tt>.
+     *
+     * @param	slot	the slot to share.
+     */
+    public void shareSlot(int slot) {
+	Lib.assertTrue(slot >= 0 && slot < numSlots && references[slot] > 0);
+
+	references[slot]++;
+    }
+
+    /**
+     * Test whether a slot is referenced more than once, in which case it must
+     * not be overwritten.
+     *
+     * @param	slot	the slot to test.
+     * @return	<tt>true</tt> if the slot is shared.
+     */
+    public boolean isShared(int slot) {
+	return references[slot] > 1;
+    }
+
+    /**
+     * Release a reference to a slot obtained from <tt>allocateSlot()</tt> or
+     * <tt>shareSlot()</tt>.
+     *
+     * @param	slot	the slot to release.
+     */
+    public void freeSlot(int slot) {
+	Lib.assertTrue(slot >= 0 && slot < numSlots && references[slot] > 0);
+
+	if (--references[slot] == 0)
+	    freeSlots.add(slot);
+    }
+
+    /**
+     * Copy a slot into a physical page.
+     *
+     * @param	slot	the slot to read.
+     * @param	ppn	the physical page to fill.
+     */
+    public void readPage(int slot, int ppn) {
+	int amount = file.read(slot*pageSize, Machine.processor().getMemory(),
+			       ppn*pageSize, pageSize);
+	Lib.assertTrue(amount == pageSize, "swap read failed");
+    }
+
+    /**
+     * Copy a physical page into a slot.
+     *
+     * @param	slot	the slot to write.
+     * @param	ppn	the physical page to save.
+     */
+    public void writePage(int slot, int ppn) {
+	int amount = file.write(slot*pageSize, Machine.processor().getMemory(),
+				ppn*pageSize, pageSize);
+	Lib.assertTrue(amount == pageSize, "swap write failed");
+    }
+
+    /**
+     * Close and delete this swap file.
+     */
+    public void close() {
+	file.close();
+	ThreadedKernel.fileSystem.remove(name);
+    }
+
+    private String name;
+    private OpenFile file;
+    private int numSlots = 0;
+    private LinkedList<Integer> freeSlots = new LinkedList<Integer>();
+    /** The number of pages referring to each slot. */
+    private int[] references = new int[64];
+
+    private static final int pageSize = Processor.pageSize;
+}
@@ -0,0 +1,574 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.vm.*;
+
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.TreeMap;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
+/**
+ * Replays a page reference trace, recorded by the processor when the
+ * <tt>nachos.conf</tt> key <tt>Processor.traceFile</tt> is set, against a
+ * set of replacement policies and physical memory sizes, and prints the
+ * resulting miss-ratio curves. This runs outside of Nachos:
+ *
+ * <pre>
+ * java nachos.vm.TraceSimulator [-c &lt;config&gt;] [-p] [-f &lt;frames&gt;]
+ *	[-r &lt;policies&gt;] &lt;trace&gt;
+ * </pre>
+ *
+ * <p>
+ * <tt>-f</tt> takes a comma-separated list of memory sizes in pages, each
+ * either a number or a range <tt>first-last</tt>; by default, up to 32 sizes
+ * between 1 page and the trace's footprint are simulated. <tt>-r</tt> takes a
+ * comma-separated list of <tt>ReplacementPolicy</tt> classes (the
+ * <tt>nachos.vm</tt> prefix may be omitted); by default, every policy
+ * shipped with Nachos is simulated. <tt>-p</tt> also simulates every address
+ * space on its own. <tt>-c</tt> loads a configuration file, for keys such as
+ * <tt>WSClockPolicy.window</tt>.
+ *
+ * <p>
+ * Every (policy, memory size) pair is an independent simulation, and they are
+ * run in parallel. Time, as seen by the policies, advances by one for every
+ * memory reference.
+ */
+public class TraceSimulator {
+    /**
+     * Allocate a simulator for the specified trace.
+     *
+     * @param	in	the stream to read the trace from.
+     * @exception	IOException	if the trace could not be read.
+     */
+    public TraceSimulator(InputStream in) throws IOException {
+	PageTrace.replay(in, new PageTrace.Visitor() {
+		public void run(int asid, int vpn, boolean write, int length) {
+		    addRun(asid, vpn, write, length);
+		}
+	    });
+    }
+
+    /**
+     * Allocate a simulator for a trace built with <tt>addRun()</tt>.
+     */
+    private TraceSimulator() {
+    }
+
+    private void addRun(int asid, int vpn, boolean write, int length) {
+	if (numRuns == keys.length) {
+	    long[] newKeys = new long[2*numRuns];
+	    int[] newLengths = new int[2*numRuns];
+	    System.arraycopy(keys, 0, newKeys, 0, numRuns);
+	    System.arraycopy(lengths, 0, newLengths, 0, numRuns);
+	    keys = newKeys;
+	    lengths = newLengths;
+	}
+
+	keys[numRuns] = ((long) asid << 32) | (vpn & 0xFFFFFFFFL);
+	// the sign bit of the length marks a run of writes
+	lengths[numRuns] = write ? ~length : length;
+	numRuns++;
+    }
+
+    /**
+     * Return the address spaces that appear in the trace.
+     *
+     * @return	the address space identifiers, in increasing order.
+     */
+    public int[] getAddressSpaces() {
+	TreeMap<Integer, Integer> spaces = new TreeMap<Integer, Integer>();
+	for (int i=0; i<numRuns; i++)
+	    spaces.put((int) (keys[i] >> 32), i);
+
+	int[] result = new int[spaces.size()];
+	int i = 0;
+	for (Iterator<Integer> it=spaces.keySet().iterator(); it.hasNext(); )
+	    result[i++] = it.next();
+
+	return result;
+    }
+
+    /**
+     * Return the number of distinct pages referenced.
+     *
+     * @param	asid	the address space to count, or -1 for all of them.
+     * @return	the number of distinct pages.
+     */
+    public int getFootprint(int asid) {
+	HashSet<Long> pages = new HashSet<Long>();
+	for (int i=0; i<numRuns; i++) {
+	    if (asid == -1 || (int) (keys[i] >> 32) == asid)
+		pages.add(keys[i]);
+	}
+
+	return pages.size();
+    }
+
+    /**
+     * Replay the trace against a single policy and memory size.
+     *
+     * @param	policyClass	the replacement policy to use.
+     * @param	numFrames	the number of physical pages.
+     * @param	asid		the address space to replay, or -1 to replay
+     *				every address space sharing memory.
+     * @return	the outcome of the simulation.
+     */
+    public Result simulate(Class<?> policyClass, int numFrames, int asid) {
+	ReplacementPolicy policy;
+	try {
+	    policy = (ReplacementPolicy) policyClass.getConstructor().newInstance();
+	}
+	catch (Exception e) {
+	    throw new IllegalArgumentException(policyClass.getName());
+	}
+
+	return simulate(policy, numFrames, asid);
+    }
+
+    private Result simulate(ReplacementPolicy policy, int numFrames,
+			    int asid) {
+	SimulatedMemory memory = new SimulatedMemory(numFrames);
+	policy.initialize(memory);
+
+	Result result = new Result();
+
+	for (int i=0; i<numRuns; i++) {
+	    long key = keys[i];
+	    if (asid != -1 && (int) (key >> 32) != asid)
+		continue;
+
+	    Integer resident = memory.resident.get(key);
+	    int ppn;
+
+	    if (resident != null) {
+		ppn = resident;
+	    }
+	    else {
+		result.faults++;
+
+		if (memory.numUsed < numFrames) {
+		    ppn = memory.numUsed++;
+		}
+		else {
+		    ppn = policy.findVictim();
+		    Lib.assertTrue(memory.entries[ppn] != null);
+
+		    memory.cleanFrame(ppn);
+		    memory.resident.remove(memory.keys[ppn]);
+		    result.evictions++;
+		}
+
+		memory.entries[ppn] =
+		    new TranslationEntry((int) key, ppn, true, false, false,
+					 false);
+		memory.keys[ppn] = key;
+		memory.resident.put(key, ppn);
+
+		policy.frameLoaded(ppn);
+	    }
+
+	    int length = lengths[i];
+	    TranslationEntry entry = memory.entries[ppn];
+	    entry.used = true;
+	    if (length < 0) {
+		entry.dirty = true;
+		length = ~length;
+	    }
+
+	    memory.time += length;
+	    result.references += length;
+	}
+
+	result.writeBacks = memory.writeBacks;
+	return result;
+    }
+
+    /**
+     * The outcome of replaying a trace.
+     */
+    public static class Result {
+	/** The number of references replayed. */
+	public long references = 0;
+	/** The number of references that found their page not resident. */
+	public long faults = 0;
+	/** The number of resident pages that were replaced. */
+	public long evictions = 0;
+	/** The number of dirty pages written back. */
+	public long writeBacks = 0;
+
+	/**
+	 * Return the fraction of references that faulted.
+	 *
+	 * @return	the miss ratio.
+	 */
+	public double missRatio() {
+	    return references == 0 ? 0 : (double) faults / references;
+	}
+    }
+
+    /**
+     * Physical memory as seen by a policy during a replay.
+     */
+    private static class SimulatedMemory implements FrameTable {
+	SimulatedMemory(int numFrames) {
+	    entries = new TranslationEntry[numFrames];
+	    keys = new long[numFrames];
+	}
+
+	public int getNumFrames() {
+	    return entries.length;
+	}
+
+	public TranslationEntry getEntry(int ppn) {
+	    return entries[ppn];
+	}
+
+	public boolean isEvictable(int ppn) {
+	    return entries[ppn] != null;
+	}
+
+	public long getKey(int ppn) {
+	    return keys[ppn];
+	}
+
+	public void cleanFrame(int ppn) {
+	    if (entries[ppn].dirty) {
+		entries[ppn].dirty = false;
+		writeBacks++;
+	    }
+	}
+
+	public long getTime() {
+	    return time;
+	}
+
+	TranslationEntry[] entries;
+	long[] keys;
+	HashMap<Long, Integer> resident = new HashMap<Long, Integer>();
+	int numUsed = 0;
+	long time = 0;
+	long writeBacks = 0;
+    }
+
+    /**
+     * A single point on a miss-ratio curve.
+     */
+    private class Cell {
+	Cell(Class<?> policyClass, int numFrames, int asid) {
+	    this.policyClass = policyClass;
+	    this.numFrames = numFrames;
+	    this.asid = asid;
+	}
+
+	Class<?> policyClass;
+	int numFrames, asid;
+	Result result;
+    }
+
+    /**
+     * Runs a range of cells, splitting it in half until each task simulates a
+     * single cell.
+     */
+    private class SimulateTask extends RecursiveAction {
+	SimulateTask(Cell[] cells, int first, int last) {
+	    this.cells = cells;
+	    this.first = first;
+	    this.last = last;
+	}
+
+	protected void compute() {
+	    if (last - first == 1) {
+		Cell cell = cells[first];
+		cell.result = simulate(cell.policyClass, cell.numFrames,
+				       cell.asid);
+	    }
+	    else {
+		int middle = (first + last) / 2;
+		invokeAll(new SimulateTask(cells, first, middle),
+			  new SimulateTask(cells, middle, last));
+	    }
+	}
+
+	private Cell[] cells;
+	private int first, last;
+
+	private static final long serialVersionUID = 1L;
+    }
+
+    /**
+     * Simulate every combination of the specified policies and memory sizes,
+     * in parallel, and print a miss-ratio curve for each policy.
+     *
+     * @param	policies	the replacement policies to compare.
+     * @param	frameCounts	the memory sizes to simulate, or <tt>null</tt>
+     *				to pick sizes up to the trace's footprint.
+     * @param	asid		the address space to simulate, or -1 for all of
+     *				them sharing memory.
+     */
+    public void printCurves(Class<?>[] policies, int[] frameCounts, int asid) {
+	int footprint = getFootprint(asid);
+	if (frameCounts == null)
+	    frameCounts = defaultFrameCounts(footprint);
+
+	Cell[] cells = new Cell[policies.length * frameCounts.length];
+	for (int f=0; f<frameCounts.length; f++) {
+	    for (int p=0; p<policies.length; p++)
+		cells[f*policies.length + p] =
+		    new Cell(policies[p], frameCounts[f], asid);
+	}
+
+	// the pool is made only here, since the security manager forbids it
+	// inside Nachos, where the policies are tested without it
+	if (cells.length > 0)
+	    new ForkJoinPool().invoke(new SimulateTask(cells, 0, cells.length));
+
+	System.out.println("# miss-ratio curve for "
+			   + (asid == -1 ? "all address spaces"
+			      : "address space " + asid)
+			   + ", footprint " + footprint + " pages");
+
+	StringBuffer header = new StringBuffer("# frames");
+	for (int p=0; p<policies.length; p++)
+	    header.append(" " + pad(shortName(policies[p]), columnWidth));
+	System.out.println(header);
+
+	for (int f=0; f<frameCounts.length; f++) {
+	    StringBuffer line = new StringBuffer(pad("" + frameCounts[f], 8));
+	    for (int p=0; p<policies.length; p++) {
+		Result result = cells[f*policies.length + p].result;
+		line.append(" " + pad(String.format("%.6f", result.missRatio()),
+				      columnWidth));
+	    }
+	    System.out.println(line);
+	}
+
+	System.out.println();
+    }
+
+    private static int[] defaultFrameCounts(int footprint) {
+	int step = Math.max(1, footprint/32);
+
+	ArrayList<Integer> counts = new ArrayList<Integer>();
+	for (int frames=1; frames<footprint; frames+=step)
+	    counts.add(frames);
+	counts.add(Math.max(1, footprint));
+
+	return toArray(counts);
+    }
+
+    private static String shortName(Class<?> cls) {
+	String name = cls.getName();
+	return name.substring(name.lastIndexOf('.') + 1);
+    }
+
+    private static String pad(String s, int width) {
+	StringBuffer result = new StringBuffer();
+	for (int i=s.length(); i<width; i++)
+	    result.append(' ');
+
+	return result.append(s).toString();
+    }
+
+    private static int[] toArray(ArrayList<Integer> list) {
+	int[] result = new int[list.size()];
+	for (int i=0; i<result.length; i++)
+	    result[i] = list.get(i);
+
+	return result;
+    }
+
+    private static int[] parseFrameCounts(String spec) {
+	ArrayList<Integer> counts = new ArrayList<Integer>();
+
+	String[] items = spec.split(",");
+	for (int i=0; i<items.length; i++) {
+	    int dash = items[i].indexOf('-');
+	    if (dash == -1) {
+		counts.add(Integer.parseInt(items[i].trim()));
+	    }
+	    else {
+		int first = Integer.parseInt(items[i].substring(0, dash).trim());
+		int last = Integer.parseInt(items[i].substring(dash+1).trim());
+		for (int frames=first; frames<=last; frames++)
+		    counts.add(frames);
+	    }
+	}
+
+	for (int i=0; i<counts.size(); i++) {
+	    if (counts.get(i) < 1)
+		throw new NumberFormatException("memory size must be positive");
+	}
+
+	return toArray(counts);
+    }
+
+    private static Class<?>[] parsePolicies(String spec) {
+	String[] names = spec.split(",");
+	Class<?>[] policies = new Class<?>[names.length];
+
+	for (int i=0; i<names.length; i++) {
+	    String name = names[i].trim();
+	    if (name.indexOf('.') == -1)
+		name = "nachos.vm." + name;
+
+	    policies[i] = Lib.tryLoadClass(name);
+	    if (policies[i] == null ||
+		!ReplacementPolicy.class.isAssignableFrom(policies[i])) {
+		System.err.println("not a replacement policy: " + name);
+		System.exit(1);
+	    }
+	}
+
+	return policies;
+    }
+
+    /**
+     * Test the replacement policies against short reference strings with
+     * known outcomes. A loop that fits in memory must fault only on its
+     * first pass, under every policy, and a loop one page too large must
+     * fault on every reference under the clock policy. The enhanced clock
+     * policy must evict a clean page before dirty ones, and ARC must grow
+     * its target for <i>T1</i> on a hit in <i>B1</i>, and shrink it on a hit
+     * in <i>B2</i>.
+     */
+    public static void selfTest() {
+	String[] names = defaultPolicies.split(",");
+	for (int i=0; i<names.length; i++) {
+	    Result result = trace("0 1 2 3 0 1 2 3 0 1 2 3")
+		.simulate(Lib.loadClass("nachos.vm." + names[i]), 4, -1);
+	    Lib.assertTrue(result.faults == 4,
+			   names[i] + " faulted on resident pages");
+	}
+
+	Result result = trace("0 1 2 3 4 0 1 2 3 4 0 1 2 3 4")
+	    .simulate(ClockPolicy.class, 4, -1);
+	Lib.assertTrue(result.faults == 15,
+		       "ClockPolicy test: loop did not fault throughout");
+
+	TraceSimulator dirty = trace("0w 1w 2w 3 4 0w 1w 2w");
+	result = dirty.simulate(EnhancedClockPolicy.class, 4, -1);
+	Lib.assertTrue(result.faults == 5 && result.writeBacks == 0,
+		       "EnhancedClockPolicy test: dirty page evicted");
+	// the clock policy evicts page 0, and each rewrite evicts the next
+	result = dirty.simulate(ClockPolicy.class, 4, -1);
+	Lib.assertTrue(result.faults == 8 && result.writeBacks == 3,
+		       "ClockPolicy test: wrong pages evicted");
+
+	// 3 is evicted from T1 without a second reference, and comes back
+	Lib.assertTrue(arcTarget("0 1 2 3 4 1 2 5 3") == 1,
+		       "ARCPolicy test: B1 hit did not grow target");
+	// so does 4; then 1 and 2 are evicted from T2, and 1 comes back
+	Lib.assertTrue(arcTarget("0 1 2 3 4 1 2 5 3 6 4") == 2,
+		       "ARCPolicy test: B1 hit did not grow target");
+	Lib.assertTrue(arcTarget("0 1 2 3 4 1 2 5 3 6 4 7 1") == 1,
+		       "ARCPolicy test: B2 hit did not shrink target");
+    }
+
+    /**
+     * Replay a reference string against ARC in four frames.
+     *
+     * @return	ARC's target size for <i>T1</i> at the end.
+     */
+    private static int arcTarget(String references) {
+	ARCPolicy arc = new ARCPolicy();
+	trace(references).simulate(arc, 4, -1);
+	return arc.getTarget();
+    }
+
+    /**
+     * Build a trace from a reference string of page numbers, each followed
+     * by <tt>w</tt> if it is a write, in one address space.
+     */
+    private static TraceSimulator trace(String references) {
+	TraceSimulator simulator = new TraceSimulator();
+
+	String[] pages = references.split(" ");
+	for (int i=0; i<pages.length; i++) {
+	    boolean write = pages[i].endsWith("w");
+	    String page = write ? pages[i].substring(0, pages[i].length()-1)
+		: pages[i];
+	    simulator.addRun(0, Integer.parseInt(page), write, 1);
+	}
+
+	return simulator;
+    }
+
+    /**
+     * Replay a trace file and print its miss-ratio curves.
+     *
+     * @param	args	the command line arguments.
+     */
+    public static void main(String[] args) {
+	String policies = defaultPolicies;
+	int[] frameCounts = null;
+	boolean perProcess = false;
+	String traceName = null;
+
+	try {
+	    for (int i=0; i<args.length; i++) {
+		if (args[i].equals("-c") && i+1 < args.length)
+		    Config.load(args[++i]);
+		else if (args[i].equals("-f") && i+1 < args.length)
+		    frameCounts = parseFrameCounts(args[++i]);
+		else if (args[i].equals("-r") && i+1 < args.length)
+		    policies = args[++i];
+		else if (args[i].equals("-p"))
+		    perProcess = true;
+		else if (traceName == null && !args[i].startsWith("-"))
+		    traceName = args[i];
+		else
+		    traceName = null;
+	    }
+	}
+	catch (NumberFormatException e) {
+	    traceName = null;
+	}
+
+	if (traceName == null) {
+	    System.err.println(usage);
+	    System.exit(1);
+	}
+
+	TraceSimulator simulator;
+	try {
+	    FileInputStream in = new FileInputStream(traceName);
+	    simulator = new TraceSimulator(in);
+	    in.close();
+	}
+	catch (IOException e) {
+	    System.err.println(traceName + ": " + e.getMessage());
+	    System.exit(1);
+	    return;
+	}
+
+	Class<?>[] policyClasses = parsePolicies(policies);
+
+	simulator.printCurves(policyClasses, frameCounts, -1);
+
+	if (perProcess) {
+	    int[] spaces = simulator.getAddressSpaces();
+	    for (int i=0; i<spaces.length; i++)
+		simulator.printCurves(policyClasses, frameCounts, spaces[i]);
+	}
+    }
+
+    private int numRuns = 0;
+    private long[] keys = new long[1024];
+    private int[] lengths = new int[1024];
+
+    private static final int columnWidth = 20;
+
+    private static final String defaultPolicies =
+	"ClockPolicy,EnhancedClockPolicy,WSClockPolicy,AgingPolicy,ARCPolicy";
+
+    private static final String usage =
+	"usage: java nachos.vm.TraceSimulator [-c <config>] [-p] "
+	+ "[-f <frames>] [-r <policies>] <trace>";
+}
@@ -5,8 +5,21 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Iterator;
+import java.util.LinkedList;
+
 /**
  * A kernel that can support multiple demand-paging user processes.
+ *
+ * <p>
+ * Physical memory is tracked by an inverted page table with one entry per
+ * frame, recording which processes and virtual pages currently map it; a
+ * frame is mapped by more than one page when processes created by
+ * <tt>fork()</tt> share it copy-on-write, or when processes share text pages
+ * or the pages of a mapped file. When no free frame is left, the
+ * <tt>ReplacementPolicy</tt> named by the <tt>nachos.conf</tt> key
+ * <tt>VMKernel.replacementPolicy</tt> chooses a victim, which is written to
+ * the swap file, or back to its mapped file, if it is dirty.
  */
 public class VMKernel extends UserKernel {
     /**
@@ -21,13 +34,31 @@ public class VMKernel extends UserKernel {
      */
     public void initialize(String[] args) {
 	super.initialize(args);
+
+	vmLock = new Lock();
+
+	int numPhysPages = Machine.processor().getNumPhysPages();
+	frames = new Frame[numPhysPages];
+	for (int i=0; i<numPhysPages; i++)
+	    frames[i] = new Frame();
+
+	swap = new SwapFile(Config.getString("VMKernel.swapFile", "swap"));
+
+	String policyName = Config.getString("VMKernel.replacementPolicy",
+					     "nachos.vm.ClockPolicy");
+	policy = (ReplacementPolicy) Lib.constructObject(policyName);
+	policy.initialize(new KernelFrameTable());
+
+	Lib.debug(dbgVM, "page replacement policy: " + policyName);
     }
 
     /**
-     * Test this kernel.
-     */	
+     * Test this kernel, and the page replacement policies.
+     */
     public void selfTest() {
 	super.selfTest();
+
+	TraceSimulator.selfTest();
     }
 
     /**
@@ -36,16 +67,413 @@ public class VMKernel extends UserKernel {
     public void run() {
 	super.run();
     }
-    
+
     /**
      * Terminate this kernel. Never returns.
      */
     public void terminate() {
+	swap.close();
+
+	printStats();
+
 	super.terminate();
     }
 
+    /**
+     * Print the page replacement statistics: the page faults, evictions, and
+     * dirty write-backs, and the fault rate per 1000 memory references.
+     */
+    private static void printStats() {
+	long references = Machine.processor().getNumMemoryReferences();
+	double faultRate = 0;
+	if (references > 0)
+	    faultRate = (numPageFaults * 1000.0) / references;
+
+	System.out.println("Page replacement: page faults " + numPageFaults
+			   + ", evictions " + numPageEvictions
+			   + ", dirty write-backs " + numDirtyWriteBacks
+			   + ", faults per 1000 references "
+			   + String.format("%.3f", faultRate));
+    }
+
+    /**
+     * Return a free physical page, evicting a resident page if necessary. The
+     * frame is not visible to the replacement policy until
+     * <tt>mapFrame()</tt> is called. Must be called with <tt>vmLock</tt>
+     * held.
+     *
+     * @return	the physical page number of the frame.
+     */
+    static int allocateFrame() {
+	Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+	UserKernel.lock.acquire();
+	Integer free = UserKernel.availablePages.poll();
+	UserKernel.lock.release();
+
+	if (free != null)
+	    return free;
+
+	syncCurrentTLB();
+
+	int ppn = policy.findVictim();
+	Frame frame = frames[ppn];
+	Lib.assertTrue(!frame.mappings.isEmpty());
+
+	Lib.debug(dbgVM, "evicting vpn " + frame.mappings.getFirst().vpn
+		  + " of process " + frame.mappings.getFirst().process.getProcessID()
+		  + " from ppn " + ppn + " (" + frame.mappings.size()
+		  + " mappings)");
+
+	invalidateTLB(ppn);
+	cleanFrame(ppn);
+	for (Mapping mapping : frame.mappings)
+	    mapping.process.getPageTableEntry(mapping.vpn).valid = false;
+	numPageEvictions++;
+
+	frame.mappings.clear();
+
+	UserKernel.lock.acquire();
+	UserKernel.textPages.remove(ppn);
+	UserKernel.filePages.remove(ppn);
+	UserKernel.lock.release();
+
+	return ppn;
+    }
+
+    /**
+     * Record that the specified frame now holds a page of a process, and hand
+     * it to the replacement policy. Must be called with <tt>vmLock</tt> held.
+     *
+     * @param	ppn	the frame that was filled.
+     * @param	process	the process that owns the page.
+     * @param	vpn	the virtual page number of the page.
+     */
+    static void mapFrame(int ppn, VMProcess process, int vpn) {
+	Lib.assertTrue(vmLock.isHeldByCurrentThread());
+	Lib.assertTrue(frames[ppn].mappings.isEmpty());
+
+	frames[ppn].mappings.add(new Mapping(process, vpn));
+
+	policy.frameLoaded(ppn);
+    }
+
+    /**
+     * Record that a page of another process now maps the specified resident
+     * frame as well. Must be called with <tt>vmLock</tt> held.
+     *
+     * @param	ppn	the frame to share.
+     * @param	process	the process that maps the frame.
+     * @param	vpn	the virtual page that maps the frame.
+     */
+    static void shareFrame(int ppn, VMProcess process, int vpn) {
+	Lib.assertTrue(vmLock.isHeldByCurrentThread());
+	Lib.assertTrue(!frames[ppn].mappings.isEmpty());
+
+	frames[ppn].mappings.add(new Mapping(process, vpn));
+    }
+
+    /**
+     * Give a page that shares a frame a private copy of it. If no other page
+     * maps the frame, the page keeps it. Must be called with <tt>vmLock</tt>
+     * held; any TLB entry for the page is invalidated.
+     *
+     * @param	ppn	the frame the page maps.
+     * @param	process	the process that owns the page.
+     * @param	vpn	the virtual page number of the page.
+     * @return	the frame now holding the page.
+     */
+    static int unshareFrame(int ppn, VMProcess process, int vpn) {
+	Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+	invalidateTLB(ppn);
+
+	Frame frame = frames[ppn];
+	if (frame.mappings.size() == 1)
+	    return ppn;
+
+	// the shared frame must survive until it has been copied
+	frame.pinCount++;
+	int copy = allocateFrame();
+	frame.pinCount--;
+
+	byte[] memory = Machine.processor().getMemory();
+	System.arraycopy(memory, ppn*pageSize, memory, copy*pageSize, pageSize);
+
+	frame.remove(process, vpn);
+	mapFrame(copy, process, vpn);
+
+	return copy;
+    }
+
+    /**
+     * Prevent the specified resident frame from being evicted, so that it can
+     * be accessed without holding <tt>vmLock</tt>. To leave room for page
+     * faults, no more than half of physical memory is pinned this way at
+     * once, unless <i>force</i> is set. Must be called with <tt>vmLock</tt>
+     * held.
+     *
+     * @param	ppn	the frame to pin.
+     * @param	force	<tt>true</tt> to pin the frame even if the limit has
+     *			been reached.
+     * @return	<tt>true</tt> if the frame was pinned.
+     */
+    static boolean pinFrame(int ppn, boolean force) {
+	Lib.assertTrue(vmLock.isHeldByCurrentThread());
+	Lib.assertTrue(!frames[ppn].mappings.isEmpty());
+
+	if (!force && numPinned >= frames.length/2)
+	    return false;
+
+	frames[ppn].pinCount++;
+	numPinned++;
+	return true;
+    }
+
+    /**
+     * Allow a frame pinned by <tt>pinFrame()</tt> to be evicted again. Must be
+     * called with <tt>vmLock</tt> held.
+     *
+     * @param	ppn	the frame to unpin.
+     */
+    static void unpinFrame(int ppn) {
+	Lib.assertTrue(vmLock.isHeldByCurrentThread());
+	Lib.assertTrue(frames[ppn].pinCount > 0);
+
+	frames[ppn].pinCount--;
+	numPinned--;
+    }
+
+    /**
+     * Release a page's mapping of a frame, returning the frame to the free
+     * list if no other page maps it. Must be called with <tt>vmLock</tt>
+     * held.
+     *
+     * @param	ppn	the frame to release.
+     * @param	process	the process that owns the page.
+     * @param	vpn	the virtual page number of the page.
+     */
+    static void freeFrame(int ppn, VMProcess process, int vpn) {
+	Lib.assertTrue(vmLock.isHeldByCurrentThread());
+
+	invalidateTLB(ppn);
+
+	Frame frame = frames[ppn];
+	frame.remove(process, vpn);
+	if (!frame.mappings.isEmpty())
+	    return;
+
+	policy.frameFreed(ppn);
+
+	UserKernel.lock.acquire();
+	UserKernel.textPages.remove(ppn);
+	UserKernel.filePages.remove(ppn);
+	UserKernel.availablePages.add(ppn);
+	UserKernel.lock.release();
+    }
+
+    /**
+     * Write the specified resident frame back if any page mapping it is
+     * dirty. Must be called with <tt>vmLock</tt> held.
+     *
+     * @param	ppn	the frame to write back.
+     */
+    static void writeBackFrame(int ppn) {
+	Lib.assertTrue(vmLock.isHeldByCurrentThread());
+	Lib.assertTrue(!frames[ppn].mappings.isEmpty());
+
+	// the TLB copy must not mark the page dirty again once it is clean
+	invalidateTLB(ppn);
+	cleanFrame(ppn);
+    }
+
+    /**
+     * Write the specified frame back if any page mapping it is dirty, to swap
+     * or to the mapped file it belongs to, and have every page mapping it
+     * refer to the written copy. Must be called with <tt>vmLock</tt> held,
+     * after any TLB entry for the frame has been invalidated.
+     *
+     * @param	ppn	the frame to clean.
+     */
+    private static void cleanFrame(int ppn) {
+	Frame frame = frames[ppn];
+	frame.fold();
+
+	Mapping first = frame.mappings.getFirst();
+	if (!first.entry().dirty)
+	    return;
+
+	first.process.cleanPage(first.vpn);
+
+	int slot = first.process.getSwapSlot(first.vpn);
+	for (Mapping mapping : frame.mappings) {
+	    if (mapping != first)
+		mapping.process.adoptSwapSlot(mapping.vpn, slot);
+	}
+    }
+
+    /**
+     * The view of the inverted page table given to the replacement policy.
+     */
+    private static class KernelFrameTable implements FrameTable {
+	public int getNumFrames() {
+	    return frames.length;
+	}
+
+	public TranslationEntry getEntry(int ppn) {
+	    Frame frame = frames[ppn];
+	    if (frame.mappings.isEmpty())
+		return null;
+
+	    // a shared frame is represented by the entry of its first mapping
+	    frame.fold();
+	    return frame.mappings.getFirst().entry();
+	}
+
+	public boolean isEvictable(int ppn) {
+	    return !frames[ppn].mappings.isEmpty() && frames[ppn].pinCount == 0;
+	}
+
+	public long getKey(int ppn) {
+	    Frame frame = frames[ppn];
+	    Lib.assertTrue(!frame.mappings.isEmpty());
+
+	    Mapping first = frame.mappings.getFirst();
+	    return ((long) first.process.getProcessID() << 32) | first.vpn;
+	}
+
+	public void cleanFrame(int ppn) {
+	    writeBackFrame(ppn);
+	}
+
+	public long getTime() {
+	    return Machine.timer().getTime();
+	}
+    }
+
+    /**
+     * Fold the used and dirty bits in the TLB into the page table of the
+     * current process.
+     */
+    private static void syncCurrentTLB() {
+	UserProcess process = currentProcess();
+	if (process instanceof VMProcess)
+	    ((VMProcess) process).syncTLB(false);
+    }
+
+    /**
+     * Invalidate any TLB entry that maps the specified frame, after folding
+     * its used and dirty bits into the current process's page table.
+     *
+     * @param	ppn	the physical page number.
+     */
+    private static void invalidateTLB(int ppn) {
+	syncCurrentTLB();
+
+	Processor processor = Machine.processor();
+	boolean intStatus = Machine.interrupt().disable();
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry entry = processor.readTLBEntry(i);
+	    if (entry.valid && entry.ppn == ppn) {
+		entry.valid = false;
+		processor.writeTLBEntry(i, entry);
+	    }
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    /**
+     * A virtual page that maps a frame.
+     */
+    private static class Mapping {
+	Mapping(VMProcess process, int vpn) {
+	    this.process = process;
+	    this.vpn = vpn;
+	}
+
+	TranslationEntry entry() {
+	    return process.getPageTableEntry(vpn);
+	}
+
+	VMProcess process;
+	int vpn;
+    }
+
+    /**
+     * An entry in the inverted page table.
+     */
+    private static class Frame {
+	/**
+	 * Move the used and dirty bits of every mapping into the entry of the
+	 * first, so that it describes the whole frame.
+	 */
+	void fold() {
+	    TranslationEntry first = mappings.getFirst().entry();
+
+	    for (Mapping mapping : mappings) {
+		TranslationEntry entry = mapping.entry();
+		if (entry != first) {
+		    first.used |= entry.used;
+		    first.dirty |= entry.dirty;
+		    entry.used = entry.dirty = false;
+		}
+	    }
+	}
+
+	/**
+	 * Remove a mapping from this frame, handing its used and dirty bits on
+	 * to the remaining mappings.
+	 */
+	void remove(VMProcess process, int vpn) {
+	    fold();
+
+	    for (Iterator<Mapping> i=mappings.iterator(); i.hasNext(); ) {
+		Mapping mapping = i.next();
+		if (mapping.process == process && mapping.vpn == vpn) {
+		    i.remove();
+		    if (!mappings.isEmpty()) {
+			TranslationEntry entry = mapping.entry();
+			TranslationEntry first = mappings.getFirst().entry();
+			first.used |= entry.used;
+			first.dirty |= entry.dirty;
+		    }
+		    return;
+		}
+	    }
+
+	    Lib.assertNotReached("frame not mapped by page");
+	}
+
+	/** The pages that map this frame; empty if the frame is free. */
+	LinkedList<Mapping> mappings = new LinkedList<Mapping>();
+	/** While positive, this frame must not be evicted. */
+	int pinCount = 0;
+    }
+
+    /**
+     * Protects the inverted page table, every process's page table, and the
+     * swap file.
+     */
+    static Lock vmLock;
+    /** The swap file holding evicted dirty pages. */
+    static SwapFile swap;
+
+    private static Frame[] frames;
+    /** The number of pins taken by <tt>pinFrame()</tt>. */
+    private static int numPinned = 0;
+    private static ReplacementPolicy policy;
+
+    /**
+     * The number of page faults, evictions, and pages written back to swap
+     * or to a mapped file. Updated with <tt>vmLock</tt> held.
+     */
+    static int numPageFaults = 0, numPageEvictions = 0, numDirtyWriteBacks = 0;
+
     // dummy variables to make javac smarter
     private static VMProcess dummy1 = null;
 
+    private static final int pageSize = Processor.pageSize;
     private static final char dbgVM = 'v';
 }
@@ -5,6 +5,8 @@ import nachos.threads.*;
 import nachos.userprog.*;
 import nachos.vm.*;
 
+import java.util.Arrays;
+
 /**
  * A <tt>UserProcess</tt> that supports demand-paging.
  */
@@ -22,6 +24,8 @@ public class VMProcess extends UserProcess {
      */
     public void saveState() {
 	super.saveState();
+
+	syncTLB(true);
     }
 
     /**
@@ -29,7 +33,8 @@ public class VMProcess extends UserProcess {
      * <tt>UThread.restoreState()</tt>.
      */
     public void restoreState() {
-	super.restoreState();
+	// the TLB was flushed when the previous process was switched out
+	Machine.processor().setAddressSpaceID(getProcessID());
     }
 
     /**
@@ -39,15 +44,523 @@ public class VMProcess extends UserProcess {
      * @return	<tt>true</tt> if successful.
      */
     protected boolean loadSections() {
-	return super.loadSections();
+	pageTable = new TranslationEntry[numPages];
+	swapSlots = new int[numPages];
+	sections = new CoffSection[numPages];
+
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    pageTable[vpn] = new TranslationEntry(vpn, -1, false, false,
+						  false, false);
+	    swapSlots[vpn] = -1;
+	}
+
+	for (int s=0; s<coff.getNumSections(); s++) {
+	    CoffSection section = coff.getSection(s);
+
+	    Lib.debug(dbgProcess, "\tmapping " + section.getName()
+		      + " section (" + section.getLength() + " pages)");
+
+	    for (int i=0; i<section.getLength(); i++) {
+		int vpn = section.getFirstVPN()+i;
+
+		sections[vpn] = section;
+		pageTable[vpn].readOnly = section.isReadOnly();
+	    }
+	}
+
+	return true;
     }
 
     /**
      * Release any resources allocated by <tt>loadSections()</tt>.
      */
     protected void unloadSections() {
-	super.unloadSections();
-    }    
+	VMKernel.vmLock.acquire();
+
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    if (pageTable[vpn].valid) {
+		VMKernel.freeFrame(pageTable[vpn].ppn, this, vpn);
+		pageTable[vpn].valid = false;
+	    }
+	    if (swapSlots[vpn] != -1) {
+		VMKernel.swap.freeSlot(swapSlots[vpn]);
+		swapSlots[vpn] = -1;
+	    }
+	}
+
+	VMKernel.vmLock.release();
+
+	coff.close();
+    }
+
+    /**
+     * Release the pages of a memory map. A resident page is written back to
+     * the file if any process sharing its frame has modified it.
+     *
+     * @param	map	the map being removed.
+     */
+    protected void unmapPages(MemoryMap map) {
+	VMKernel.vmLock.acquire();
+
+	for (int i=0; i<map.getNumPages(); i++) {
+	    int vpn = map.getFirstVPN()+i;
+	    if (pageTable[vpn].valid) {
+		VMKernel.writeBackFrame(pageTable[vpn].ppn);
+		VMKernel.freeFrame(pageTable[vpn].ppn, this, vpn);
+	    }
+	    pageTable[vpn] = null;
+	}
+
+	VMKernel.vmLock.release();
+    }
+
+    /**
+     * Initialize the address space of a process created by <tt>fork()</tt> as
+     * a copy-on-write copy of its parent's. Resident pages share the parent's
+     * frames and pages in swap share its slots; pages that were never loaded
+     * are loaded from the same executable.
+     *
+     * @param	parentProcess	the process being forked, which must be the
+     *				current process.
+     * @return	<tt>true</tt> if successful.
+     */
+    protected boolean forkSections(UserProcess parentProcess) {
+	VMProcess parent = (VMProcess) parentProcess;
+
+	coff = ((CachedCoff) parent.coff).duplicate();
+
+	if (!loadSections())
+	    return false;
+
+	VMKernel.vmLock.acquire();
+
+	// the parent's translations are about to become read-only
+	parent.syncTLB(true);
+
+	for (int vpn=0; vpn<numPages; vpn++) {
+	    TranslationEntry entry = parent.pageTable[vpn];
+	    int slot = parent.swapSlots[vpn];
+
+	    if (!entry.valid && slot == -1)
+		continue;
+
+	    if (!entry.readOnly) {
+		entry.readOnly = true;
+		parent.copyOnWrite[vpn] = true;
+	    }
+	    copyOnWrite[vpn] = parent.copyOnWrite[vpn];
+
+	    pageTable[vpn] = new TranslationEntry(entry);
+	    if (entry.valid)
+		VMKernel.shareFrame(entry.ppn, this, vpn);
+
+	    if (slot != -1) {
+		VMKernel.swap.shareSlot(slot);
+		swapSlots[vpn] = slot;
+	    }
+	}
+
+	VMKernel.vmLock.release();
+
+	return true;
+    }
+
+    /**
+     * Give this process a private, writable copy of the specified
+     * copy-on-write page, faulting it in first if necessary.
+     *
+     * @param	vpn	the virtual page to copy.
+     * @return	<tt>true</tt>.
+     */
+    protected boolean breakCopyOnWrite(int vpn) {
+	VMKernel.vmLock.acquire();
+
+	if (!pageTable[vpn].valid)
+	    handlePageFault(vpn);
+	unsharePage(vpn);
+
+	VMKernel.vmLock.release();
+
+	return true;
+    }
+
+    /**
+     * Give this process a private, writable copy of the specified resident
+     * copy-on-write page. Must be called with <tt>vmLock</tt> held.
+     *
+     * @param	vpn	the virtual page to copy.
+     */
+    private void unsharePage(int vpn) {
+	Lib.assertTrue(copyOnWrite[vpn]);
+
+	TranslationEntry entry = pageTable[vpn];
+	Lib.assertTrue(entry.valid);
+
+	entry.ppn = VMKernel.unshareFrame(entry.ppn, this, vpn);
+
+	// the copy in swap, if still shared, no longer belongs to this page
+	if (swapSlots[vpn] != -1 && VMKernel.swap.isShared(swapSlots[vpn])) {
+	    VMKernel.swap.freeSlot(swapSlots[vpn]);
+	    swapSlots[vpn] = -1;
+	}
+
+	entry.readOnly = false;
+	entry.dirty = true;
+	copyOnWrite[vpn] = false;
+    }
+
+    /**
+     * Translate a range of this process's virtual memory into the extents of
+     * physical memory that hold it, faulting in any pages that are not
+     * resident. The frames are pinned until <tt>releaseExtents()</tt> is
+     * called, so that they cannot be evicted while the memory is accessed; a
+     * call pins at least one frame, but no more than half of physical memory
+     * is pinned at once.
+     *
+     * @param	vaddr	the first byte of virtual memory to translate.
+     * @param	length	the number of bytes to translate.
+     * @param	writing	<tt>true</tt> if the memory will be written.
+     * @return	the number of extents translated.
+     */
+    protected int translateExtents(int vaddr, int length, boolean writing) {
+	int numExtents = 0;
+	int amount = 0;
+
+	VMKernel.vmLock.acquire();
+
+	while (amount < length && numExtents < maxExtents) {
+	    TranslationEntry entry = residentEntry(vaddr+amount);
+	    if (entry != null && writing && entry.vpn < numPages &&
+		copyOnWrite[entry.vpn])
+		unsharePage(entry.vpn);
+	    if (entry == null || (writing && entry.readOnly))
+		break;
+
+	    if (!VMKernel.pinFrame(entry.ppn, numExtents == 0))
+		break;
+
+	    int pageOffset = Processor.offsetFromAddress(vaddr+amount);
+	    int chunk = Math.min(length-amount, pageSize-pageOffset);
+
+	    entry.used = true;
+
+	    extents[2*numExtents] = entry.ppn*pageSize + pageOffset;
+	    extents[2*numExtents+1] = chunk;
+	    numExtents++;
+	    amount += chunk;
+	}
+
+	VMKernel.vmLock.release();
+
+	return numExtents;
+    }
+
+    /**
+     * Unpin the frames pinned by the last call to <tt>translateExtents()</tt>.
+     * Pages that were written only become dirty now, so that a page cleaned
+     * while it was being written is not mistaken for a clean one.
+     *
+     * @param	vaddr		the first byte of virtual memory that was
+     *				translated.
+     * @param	numExtents	the number of extents translated.
+     * @param	written		<tt>true</tt> if the memory was written.
+     */
+    protected void releaseExtents(int vaddr, int numExtents, boolean written) {
+	int firstVPN = Processor.pageFromAddress(vaddr);
+
+	VMKernel.vmLock.acquire();
+
+	for (int i=0; i<numExtents; i++) {
+	    TranslationEntry entry = pageTable[firstVPN+i];
+	    if (written)
+		entry.dirty = true;
+	    VMKernel.unpinFrame(entry.ppn);
+	}
+
+	VMKernel.vmLock.release();
+    }
+
+    /**
+     * Return the page table entry for the page containing the specified
+     * address, faulting the page in if necessary. Must be called with
+     * <tt>vmLock</tt> held.
+     *
+     * @param	vaddr	the virtual address.
+     * @return	a valid page table entry, or <tt>null</tt> if the address is
+     *		outside this process's address space.
+     */
+    private TranslationEntry residentEntry(int vaddr) {
+	int vpn = Processor.pageFromAddress(vaddr);
+	if (vaddr < 0 || !isAddressable(vpn))
+	    return null;
+
+	if (!pageTable[vpn].valid)
+	    handlePageFault(vpn);
+
+	return pageTable[vpn];
+    }
+
+    /**
+     * Test whether the specified virtual page belongs to the program or to a
+     * mapped file.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	<tt>true</tt> if the page can be faulted in.
+     */
+    private boolean isAddressable(int vpn) {
+	return vpn < numPages || findMemoryMap(vpn) != null;
+    }
+
+    /**
+     * Return the page table entry for the specified virtual page.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the page table entry.
+     */
+    TranslationEntry getPageTableEntry(int vpn) {
+	return pageTable[vpn];
+    }
+
+    /**
+     * Load a non-resident page into a newly allocated frame: from its file if
+     * it belongs to a memory map, from swap if it was ever written back, from
+     * the executable if it belongs to a COFF section, and as zeroes
+     * otherwise. Mapped pages and read-only section pages that another
+     * process has resident are mapped from its frame instead. Must be called
+     * with <tt>vmLock</tt> held.
+     *
+     * @param	vpn	the virtual page to load.
+     */
+    private void handlePageFault(int vpn) {
+	Lib.assertTrue(VMKernel.vmLock.isHeldByCurrentThread());
+	Lib.assertTrue(!pageTable[vpn].valid);
+
+	VMKernel.numPageFaults++;
+
+	CoffSection section = null;
+	MemoryMap map = null;
+	PageCache cache = null;
+	String file = null;
+	int page = vpn;
+
+	if (vpn < numPages) {
+	    section = sections[vpn];
+	    if (swapSlots[vpn] == -1 && section != null &&
+		section.isReadOnly()) {
+		cache = UserKernel.textPages;
+		file = coffIdentity;
+	    }
+	}
+	else {
+	    map = findMemoryMap(vpn);
+	    cache = UserKernel.filePages;
+	    file = map.getName();
+	    page = vpn - map.getFirstVPN();
+	}
+
+	// another process may have the page already
+	if (cache != null) {
+	    UserKernel.lock.acquire();
+	    int shared = cache.lookup(file, page);
+	    UserKernel.lock.release();
+
+	    if (shared != -1) {
+		TranslationEntry entry = pageTable[vpn];
+		entry.ppn = shared;
+		entry.used = true;
+		entry.dirty = false;
+		entry.valid = true;
+
+		VMKernel.shareFrame(shared, this, vpn);
+		return;
+	    }
+	}
+
+	int ppn = VMKernel.allocateFrame();
+
+	if (map != null) {
+	    map.loadPage(page, ppn);
+	}
+	else if (swapSlots[vpn] != -1) {
+	    VMKernel.swap.readPage(swapSlots[vpn], ppn);
+	}
+	else if (section != null) {
+	    section.loadPage(vpn-section.getFirstVPN(), ppn);
+	}
+	else {
+	    byte[] memory = Machine.processor().getMemory();
+	    Arrays.fill(memory, ppn*pageSize, (ppn+1)*pageSize, (byte) 0);
+	}
+
+	// the faulting reference counts as a use, so that another process
+	// cannot evict the page again before this one gets to touch it
+	TranslationEntry entry = pageTable[vpn];
+	entry.ppn = ppn;
+	entry.used = true;
+	entry.dirty = false;
+	entry.valid = true;
+
+	VMKernel.mapFrame(ppn, this, vpn);
+
+	if (cache != null) {
+	    UserKernel.lock.acquire();
+	    cache.insert(file, page, ppn);
+	    UserKernel.lock.release();
+	}
+    }
+
+    /**
+     * Write the specified resident page back if it is dirty: to its file if
+     * it belongs to a memory map, and to swap otherwise. Must be called with
+     * <tt>vmLock</tt> held.
+     *
+     * @param	vpn	the virtual page to clean.
+     */
+    void cleanPage(int vpn) {
+	TranslationEntry entry = pageTable[vpn];
+	Lib.assertTrue(entry.valid);
+
+	if (!entry.dirty)
+	    return;
+
+	if (vpn >= numPages) {
+	    MemoryMap map = findMemoryMap(vpn);
+	    map.writePage(vpn - map.getFirstVPN(), entry.ppn);
+	    VMKernel.numDirtyWriteBacks++;
+
+	    entry.dirty = false;
+	    return;
+	}
+
+	// a slot shared with another process holds that process's copy too
+	if (swapSlots[vpn] != -1 && VMKernel.swap.isShared(swapSlots[vpn])) {
+	    VMKernel.swap.freeSlot(swapSlots[vpn]);
+	    swapSlots[vpn] = -1;
+	}
+
+	if (swapSlots[vpn] == -1)
+	    swapSlots[vpn] = VMKernel.swap.allocateSlot();
+
+	VMKernel.swap.writePage(swapSlots[vpn], entry.ppn);
+	VMKernel.numDirtyWriteBacks++;
+
+	entry.dirty = false;
+    }
+
+    /**
+     * Return the swap slot holding the specified page, or -1. Pages of
+     * mapped files are never held in swap.
+     *
+     * @param	vpn	the virtual page number.
+     * @return	the swap slot.
+     */
+    int getSwapSlot(int vpn) {
+	return vpn < numPages ? swapSlots[vpn] : -1;
+    }
+
+    /**
+     * Make the specified resident page refer to a copy of its frame that
+     * another process sharing the frame has just written back. Must be
+     * called with <tt>vmLock</tt> held.
+     *
+     * @param	vpn	the virtual page number.
+     * @param	slot	the swap slot holding the frame, or -1 if the frame
+     *			was written back to a mapped file.
+     */
+    void adoptSwapSlot(int vpn, int slot) {
+	if (slot != -1 && swapSlots[vpn] != slot) {
+	    if (swapSlots[vpn] != -1)
+		VMKernel.swap.freeSlot(swapSlots[vpn]);
+	    VMKernel.swap.shareSlot(slot);
+	    swapSlots[vpn] = slot;
+	}
+
+	pageTable[vpn].dirty = false;
+    }
+
+    /**
+     * Fold the used and dirty bits of every valid TLB entry into this
+     * process's page table, which must be the one the TLB currently holds
+     * translations for. The TLB's used bits are cleared, so that a used bit
+     * cleared in the page table by the replacement policy is only set again
+     * by a new reference.
+     *
+     * @param	flush	<tt>true</tt> to also invalidate every TLB entry.
+     */
+    void syncTLB(boolean flush) {
+	Processor processor = Machine.processor();
+	boolean intStatus = Machine.interrupt().disable();
+
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    TranslationEntry entry = processor.readTLBEntry(i);
+	    if (!entry.valid)
+		continue;
+
+	    syncEntry(entry);
+
+	    entry.used = false;
+	    if (flush)
+		entry.valid = false;
+	    processor.writeTLBEntry(i, entry);
+	}
+
+	Machine.interrupt().restore(intStatus);
+    }
+
+    private void syncEntry(TranslationEntry tlbEntry) {
+	if (tlbEntry.vpn < 0 || tlbEntry.vpn >= pageTable.length)
+	    return;
+
+	TranslationEntry entry = pageTable[tlbEntry.vpn];
+	if (entry != null && entry.valid && entry.ppn == tlbEntry.ppn) {
+	    entry.used |= tlbEntry.used;
+	    entry.dirty |= tlbEntry.dirty;
+	}
+    }
+
+    /**
+     * Handle a TLB miss by loading the translation for the faulting page,
+     * faulting the page in first if it is not resident.
+     *
+     * @param	vaddr	the virtual address that missed in the TLB.
+     * @return	<tt>false</tt> if the address is outside this process's
+     *		address space.
+     */
+    private boolean handleTLBMiss(int vaddr) {
+	int vpn = Processor.pageFromAddress(vaddr);
+	if (vaddr < 0 || !isAddressable(vpn))
+	    return false;
+
+	VMKernel.vmLock.acquire();
+
+	if (!pageTable[vpn].valid)
+	    handlePageFault(vpn);
+
+	Processor processor = Machine.processor();
+	boolean intStatus = Machine.interrupt().disable();
+
+	// prefer an empty slot, otherwise replace entries round-robin
+	int slot = -1;
+	for (int i=0; i<processor.getTLBSize(); i++) {
+	    if (!processor.readTLBEntry(i).valid) {
+		slot = i;
+		break;
+	    }
+	}
+	if (slot == -1) {
+	    slot = tlbHand;
+	    tlbHand = (tlbHand+1) % processor.getTLBSize();
+	    syncEntry(processor.readTLBEntry(slot));
+	}
+
+	processor.writeTLBEntry(slot, pageTable[vpn]);
+
+	Machine.interrupt().restore(intStatus);
+
+	VMKernel.vmLock.release();
+
+	return true;
+    }
 
     /**
      * Handle a user exception. Called by
@@ -61,12 +574,24 @@ public class VMProcess extends UserProcess {
 	Processor processor = Machine.processor();
 
 	switch (cause) {
+	case Processor.exceptionTLBMiss:
+	    if (!handleTLBMiss(processor.readRegister(Processor.regBadVAddr)))
+		super.handleException(cause);
+	    break;
+
 	default:
 	    super.handleException(cause);
 	    break;
 	}
     }
-	
+
+    /** For each virtual page, its slot in the swap file, or -1. */
+    private int[] swapSlots;
+    /** For each virtual page, the COFF section it is loaded from, or null. */
+    private CoffSection[] sections;
+    /** The next TLB entry to replace when the TLB is full. */
+    private static int tlbHand = 0;
+
     private static final int pageSize = Processor.pageSize;
     private static final char dbgProcess = 'a';
     private static final char dbgVM = 'v';
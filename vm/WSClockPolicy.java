@@ -0,0 +1,82 @@
+package nachos.vm;
+
+import nachos.machine.*;
+import nachos.threads.*;
+import nachos.userprog.*;
+import nachos.vm.*;
+
+/**
+ * The WSClock policy. Each frame remembers the last time its page was seen
+ * to be used. The hand evicts the first clean frame that has fallen out of
+ * the working set (has not been used for more than
+ * <tt>WSClockPolicy.window</tt> ticks); old dirty frames are cleaned by
+ * writing them back to swap and are passed over, so that they can be
+ * reclaimed cheaply on a later sweep.
+ *
+ * <p>
+ * If no frame is outside the working set, the oldest clean frame seen is
+ * evicted, or failing that, the frame under the hand.
+ */
+public class WSClockPolicy extends ReplacementPolicy {
+    /**
+     * Allocate a new WSClock replacement policy.
+     */
+    public WSClockPolicy() {
+    }
+
+    public void initialize(FrameTable frames) {
+	super.initialize(frames);
+
+	lastUsed = new long[numFrames];
+	window = Config.getInteger("WSClockPolicy.window", 5000);
+    }
+
+    public void frameLoaded(int ppn) {
+	lastUsed[ppn] = frames.getTime();
+    }
+
+    public int findVictim() {
+	long time = frames.getTime();
+	int oldestClean = -1, fallback = -1;
+
+	for (int i=0; i<2*numFrames; i++) {
+	    int ppn = hand;
+	    hand = (hand+1) % numFrames;
+
+	    TranslationEntry entry = frames.getEntry(ppn);
+	    if (entry == null || !frames.isEvictable(ppn))
+		continue;
+
+	    if (fallback == -1)
+		fallback = ppn;
+
+	    if (entry.used) {
+		entry.used = false;
+		lastUsed[ppn] = time;
+		continue;
+	    }
+
+	    if (time - lastUsed[ppn] > window) {
+		if (!entry.dirty)
+		    return ppn;
+
+		frames.cleanFrame(ppn);
+		continue;
+	    }
+
+	    if (!entry.dirty &&
+		(oldestClean == -1 || lastUsed[ppn] < lastUsed[oldestClean]))
+		oldestClean = ppn;
+	}
+
+	if (oldestClean != -1)
+	    return oldestClean;
+
+	Lib.assertTrue(fallback != -1, "no evictable frames");
+	return fallback;
+    }
+
+    private int hand = 0;
+    private long[] lastUsed;
+    private long window;
+}